@@ -0,0 +1,93 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.graphics.Bitmap;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the bridge moves the same pixels as the OpenCV conversion utilities, and
+ * measures a bitmap to matrix to bitmap round trip through both, results are written to
+ * the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class BitmapMatBridgeBenchmark {
+
+    private static final String TAG = "BRIDGE_BENCHMARK";
+
+    private static final int ITERATIONS = 100;
+
+    private static final int WIDTH = 1000;
+
+    private static final int HEIGHT = 750;
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void roundTripTime() {
+
+        // Opaque pixels, premultiplying the alpha leaves them untouched
+        Mat color = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+        Core.randu(color, 0, 256);
+        Mat opaque = new Mat();
+        Imgproc.cvtColor(color, opaque, Imgproc.COLOR_RGB2RGBA);
+        color.release();
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(opaque, bitmap);
+        Bitmap output = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+
+        BitmapMatBridge bridge = new BitmapMatBridge();
+        Mat bridged = bridge.readFrom(bitmap);
+        Mat converted = new Mat();
+        Utils.bitmapToMat(bitmap, converted);
+        Mat difference = new Mat();
+        Core.absdiff(bridged, converted, difference);
+        assertEquals(0, Core.countNonZero(difference.reshape(1)));
+
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            Utils.bitmapToMat(bitmap, converted);
+            Utils.matToBitmap(converted, output);
+            bridge.readFrom(bitmap);
+            bridge.writeTo(output);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Mat matrix = new Mat();
+            Utils.bitmapToMat(bitmap, matrix);
+            Utils.matToBitmap(matrix, output);
+            matrix.release();
+        }
+        long utilities = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bridge.readFrom(bitmap);
+            bridge.writeTo(output);
+        }
+        long bridgeTime = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, "utilities=" + utilities / 1000 + "us bridge=" + bridgeTime / 1000 + "us per "
+                + WIDTH + "x" + HEIGHT + " round trip");
+        opaque.release();
+        converted.release();
+        difference.release();
+        bitmap.recycle();
+        output.recycle();
+    }
+}
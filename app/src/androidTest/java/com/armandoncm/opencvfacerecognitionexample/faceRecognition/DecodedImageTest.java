@@ -0,0 +1,88 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that a rectangle of the encoded image, found on the reduced decoded image, is
+ * mapped back to the encoded image for every EXIF orientation, whether the orientation
+ * was applied while decoding or, for the mirrors, left pending
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecodedImageTest {
+
+    private static final int SAMPLE_SIZE = 2;
+
+    /**
+     * Size of the image as it is stored
+     */
+    private static final int ENCODED_WIDTH = 640;
+
+    private static final int ENCODED_HEIGHT = 480;
+
+    private static final Rect ENCODED = new Rect(100, 60, 80, 120);
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void orientationAppliedWhileDecoding() {
+
+        for (ImageOrientation orientation : ImageOrientation.values()) {
+            roundTrip(orientation, false);
+        }
+    }
+
+    @Test
+    public void mirrorLeftPending() {
+
+        // Only the orientations keeping faces upright are left pending by the decoder
+        for (ImageOrientation orientation : ImageOrientation.values()) {
+            if (orientation.keepsFacesUpright()) {
+                roundTrip(orientation, true);
+            }
+        }
+    }
+
+    private static void roundTrip(ImageOrientation orientation, boolean pending) {
+
+        int storedWidth = ENCODED_WIDTH / SAMPLE_SIZE;
+        int storedHeight = ENCODED_HEIGHT / SAMPLE_SIZE;
+        Rect stored = new Rect(ENCODED.x / SAMPLE_SIZE, ENCODED.y / SAMPLE_SIZE,
+                ENCODED.width / SAMPLE_SIZE, ENCODED.height / SAMPLE_SIZE);
+        boolean transposed = orientation.swapsDimensions();
+        int originalWidth = transposed ? ENCODED_HEIGHT : ENCODED_WIDTH;
+        int originalHeight = transposed ? ENCODED_WIDTH : ENCODED_HEIGHT;
+
+        Mat matrix;
+        Rect decoded;
+        DecodedImage image;
+        if (pending) {
+            matrix = new Mat(storedHeight, storedWidth, CvType.CV_8UC1);
+            decoded = stored;
+            image = new DecodedImage(matrix, orientation, orientation, SAMPLE_SIZE, originalWidth, originalHeight);
+            assertEquals(orientation.name(), orientation.apply(stored, storedWidth, storedHeight), image.toUpright(decoded));
+        } else {
+            matrix = transposed
+                    ? new Mat(storedWidth, storedHeight, CvType.CV_8UC1)
+                    : new Mat(storedHeight, storedWidth, CvType.CV_8UC1);
+            decoded = orientation.apply(stored, storedWidth, storedHeight);
+            image = new DecodedImage(matrix, orientation, ImageOrientation.NORMAL, SAMPLE_SIZE, originalWidth, originalHeight);
+            assertEquals(orientation.name(), decoded, image.toUpright(decoded));
+        }
+        assertEquals(orientation.name() + (pending ? " pending" : " applied"), ENCODED, image.toEncoded(decoded));
+        matrix.release();
+    }
+}
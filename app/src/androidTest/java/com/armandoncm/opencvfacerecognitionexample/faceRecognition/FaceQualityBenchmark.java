@@ -0,0 +1,71 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the time taken to assess the quality of a face chip and checks that blur,
+ * small crops and flat exposure lower the score, results are written to the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class FaceQualityBenchmark {
+
+    private static final String TAG = "QUALITY_BENCHMARK";
+
+    private static final int ITERATIONS = 500;
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void assessmentTimeAndOrdering() {
+
+        Mat sharp = new Mat(200, 200, CvType.CV_8UC1);
+        Core.randu(sharp, 0, 256);
+        Mat blurred = new Mat();
+        Imgproc.GaussianBlur(sharp, blurred, new Size(15, 15), 5);
+        Mat small = new Mat();
+        Imgproc.resize(sharp, small, new Size(40, 40), 0, 0, Imgproc.INTER_AREA);
+        Mat flat = new Mat();
+        sharp.convertTo(flat, CvType.CV_8UC1, 0.1, 120);
+
+        FaceQuality sharpQuality = FaceQuality.assess(sharp);
+        Log.i(TAG, "sharp " + sharpQuality);
+        Log.i(TAG, "blurred " + FaceQuality.assess(blurred));
+        Log.i(TAG, "small " + FaceQuality.assess(small));
+        Log.i(TAG, "flat " + FaceQuality.assess(flat));
+        assertTrue(FaceQuality.assess(blurred).getScore() < sharpQuality.getScore());
+        assertTrue(FaceQuality.assess(small).getScore() < sharpQuality.getScore());
+        assertTrue(FaceQuality.assess(flat).getScore() < sharpQuality.getScore());
+
+        for (int side : new int[]{50, 200, 800}) {
+            Mat face = new Mat(side, side, CvType.CV_8UC1);
+            Core.randu(face, 0, 256);
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                FaceQuality.assess(face);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                FaceQuality.assess(face);
+            }
+            long average = (System.nanoTime() - start) / ITERATIONS;
+            Log.i(TAG, "side=" + side + " time=" + average / 1000 + "us per chip");
+            face.release();
+        }
+    }
+}
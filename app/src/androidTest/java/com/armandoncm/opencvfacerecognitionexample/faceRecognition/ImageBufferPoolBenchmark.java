@@ -0,0 +1,92 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the buffer pool reuses returned matrices and stays under its memory cap,
+ * and measures obtaining a matrix from the pool against allocating a new one, results
+ * are written to the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageBufferPoolBenchmark {
+
+    private static final String TAG = "BUFFER_POOL_BENCHMARK";
+
+    private static final int ITERATIONS = 200;
+
+    private static final int ROWS = 1000;
+
+    private static final int COLS = 750;
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void reuseAndEviction() {
+
+        long matrixBytes = (long) ROWS * COLS;
+        ImageBufferPool pool = new ImageBufferPool(2 * matrixBytes);
+
+        Mat first = pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC1);
+        pool.recycle(first);
+        assertSame(first, pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC1));
+
+        // Three idle matrices do not fit under a cap of two, the least recently returned goes
+        Mat second = pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC1);
+        Mat third = pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC1);
+        pool.recycle(first);
+        pool.recycle(second);
+        pool.recycle(third);
+        assertEquals(1, pool.getEvictions());
+        assertTrue(first.empty());
+        assertEquals(2 * matrixBytes, pool.getIdleBytes());
+        Log.i(TAG, pool.toString());
+        pool.clear();
+    }
+
+    @Test
+    public void obtainTime() {
+
+        ImageBufferPool pool = new ImageBufferPool(ImageBufferPool.DEFAULT_MEMORY_CAP);
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            pool.recycle(pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC4));
+            new Mat(ROWS, COLS, CvType.CV_8UC4).release();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Mat matrix = new Mat(ROWS, COLS, CvType.CV_8UC4);
+            matrix.setTo(new Scalar(i));
+            matrix.release();
+        }
+        long allocated = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Mat matrix = pool.obtainMatrix(ROWS, COLS, CvType.CV_8UC4);
+            matrix.setTo(new Scalar(i));
+            pool.recycle(matrix);
+        }
+        long pooled = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, "allocated=" + allocated / 1000 + "us pooled=" + pooled / 1000 + "us per " + ROWS + "x" + COLS + " RGBA matrix");
+        Log.i(TAG, pool.toString());
+        pool.clear();
+    }
+}
@@ -0,0 +1,179 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the pure Java kernels with the native OpenCV calls they stand for, CLAHE
+ * included, both in their results and in their time, results are written to the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageKernelsBenchmark {
+
+    private static final String TAG = "KERNELS_BENCHMARK";
+
+    private static final int ITERATIONS = 20;
+
+    private static final int WIDTH = 1000;
+
+    private static final int HEIGHT = 1333;
+
+    private static final int CHIP_SIZE = FaceChipExtractor.DEFAULT_CHIP_SIZE;
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void kernelsAgainstNative() {
+
+        Mat rgba = new Mat(HEIGHT, WIDTH, CvType.CV_8UC4);
+        Core.randu(rgba, 0, 256);
+        byte[] rgbaPixels = new byte[WIDTH * HEIGHT * 4];
+        rgba.get(0, 0, rgbaPixels);
+
+        Mat gray = new Mat();
+        Mat chip = new Mat();
+        Mat enlarged = new Mat();
+        Mat equalized = new Mat();
+        byte[] grayPixels = new byte[WIDTH * HEIGHT];
+        byte[] chipPixels = new byte[CHIP_SIZE * CHIP_SIZE];
+        byte[] enlargedPixels = new byte[WIDTH * 2 * HEIGHT * 2];
+        byte[] equalizedPixels = new byte[WIDTH * HEIGHT];
+
+        for (int i = 0; i < ITERATIONS / 4; i++) {
+            runNative(rgba, gray, chip, enlarged, equalized);
+            runJava(rgbaPixels, grayPixels, chipPixels, enlargedPixels, equalizedPixels);
+        }
+
+        long[] nativeTimes = runNative(rgba, gray, chip, enlarged, equalized);
+        long[] javaTimes = runJava(rgbaPixels, grayPixels, chipPixels, enlargedPixels, equalizedPixels);
+        String[] names = {"gray", "area", "bilinear", "equalize"};
+        for (int i = 0; i < names.length; i++) {
+            Log.i(TAG, names[i] + " native=" + nativeTimes[i] / 1000 + "us java=" + javaTimes[i] / 1000 + "us");
+        }
+
+        assertTrue(maximumDifference(gray, grayPixels) <= 1);
+        assertTrue(maximumDifference(chip, chipPixels) <= 1);
+        assertTrue(maximumDifference(enlarged, enlargedPixels) <= 1);
+        Log.i(TAG, "equalize maximum difference=" + maximumDifference(equalized, equalizedPixels));
+
+        rgba.release();
+        gray.release();
+        chip.release();
+        enlarged.release();
+        equalized.release();
+    }
+
+    @Test
+    public void claheAgainstNative() {
+
+        Mat gray = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1);
+        Core.randu(gray, 0, 256);
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        gray.get(0, 0, pixels);
+        Mat normalized = new Mat();
+        byte[] normalizedPixels = new byte[pixels.length];
+        IlluminationNormalization normalization = new IlluminationNormalization();
+
+        for (int i = 0; i < ITERATIONS / 4; i++) {
+            normalization.normalize(gray, normalized);
+            normalization.normalize(pixels, WIDTH, HEIGHT, normalizedPixels);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            normalization.normalize(gray, normalized);
+        }
+        long nativeTime = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            normalization.normalize(pixels, WIDTH, HEIGHT, normalizedPixels);
+        }
+        long javaTime = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, "clahe native=" + nativeTime / 1000 + "us java=" + javaTime / 1000 + "us");
+        assertTrue(maximumDifference(normalized, normalizedPixels) <= 1);
+        gray.release();
+        normalized.release();
+        normalization.release();
+    }
+
+    /**
+     * @return Average time of every native call, in nanoseconds
+     */
+    private static long[] runNative(Mat rgba, Mat gray, Mat chip, Mat enlarged, Mat equalized) {
+
+        long[] times = new long[4];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+            long area = System.nanoTime();
+            Imgproc.resize(gray, chip, new Size(CHIP_SIZE, CHIP_SIZE), 0, 0, Imgproc.INTER_AREA);
+            long linear = System.nanoTime();
+            Imgproc.resize(gray, enlarged, new Size(WIDTH * 2, HEIGHT * 2), 0, 0, Imgproc.INTER_LINEAR);
+            long equalize = System.nanoTime();
+            Imgproc.equalizeHist(gray, equalized);
+            long end = System.nanoTime();
+            times[0] += area - start;
+            times[1] += linear - area;
+            times[2] += equalize - linear;
+            times[3] += end - equalize;
+        }
+        for (int i = 0; i < times.length; i++) {
+            times[i] /= ITERATIONS;
+        }
+        return times;
+    }
+
+    /**
+     * @return Average time of every Java kernel, in nanoseconds
+     */
+    private static long[] runJava(byte[] rgba, byte[] gray, byte[] chip, byte[] enlarged, byte[] equalized) {
+
+        long[] times = new long[4];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            ImageKernels.rgbaToGray(rgba, WIDTH, HEIGHT, gray);
+            long area = System.nanoTime();
+            ImageKernels.resizeArea(gray, WIDTH, HEIGHT, chip, CHIP_SIZE, CHIP_SIZE);
+            long linear = System.nanoTime();
+            ImageKernels.resizeBilinear(gray, WIDTH, HEIGHT, enlarged, WIDTH * 2, HEIGHT * 2);
+            long equalize = System.nanoTime();
+            ImageKernels.equalizeHistogram(gray, WIDTH, HEIGHT, equalized);
+            long end = System.nanoTime();
+            times[0] += area - start;
+            times[1] += linear - area;
+            times[2] += equalize - linear;
+            times[3] += end - equalize;
+        }
+        for (int i = 0; i < times.length; i++) {
+            times[i] /= ITERATIONS;
+        }
+        return times;
+    }
+
+    private static int maximumDifference(Mat matrix, byte[] pixels) {
+
+        byte[] nativePixels = new byte[pixels.length];
+        matrix.get(0, 0, nativePixels);
+        int maximum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            maximum = Math.max(maximum, Math.abs((nativePixels[i] & 0xFF) - (pixels[i] & 0xFF)));
+        }
+        return maximum;
+    }
+}
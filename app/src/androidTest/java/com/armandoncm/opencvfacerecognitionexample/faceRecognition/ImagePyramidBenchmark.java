@@ -0,0 +1,118 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the levels of the image pyramid and the mapping of rectangles between them, and
+ * measures reducing a photo once through the pyramid for detection, a face chip and a
+ * thumbnail against resizing it from full size for each of them, results are written to
+ * the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImagePyramidBenchmark {
+
+    private static final String TAG = "PYRAMID_BENCHMARK";
+
+    private static final int ITERATIONS = 20;
+
+    private static final int ROWS = 3000;
+
+    private static final int COLS = 4000;
+
+    private static final int THUMBNAIL_SHORT_SIDE = 480;
+
+    private static final Rect FACE = new Rect(1600, 1000, 800, 800);
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void levels() {
+
+        ImagePyramid pyramid = new ImagePyramid(randomImage());
+
+        assertEquals(COLS, pyramid.getWidth(0));
+        assertEquals(ROWS, pyramid.getHeight(0));
+        for (int level = 1; level < pyramid.getLevelCount(); level++) {
+            Mat matrix = pyramid.getLevel(level);
+            assertEquals(pyramid.getWidth(level), matrix.cols());
+            assertEquals(pyramid.getHeight(level), matrix.rows());
+        }
+        int level = pyramid.levelFor(FaceDetection.getMinimumImageShortSide());
+        assertTrue(Math.min(pyramid.getWidth(level), pyramid.getHeight(level)) >= FaceDetection.getMinimumImageShortSide());
+        assertTrue(level + 1 == pyramid.getLevelCount()
+                || Math.min(pyramid.getWidth(level + 1), pyramid.getHeight(level + 1)) < FaceDetection.getMinimumImageShortSide());
+
+        Rect onLevel = pyramid.fromBase(FACE, 2);
+        assertEquals(new Rect(400, 250, 200, 200), onLevel);
+        assertEquals(FACE, pyramid.toBase(onLevel, 2));
+        pyramid.release();
+    }
+
+    @Test
+    public void reductionTime() {
+
+        Mat image = randomImage();
+        Mat detection = new Mat();
+        Mat thumbnail = new Mat();
+        FaceChipExtractor extractor = new FaceChipExtractor();
+        int detectionShortSide = FaceDetection.getMinimumImageShortSide();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            double detectionScale = (double) detectionShortSide / ROWS;
+            Imgproc.resize(image, detection, new Size(), detectionScale, detectionScale, Imgproc.INTER_AREA);
+            extractor.extract(image, FACE);
+            double thumbnailScale = (double) THUMBNAIL_SHORT_SIDE / ROWS;
+            Imgproc.resize(image, thumbnail, new Size(), thumbnailScale, thumbnailScale, Imgproc.INTER_AREA);
+        }
+        long independent = (System.nanoTime() - start) / ITERATIONS;
+
+        long shared = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            // The pyramid owns its base, so it is given a copy, which is not timed
+            Mat copy = ImageBufferPool.getInstance().obtainMatrix(ROWS, COLS, CvType.CV_8UC1);
+            image.copyTo(copy);
+            start = System.nanoTime();
+            ImagePyramid pyramid = new ImagePyramid(copy);
+            pyramid.getLevel(pyramid.levelFor(detectionShortSide));
+            extractor.extract(pyramid, new Rect[]{FACE});
+            pyramid.getLevel(pyramid.levelFor(THUMBNAIL_SHORT_SIDE));
+            pyramid.release();
+            shared += System.nanoTime() - start;
+        }
+        shared /= ITERATIONS;
+
+        Log.i(TAG, "independent=" + independent / 1000 + "us shared=" + shared / 1000 + "us per " + COLS + "x" + ROWS + " photo");
+        image.release();
+        detection.release();
+        thumbnail.release();
+        extractor.release();
+    }
+
+    private static Mat randomImage() {
+
+        Mat image = new Mat(ROWS, COLS, CvType.CV_8UC1);
+        Core.randn(image, 128, 40);
+        Imgproc.GaussianBlur(image, image, new Size(5, 5), 0);
+        return image;
+    }
+}
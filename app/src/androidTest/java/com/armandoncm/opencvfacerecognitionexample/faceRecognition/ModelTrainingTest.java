@@ -0,0 +1,96 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that a retrain replaces the faces remembered for deduplication, faces enrolled
+ * before it can be enrolled again while the training faces are still dropped
+ */
+@RunWith(AndroidJUnit4.class)
+public class ModelTrainingTest {
+
+    private static final int LABEL = 7;
+
+    private File directory;
+
+    @Before
+    public void loadOpenCV() throws IOException {
+
+        assumeTrue(OpenCVLoader.initDebug());
+        directory = File.createTempFile("gallery", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (directory != null) {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void enrolledFaceIsKeptAfterRetrain() throws IOException {
+
+        Random random = new Random(11);
+        Mat enrolledFace = randomFace(random);
+        Mat trainingFace = randomFace(random);
+
+        ModelTraining training = new ModelTraining(directory);
+        try {
+            training.setMinimumQuality(0);
+            training.trainModel(LABEL, new Mat[]{enrolledFace});
+            assertEquals(1, training.getSnapshot().size());
+
+            Map<Integer, Mat[]> facesByLabel = new HashMap<>();
+            facesByLabel.put(LABEL, new Mat[]{trainingFace});
+            training.trainModel(facesByLabel, RecognitionMethod.PIXELS, 0);
+            assertEquals(1, training.getSnapshot().size());
+
+            // The face enrolled before the retrain is no longer in the gallery
+            training.trainModel(LABEL, new Mat[]{enrolledFace});
+            assertEquals(2, training.getSnapshot().size());
+            // The training face is
+            training.trainModel(LABEL, new Mat[]{trainingFace});
+            assertEquals(2, training.getSnapshot().size());
+        } finally {
+            training.close();
+            enrolledFace.release();
+            trainingFace.release();
+        }
+    }
+
+    private static Mat randomFace(Random random) {
+
+        int size = FeatureExtraction.FACE_SIZE * 2;
+        byte[] pixels = new byte[size * size];
+        random.nextBytes(pixels);
+        Mat face = new Mat(size, size, CvType.CV_8UC1);
+        face.put(0, 0, pixels);
+        return face;
+    }
+}
@@ -0,0 +1,72 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the scaling efficiency of the parallel model training from one thread up to
+ * the number of available cores, results are written to the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelModelTrainerBenchmark {
+
+    private static final String TAG = "TRAINING_BENCHMARK";
+
+    private static final int LABELS = 200;
+
+    private static final int FACES_PER_LABEL = 10;
+
+    @Before
+    public void loadOpenCV() {
+        assumeTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void scalingEfficiency() {
+
+        Map<Integer, Mat[]> facesByLabel = new HashMap<>();
+        for (int label = 0; label < LABELS; label++) {
+            Mat[] faces = new Mat[FACES_PER_LABEL];
+            for (int i = 0; i < FACES_PER_LABEL; i++) {
+                faces[i] = new Mat(120, 120, CvType.CV_8UC1);
+                Core.randu(faces[i], 0, 256);
+            }
+            facesByLabel.put(label, faces);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (RecognitionMethod method : new RecognitionMethod[]{RecognitionMethod.EIGENFACES, RecognitionMethod.FISHERFACES, RecognitionMethod.LBPH}) {
+            long singleThreadTime = 0;
+            for (int threads = 1; threads <= cores; threads++) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                long start = System.nanoTime();
+                FaceModel model = new ParallelModelTrainer(pool).train(facesByLabel, method, 50);
+                long elapsed = System.nanoTime() - start;
+                pool.shutdown();
+                assertEquals(LABELS * FACES_PER_LABEL, model.size());
+
+                if (threads == 1) {
+                    singleThreadTime = elapsed;
+                }
+                double speedup = (double) singleThreadTime / elapsed;
+                Log.i(TAG, method + " threads=" + threads + " time=" + elapsed / 1000000 + "ms speedup="
+                        + String.format("%.2f", speedup) + " efficiency=" + String.format("%.2f", speedup / threads));
+            }
+        }
+    }
+}
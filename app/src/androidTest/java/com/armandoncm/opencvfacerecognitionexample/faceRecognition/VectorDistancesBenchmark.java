@@ -0,0 +1,85 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Measures the speed-up of the early abandoning gallery scan over the full one on
+ * synthetic templates, results are written to the log
+ */
+@RunWith(AndroidJUnit4.class)
+public class VectorDistancesBenchmark {
+
+    private static final String TAG = "DISTANCES_BENCHMARK";
+
+    private static final int ITERATIONS = 20;
+
+    private static final int GALLERY_SIZE = 4096;
+
+    private static final int DIMENSION = FeatureExtraction.PIXEL_DIMENSION;
+
+    private static final int SAMPLES_PER_IDENTITY = 16;
+
+    @Test
+    public void scanTime() {
+
+        Random random = new Random(11);
+        float[] spread = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            spread[i] = (float) Math.pow(random.nextFloat(), 3);
+        }
+        float[] identity = new float[DIMENSION];
+        float[] templates = new float[GALLERY_SIZE * DIMENSION];
+        for (int template = 0; template < GALLERY_SIZE; template++) {
+            if (template % SAMPLES_PER_IDENTITY == 0) {
+                for (int i = 0; i < DIMENSION; i++) {
+                    identity[i] = 0.5f + (float) random.nextGaussian() * 0.25f * spread[i];
+                }
+            }
+            for (int i = 0; i < DIMENSION; i++) {
+                templates[template * DIMENSION + i] = identity[i] + (float) random.nextGaussian() * 0.02f * spread[i];
+            }
+        }
+        float[] query = new float[DIMENSION];
+        System.arraycopy(templates, (GALLERY_SIZE / 2 + 1) * DIMENSION, query, 0, DIMENSION);
+        int[] order = VectorDistances.orderByVariance(FloatBuffer.wrap(templates), GALLERY_SIZE, DIMENSION);
+
+        for (int i = 0; i < ITERATIONS / 4; i++) {
+            scan(query, templates, null);
+            scan(query, templates, order);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            scan(query, templates, null);
+        }
+        long fullTime = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            scan(query, templates, order);
+        }
+        long boundedTime = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, "full=" + fullTime / 1000 + "us early abandoning=" + boundedTime / 1000
+                + "us over " + GALLERY_SIZE + " templates");
+    }
+
+    /**
+     * @param order Order the components are compared in, null for a full scan
+     */
+    private static void scan(float[] query, float[] templates, int[] order) {
+
+        TopKCollector collector = new TopKCollector(5);
+        for (int i = 0; i < GALLERY_SIZE; i++) {
+            float distance = order == null
+                    ? VectorDistances.squaredL2(query, 0, templates, i * DIMENSION, DIMENSION)
+                    : VectorDistances.squaredL2(query, 0, templates, i * DIMENSION, DIMENSION, order, collector.bound());
+            collector.offer(i, i, distance);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 
 import com.armandoncm.opencvfacerecognitionexample.faceRecognition.FaceDetection;
+import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImageBufferPool;
 
 import org.opencv.android.InstallCallbackInterface;
 import org.opencv.android.LoaderCallbackInterface;
@@ -21,6 +22,13 @@ public class ApplicationCore extends Application {
         instance = this;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Idle image buffers are only a cache, they are the first thing to give back
+        ImageBufferPool.getInstance().clear();
+    }
+
     /**
      * Loads the OpenCV Library
      * If the OpenCV Manager is not present in the phone, an install request is shown to the user
@@ -22,10 +22,13 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.armandoncm.opencvfacerecognitionexample.faceRecognition.DecodedImage;
 import com.armandoncm.opencvfacerecognitionexample.faceRecognition.FaceDetection;
+import com.armandoncm.opencvfacerecognitionexample.faceRecognition.IlluminationNormalization;
+import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImageBufferPool;
 import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImageConversion;
-import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImagePostProcessing;
 import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImagePreProcessing;
+import com.armandoncm.opencvfacerecognitionexample.faceRecognition.ImagePyramid;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
@@ -42,10 +45,30 @@ public class MainActivity extends Activity {
     private static final int REQUEST_SELECT_PHOTO = 2;
     private static final int PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 100;
 
+    /**
+     * Minimum length in pixels of the shorter side of the face crop shown
+     */
+    private static final int FACE_CROP_SHORT_SIDE = 512;
+
+    /**
+     * Minimum length in pixels of the shorter side of the thumbnail shown when no face is found
+     */
+    private static final int THUMBNAIL_SHORT_SIDE = 480;
+
     private ImageView imageView;
 
     private Uri photoURI;
 
+    /**
+     * Evens out the lighting of the photos before faces are detected on them
+     */
+    private final IlluminationNormalization illuminationNormalization = new IlluminationNormalization();
+
+    /**
+     * Bitmap shown by the image view, returned to the buffer pool once it is replaced
+     */
+    private Bitmap displayedBitmap;
+
     boolean permissionGranted;
 
 
@@ -71,6 +94,12 @@ public class MainActivity extends Activity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        illuminationNormalization.release();
+    }
+
     private File createImageFile() throws IOException {
         // Create an image file name
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
@@ -191,27 +220,41 @@ public class MainActivity extends Activity {
         protected Bitmap doInBackground(Uri... uris) {
 
             try {
-                Bitmap bitmap = ImagePreProcessing.loadBitmap(uris[0]);
-                Mat matrix = ImageConversion.convertBitmapToMatrix(bitmap);
-                matrix = ImagePreProcessing.removeColorInformation(matrix);
-                FaceDetection faceDetection = FaceDetection.getInstance();
-                Rect[] detectedFaceRectangles = faceDetection.detectFaces(matrix);
-
-                final int numberOfDetectedFaces = detectedFaceRectangles.length;
-                MainActivity.this.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        String message = MainActivity.this.getResources().getString(R.string.msg_number_of_detected_faces);
-                        message = message.concat(": " + numberOfDetectedFaces);
-                        Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                // The photo is decoded straight into a gray scale matrix, at the resolution the detector needs
+                DecodedImage image = ImagePreProcessing.loadGrayMatrix(uris[0], FaceDetection.getMinimumImageShortSide());
+                // Every smaller version of the photo is taken from the same pyramid, released once the photo is done
+                ImagePyramid pyramid = new ImagePyramid(image.getMatrix());
+                try {
+                    FaceDetection faceDetection = FaceDetection.getInstance();
+                    // Only a copy of the level the detector sees is normalized, the thumbnail keeps the photo as it is
+                    Rect[] detectedFaceRectangles = faceDetection.detectFaces(pyramid, illuminationNormalization);
+
+                    final int numberOfDetectedFaces = detectedFaceRectangles.length;
+                    MainActivity.this.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            String message = MainActivity.this.getResources().getString(R.string.msg_number_of_detected_faces);
+                            message = message.concat(": " + numberOfDetectedFaces);
+                            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                        }
+                    });
+                    if (numberOfDetectedFaces > 0) {
+
+                        // Only the area of the face is decoded again, sharp, the rest of the photo is not
+                        return ImagePreProcessing.loadFaceRegions(uris[0], image,
+                                new Rect[]{detectedFaceRectangles[0]}, FACE_CROP_SHORT_SIDE)[0];
                     }
-                });
-                if (numberOfDetectedFaces > 0) {
-
-                    matrix = faceDetection.cropFace(matrix, detectedFaceRectangles[0]);
-                    matrix = ImagePostProcessing.upscaleImage(matrix, 1000);
+                    // When there is no face to show a thumbnail of the photo is shown, taken from the pyramid instead of decoding the photo again
+                    Mat level = pyramid.getLevel(pyramid.levelFor(THUMBNAIL_SHORT_SIDE));
+                    Mat thumbnail = ImageBufferPool.getInstance().obtainMatrix(level.rows(), level.cols(), level.type());
+                    // Only mirror orientations may be pending, they keep the shape of the level
+                    image.getOrientation().apply(level, thumbnail);
+                    Bitmap bitmap = ImageConversion.convertMatrixToBitmap(thumbnail);
+                    ImageBufferPool.getInstance().recycle(thumbnail);
+                    return bitmap;
+                } finally {
+                    pyramid.release();
                 }
-                return ImageConversion.convertMatrixToBitmap(matrix);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -224,6 +267,9 @@ public class MainActivity extends Activity {
             super.onPostExecute(bitmap);
 
             imageView.setImageBitmap(bitmap);
+            // The previous image is no longer shown, its pixels can be reused by the next one
+            ImageBufferPool.getInstance().recycle(displayedBitmap);
+            displayedBitmap = bitmap;
 
         }
     }
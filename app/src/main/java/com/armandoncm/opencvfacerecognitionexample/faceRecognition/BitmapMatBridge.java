@@ -0,0 +1,134 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bridge between Android Bitmaps and OpenCV Matrices (Mat) over a single direct ByteBuffer
+ * The buffer is wrapped as an RGBA matrix without copying it, and bitmaps copy their pixels
+ * straight into it and out of it, so moving pixels from a bitmap to a matrix or back takes
+ * a single copy and no native allocation
+ *
+ * Pixels are moved as they are stored by ARGB_8888 bitmaps: RGBA bytes with premultiplied
+ * alpha, which for the opaque photos the app works on is the same as what
+ * {@link ImageConversion} produces. The buffer and its matrix are kept between calls, an
+ * instance is meant to be reused by a single thread
+ *
+ * @author ArmandoNCM
+ */
+public class BitmapMatBridge {
+
+    /**
+     * Largest buffer kept between images, larger ones are dropped by {@link #trim()}
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Header over the buffer, OpenCV does not keep the buffer alive so both are dropped together
+     */
+    private Mat matrix;
+
+    private int width;
+
+    private int height;
+
+    /**
+     * Gives the RGBA matrix over the buffer, growing the buffer if needed
+     * Its content is undefined, and it is only valid until the bridge is resized or
+     * trimmed. It must be neither released nor returned to the {@link ImageBufferPool}
+     * @param width Width of the matrix
+     * @param height Height of the matrix
+     * @return RGBA matrix sharing the pixels of the buffer
+     */
+    public Mat getMatrix(int width, int height){
+
+        if (matrix != null && this.width == width && this.height == height){
+            return matrix;
+        }
+        dropMatrix();
+        int capacity = width * height * BYTES_PER_PIXEL;
+        if (buffer == null || buffer.capacity() < capacity){
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        matrix = new Mat(height, width, CvType.CV_8UC4, buffer);
+        this.width = width;
+        this.height = height;
+        return matrix;
+    }
+
+    /**
+     * Copies the pixels of a bitmap into the buffer, the only copy they go through
+     * @param bitmap ARGB_8888 bitmap
+     * @return RGBA matrix holding the pixels of the bitmap, see {@link #getMatrix(int, int)}
+     */
+    public Mat readFrom(Bitmap bitmap){
+
+        checkLayout(bitmap);
+        Mat view = getMatrix(bitmap.getWidth(), bitmap.getHeight());
+        buffer.rewind();
+        bitmap.copyPixelsToBuffer(buffer);
+        return view;
+    }
+
+    /**
+     * Copies the pixels of the matrix into a bitmap of the same size, the only copy they
+     * go through
+     * @param bitmap Mutable ARGB_8888 bitmap
+     */
+    public void writeTo(Bitmap bitmap){
+
+        checkLayout(bitmap);
+        if (matrix == null || bitmap.getWidth() != width || bitmap.getHeight() != height){
+            throw new IllegalArgumentException("Expected a bitmap of " + width + "x" + height
+                    + " but got " + bitmap.getWidth() + "x" + bitmap.getHeight());
+        }
+        buffer.rewind();
+        bitmap.copyPixelsFromBuffer(buffer);
+    }
+
+    /**
+     * @return Bitmap obtained from the {@link ImageBufferPool} holding the pixels of the matrix
+     */
+    public Bitmap toBitmap(){
+
+        Bitmap bitmap = ImageBufferPool.getInstance().obtainBitmap(width, height, Bitmap.Config.ARGB_8888);
+        writeTo(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Drops the buffer if it grew too large to be kept
+     */
+    public void trim(){
+
+        if (buffer != null && buffer.capacity() > MAX_RETAINED_CAPACITY){
+            dropMatrix();
+            buffer = null;
+        }
+    }
+
+    private void dropMatrix(){
+
+        if (matrix != null){
+            // Only the header is released, its pixels belong to the buffer
+            matrix.release();
+            matrix = null;
+        }
+    }
+
+    private static void checkLayout(Bitmap bitmap){
+
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888 || bitmap.getRowBytes() != bitmap.getWidth() * BYTES_PER_PIXEL){
+            throw new IllegalArgumentException("Only tightly packed ARGB_8888 bitmaps can be bridged, got " + bitmap.getConfig());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+/**
+ * Burkhard-Keller tree of 64-bit hashes under the Hamming distance
+ *
+ * Every child of a node is stored under its distance to the node, so by the triangle
+ * inequality a search within a radius r of a query at distance d from a node only has to
+ * descend into the children stored under d - r to d + r
+ *
+ * @author ArmandoNCM
+ */
+public class BkTree {
+
+    private static final int MAX_DISTANCE = 64;
+
+    private Node root;
+
+    private int size;
+
+    /**
+     * Adds a hash to the tree
+     * @param hash Hash to be added
+     */
+    public void add(long hash){
+
+        size++;
+        if (root == null){
+            root = new Node(hash);
+            return;
+        }
+        Node node = root;
+        while (true){
+            int distance = PerceptualHash.hammingDistance(hash, node.hash);
+            if (node.children == null){
+                node.children = new Node[MAX_DISTANCE + 1];
+            }
+            Node child = node.children[distance];
+            if (child == null){
+                node.children[distance] = new Node(hash);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Tells whether the tree holds a hash within a Hamming radius of the given one
+     * @param hash Query hash
+     * @param radius Maximum number of differing bits
+     * @return True if some hash of the tree is at most the radius away from the query
+     */
+    public boolean containsWithin(long hash, int radius){
+        return root != null && containsWithin(root, hash, radius);
+    }
+
+    private static boolean containsWithin(Node node, long hash, int radius){
+
+        int distance = PerceptualHash.hammingDistance(hash, node.hash);
+        if (distance <= radius){
+            return true;
+        }
+        if (node.children == null){
+            return false;
+        }
+        int from = Math.max(0, distance - radius);
+        int to = Math.min(MAX_DISTANCE, distance + radius);
+        for (int childDistance = from; childDistance <= to; childDistance++){
+            Node child = node.children[childDistance];
+            if (child != null && containsWithin(child, hash, radius)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of hashes in the tree
+     */
+    public int size(){
+        return size;
+    }
+
+    private static class Node {
+
+        private final long hash;
+
+        private Node[] children;
+
+        private Node(long hash){
+            this.hash = hash;
+        }
+    }
+}
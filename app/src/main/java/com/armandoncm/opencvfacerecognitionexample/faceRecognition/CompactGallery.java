@@ -0,0 +1,470 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Gallery of face templates stored in a compact {@link TemplateEncoding}
+ *
+ * Linear scans are bound by the memory bandwidth of reading the templates, half-precision
+ * templates halve it and 8-bit templates quarter it. The scan kernels compute distances
+ * straight from the compact values instead of inflating every template to floats first:
+ * half-precision components are decoded by a table lookup as they are read, and squared
+ * euclidean distances to 8-bit templates reduce to a dot product with the raw codes
+ *
+ * {@link #measure(GallerySnapshot, TemplateEncoding, float[][], int)} reports the accuracy
+ * lost by an encoding against the float templates of a snapshot
+ *
+ * @author ArmandoNCM
+ */
+public class CompactGallery {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Largest 8-bit code
+     */
+    private static final int MAX_CODE = 255;
+
+    private final RecognitionMethod method;
+
+    private final int dimension;
+
+    private final TemplateEncoding encoding;
+
+    /**
+     * Queries share the read lock, adding takes the write lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int[] labels = new int[INITIAL_CAPACITY];
+
+    private float[] floats;
+
+    private short[] halves;
+
+    private byte[] codes;
+
+    /**
+     * Value of the zero code of every 8-bit template
+     */
+    private float[] offsets;
+
+    /**
+     * Value step between consecutive codes of every 8-bit template
+     */
+    private float[] scales;
+
+    /**
+     * Sum of the codes of every 8-bit template
+     */
+    private int[] codeSums;
+
+    /**
+     * Sum of the squared codes of every 8-bit template
+     */
+    private int[] codeSquareSums;
+
+    private int size;
+
+    /**
+     * @param method Recognition method the templates are produced by
+     * @param dimension Number of components of the templates
+     * @param encoding Storage format of the templates
+     */
+    public CompactGallery(RecognitionMethod method, int dimension, TemplateEncoding encoding){
+
+        this.method = method;
+        this.dimension = dimension;
+        this.encoding = encoding;
+        switch (encoding){
+            case FLOAT32:
+                floats = new float[INITIAL_CAPACITY * dimension];
+                break;
+            case FLOAT16:
+                halves = new short[INITIAL_CAPACITY * dimension];
+                break;
+            case INT8:
+                codes = new byte[INITIAL_CAPACITY * dimension];
+                offsets = new float[INITIAL_CAPACITY];
+                scales = new float[INITIAL_CAPACITY];
+                codeSums = new int[INITIAL_CAPACITY];
+                codeSquareSums = new int[INITIAL_CAPACITY];
+                break;
+        }
+    }
+
+    /**
+     * Builds a gallery holding every template of a snapshot
+     * @param snapshot Gallery snapshot to be encoded
+     * @param encoding Storage format of the templates
+     * @return Gallery whose template indices are the gallery indices of the snapshot
+     */
+    public static CompactGallery build(GallerySnapshot snapshot, TemplateEncoding encoding){
+
+        CompactGallery gallery = new CompactGallery(snapshot.getMethod(), snapshot.getDimension(), encoding);
+        float[] template = new float[snapshot.getDimension()];
+        for (int i = 0; i < snapshot.size(); i++){
+            int label = snapshot.getTemplate(i, template);
+            gallery.add(label, template);
+        }
+        return gallery;
+    }
+
+    /**
+     * Encodes and stores a template, it gets the next consecutive template index
+     * @param label Label of the person the template belongs to
+     * @param template Face template
+     * @return Template index of the template
+     */
+    public int add(int label, float[] template){
+
+        if (template.length != dimension){
+            throw new IllegalArgumentException("Expected a template of dimension " + dimension + " but got " + template.length);
+        }
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(size + 1);
+            int offset = size * dimension;
+            switch (encoding){
+                case FLOAT32:
+                    System.arraycopy(template, 0, floats, offset, dimension);
+                    break;
+                case FLOAT16:
+                    HalfFloat.encode(template, 0, halves, offset, dimension);
+                    break;
+                case INT8:
+                    quantize(template, size);
+                    break;
+            }
+            labels[size] = label;
+            return size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void quantize(float[] template, int index){
+
+        float minimum = Float.POSITIVE_INFINITY;
+        float maximum = Float.NEGATIVE_INFINITY;
+        for (float value : template){
+            minimum = Math.min(minimum, value);
+            maximum = Math.max(maximum, value);
+        }
+        float scale = (maximum - minimum) / MAX_CODE;
+        int offset = index * dimension;
+        int codeSum = 0;
+        int codeSquareSum = 0;
+        for (int i = 0; i < dimension; i++){
+            int code = scale > 0 ? Math.round((template[i] - minimum) / scale) : 0;
+            code = Math.min(MAX_CODE, Math.max(0, code));
+            codes[offset + i] = (byte) code;
+            codeSum += code;
+            codeSquareSum += code * code;
+        }
+        offsets[index] = minimum;
+        scales[index] = scale;
+        codeSums[index] = codeSum;
+        codeSquareSums[index] = codeSquareSum;
+    }
+
+    /**
+     * @return Number of templates in the gallery
+     */
+    public int size(){
+
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Storage format of the templates
+     */
+    public TemplateEncoding getEncoding(){
+        return encoding;
+    }
+
+    /**
+     * @return Number of bytes taken by the stored templates, their labels and their
+     * quantization parameters
+     */
+    public long getMemoryFootprint(){
+
+        long perTemplate = (long) dimension * encoding.getBytesPerComponent() + 4;
+        if (encoding == TemplateEncoding.INT8){
+            perTemplate += 16;
+        }
+        return size() * perTemplate;
+    }
+
+    /**
+     * Decodes a stored template back to floats
+     * @param index Template index
+     * @param destination Array receiving the decoded template
+     * @return Label of the template
+     */
+    public int getTemplate(int index, float[] destination){
+
+        lock.readLock().lock();
+        try {
+            int offset = index * dimension;
+            switch (encoding){
+                case FLOAT32:
+                    System.arraycopy(floats, offset, destination, 0, dimension);
+                    break;
+                case FLOAT16:
+                    HalfFloat.decode(halves, offset, destination, 0, dimension);
+                    break;
+                case INT8:
+                    for (int i = 0; i < dimension; i++){
+                        destination[i] = offsets[index] + scales[index] * (codes[offset + i] & 0xff);
+                    }
+                    break;
+            }
+            return labels[index];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the K closest templates to a query
+     * @param query Query template
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest, their distances are computed
+     * on the encoded templates
+     */
+    public FaceMatch[] search(float[] query, int k){
+        return search(new float[][]{query}, k)[0];
+    }
+
+    /**
+     * Searches the K closest templates to each of many queries, every encoded template is
+     * read once and compared to all of the queries
+     * @param queries Query templates
+     * @param k Number of matches to return per query
+     * @return Matches of every query sorted from the closest to the farthest
+     */
+    public FaceMatch[][] search(float[][] queries, int k){
+
+        TopKCollector[] collectors = new TopKCollector[queries.length];
+        double[][] queryTerms = new double[queries.length][];
+        for (int query = 0; query < queries.length; query++){
+            collectors[query] = new TopKCollector(k);
+            queryTerms[query] = queryTerms(queries[query]);
+        }
+
+        lock.readLock().lock();
+        try {
+            for (int index = 0; index < size; index++){
+                for (int query = 0; query < queries.length; query++){
+                    collectors[query].offer(index, labels[index], distance(queries[query], queryTerms[query], index));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        FaceMatch[][] matches = new FaceMatch[queries.length][];
+        for (int query = 0; query < queries.length; query++){
+            matches[query] = collectors[query].toMatches();
+        }
+        return matches;
+    }
+
+    /**
+     * @return Sum and sum of squares of the query components, used by the expanded
+     * squared euclidean distance to 8-bit templates
+     */
+    private static double[] queryTerms(float[] query){
+
+        double sum = 0;
+        double squareSum = 0;
+        for (float value : query){
+            sum += value;
+            squareSum += value * value;
+        }
+        return new double[]{sum, squareSum};
+    }
+
+    private float distance(float[] query, double[] queryTerms, int index){
+
+        int offset = index * dimension;
+        switch (encoding){
+            case FLOAT16:
+                return method == RecognitionMethod.LBPH
+                        ? VectorDistances.chiSquare(query, 0, halves, offset, dimension)
+                        : VectorDistances.squaredL2(query, 0, halves, offset, dimension);
+            case INT8:
+                float minimum = offsets[index];
+                float scale = scales[index];
+                if (method == RecognitionMethod.LBPH){
+                    return VectorDistances.chiSquare(query, 0, codes, offset, dimension, minimum, scale);
+                }
+                // sum (q - m - s c)^2 = sum (q - m)^2 - 2 s (q . c - m sum c) + s^2 sum c^2
+                double centered = queryTerms[1] - 2.0 * minimum * queryTerms[0] + (double) dimension * minimum * minimum;
+                double cross = VectorDistances.dot(query, 0, codes, offset, dimension) - (double) minimum * codeSums[index];
+                double distance = centered - 2.0 * scale * cross + (double) scale * scale * codeSquareSums[index];
+                return (float) Math.max(0, distance);
+            default:
+                return VectorDistances.distance(method, query, 0, floats, offset, dimension);
+        }
+    }
+
+    private void ensureCapacity(int capacity){
+
+        if (capacity <= labels.length){
+            return;
+        }
+        int newCapacity = Math.max(capacity, labels.length * 2);
+        labels = Arrays.copyOf(labels, newCapacity);
+        switch (encoding){
+            case FLOAT32:
+                floats = Arrays.copyOf(floats, newCapacity * dimension);
+                break;
+            case FLOAT16:
+                halves = Arrays.copyOf(halves, newCapacity * dimension);
+                break;
+            case INT8:
+                codes = Arrays.copyOf(codes, newCapacity * dimension);
+                offsets = Arrays.copyOf(offsets, newCapacity);
+                scales = Arrays.copyOf(scales, newCapacity);
+                codeSums = Arrays.copyOf(codeSums, newCapacity);
+                codeSquareSums = Arrays.copyOf(codeSquareSums, newCapacity);
+                break;
+        }
+    }
+
+    /**
+     * Measures the accuracy lost by storing the templates of a snapshot in an encoding,
+     * comparing its searches to exhaustive searches over the float templates
+     * @param snapshot Gallery snapshot holding the reference float templates
+     * @param encoding Encoding to be measured
+     * @param queries Query templates
+     * @param k Number of matches per query whose recall is measured
+     * @return Accuracy of the encoding
+     */
+    public static Accuracy measure(GallerySnapshot snapshot, TemplateEncoding encoding, float[][] queries, int k){
+
+        CompactGallery gallery = build(snapshot, encoding);
+        Accuracy accuracy = new Accuracy();
+        accuracy.encodedBytes = gallery.getMemoryFootprint();
+        accuracy.floatBytes = (long) snapshot.size() * (snapshot.getDimension() * 4 + 4);
+
+        int dimension = snapshot.getDimension();
+        float[] original = new float[dimension];
+        float[] decoded = new float[dimension];
+        for (int i = 0; i < snapshot.size(); i++){
+            snapshot.getTemplate(i, original);
+            gallery.getTemplate(i, decoded);
+            for (int component = 0; component < dimension; component++){
+                double error = decoded[component] - original[component];
+                accuracy.squaredError += error * error;
+                accuracy.squaredNorm += (double) original[component] * original[component];
+            }
+        }
+
+        FaceMatch[][] approximate = gallery.search(queries, k);
+        for (int query = 0; query < queries.length; query++){
+            FaceMatch[] exact = snapshot.search(queries[query], k);
+            double[] terms = queryTerms(queries[query]);
+            for (FaceMatch match : exact){
+                for (FaceMatch candidate : approximate[query]){
+                    if (candidate.getTemplateIndex() == match.getTemplateIndex()){
+                        accuracy.recalled++;
+                        break;
+                    }
+                }
+                if (match.getDistance() > 0){
+                    float encodedDistance = gallery.distance(queries[query], terms, match.getTemplateIndex());
+                    accuracy.distanceError += Math.abs(encodedDistance - match.getDistance()) / match.getDistance();
+                    accuracy.measuredDistances++;
+                }
+            }
+            accuracy.relevant += exact.length;
+            if (exact.length > 0 && approximate[query].length > 0){
+                accuracy.comparedQueries++;
+                if (exact[0].getLabel() == approximate[query][0].getLabel()){
+                    accuracy.agreeingQueries++;
+                }
+            }
+        }
+        return accuracy;
+    }
+
+    /**
+     * Accuracy of a template encoding relative to float templates
+     */
+    public static class Accuracy {
+
+        private long encodedBytes;
+
+        private long floatBytes;
+
+        private double squaredError;
+
+        private double squaredNorm;
+
+        private long recalled;
+
+        private long relevant;
+
+        private double distanceError;
+
+        private long measuredDistances;
+
+        private int comparedQueries;
+
+        private int agreeingQueries;
+
+        /**
+         * @return Memory footprint of the encoded gallery relative to the float one
+         */
+        public double getMemoryRatio(){
+            return floatBytes == 0 ? 0 : (double) encodedBytes / floatBytes;
+        }
+
+        /**
+         * @return Norm of the encoding error of the templates relative to their norm
+         */
+        public double getReconstructionError(){
+            return squaredNorm == 0 ? 0 : Math.sqrt(squaredError / squaredNorm);
+        }
+
+        /**
+         * @return Fraction of the exact top-K matches also found in the encoded gallery
+         */
+        public double getRecall(){
+            return relevant == 0 ? 0 : (double) recalled / relevant;
+        }
+
+        /**
+         * @return Fraction of the queries whose closest match has the same label with both
+         * galleries
+         */
+        public double getLabelAgreement(){
+            return comparedQueries == 0 ? 0 : (double) agreeingQueries / comparedQueries;
+        }
+
+        /**
+         * @return Average error of the encoded distance to the exact top-K matches, relative
+         * to their exact distance
+         */
+        public double getDistanceError(){
+            return measuredDistances == 0 ? 0 : distanceError / measuredDistances;
+        }
+
+        @Override
+        public String toString(){
+            return "Accuracy{memoryRatio=" + getMemoryRatio() + ", reconstructionError=" + getReconstructionError()
+                    + ", recall=" + getRecall() + ", labelAgreement=" + getLabelAgreement()
+                    + ", distanceError=" + getDistanceError() + "}";
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * An image decoded at a reduced resolution, either into a bitmap or straight into a gray
+ * scale OpenCV Matrix (Mat), together with the factor it was reduced by so that positions
+ * found on it can be mapped back to the full resolution image
+ *
+ * @author ArmandoNCM
+ */
+public class DecodedImage {
+
+    private final Bitmap bitmap;
+
+    private final Mat matrix;
+
+    private final ImageOrientation encodedOrientation;
+
+    private final ImageOrientation orientation;
+
+    private final int sampleSize;
+
+    private final int originalWidth;
+
+    private final int originalHeight;
+
+    /**
+     * @param bitmap Decoded bitmap, already upright
+     * @param encodedOrientation Orientation of the encoded image
+     * @param sampleSize Factor the resolution was divided by
+     * @param originalWidth Width of the full resolution image
+     * @param originalHeight Height of the full resolution image
+     */
+    public DecodedImage(Bitmap bitmap, ImageOrientation encodedOrientation, int sampleSize, int originalWidth, int originalHeight){
+        this.bitmap = bitmap;
+        this.matrix = null;
+        this.encodedOrientation = encodedOrientation;
+        this.orientation = ImageOrientation.NORMAL;
+        this.sampleSize = sampleSize;
+        this.originalWidth = originalWidth;
+        this.originalHeight = originalHeight;
+    }
+
+    /**
+     * @param matrix Decoded gray scale matrix
+     * @param encodedOrientation Orientation of the encoded image
+     * @param orientation Orientation still to be applied to the matrix to make it upright
+     * @param sampleSize Factor the resolution was divided by
+     * @param originalWidth Width of the full resolution upright image
+     * @param originalHeight Height of the full resolution upright image
+     */
+    public DecodedImage(Mat matrix, ImageOrientation encodedOrientation, ImageOrientation orientation,
+                        int sampleSize, int originalWidth, int originalHeight){
+        this.bitmap = null;
+        this.matrix = matrix;
+        this.encodedOrientation = encodedOrientation;
+        this.orientation = orientation;
+        this.sampleSize = sampleSize;
+        this.originalWidth = originalWidth;
+        this.originalHeight = originalHeight;
+    }
+
+    /**
+     * @return Decoded bitmap, null if the image was decoded into a matrix
+     */
+    public Bitmap getBitmap(){
+        return bitmap;
+    }
+
+    /**
+     * @return Decoded gray scale matrix, null if the image was decoded into a bitmap
+     */
+    public Mat getMatrix(){
+        return matrix;
+    }
+
+    /**
+     * @return Orientation of the encoded image, part of which may still be pending, see
+     * {@link #getOrientation()}
+     */
+    public ImageOrientation getEncodedOrientation(){
+        return encodedOrientation;
+    }
+
+    /**
+     * @return Orientation still to be applied to the matrix to make it upright, it always
+     * keeps faces upright so faces can be detected on the matrix as it is
+     */
+    public ImageOrientation getOrientation(){
+        return orientation;
+    }
+
+    /**
+     * Maps a rectangle found on the decoded matrix to the upright decoded image
+     * @param rectangle Rectangle on the decoded matrix
+     * @return Rectangle covering the same content once the orientation is applied
+     */
+    public Rect toUpright(Rect rectangle){
+        return orientation.apply(rectangle, matrix.cols(), matrix.rows());
+    }
+
+    /**
+     * @return Factor the resolution was divided by, one for a full resolution decode
+     */
+    public int getSampleSize(){
+        return sampleSize;
+    }
+
+    /**
+     * @return Width of the full resolution upright image
+     */
+    public int getOriginalWidth(){
+        return originalWidth;
+    }
+
+    /**
+     * @return Height of the full resolution upright image
+     */
+    public int getOriginalHeight(){
+        return originalHeight;
+    }
+
+    /**
+     * Maps a rectangle found on the decoded image to the full resolution image, keeping
+     * its orientation
+     * @param rectangle Rectangle on the decoded image
+     * @return Rectangle covering the same area of the full resolution image
+     */
+    public Rect toOriginal(Rect rectangle){
+        return new Rect(rectangle.x * sampleSize, rectangle.y * sampleSize,
+                rectangle.width * sampleSize, rectangle.height * sampleSize);
+    }
+
+    /**
+     * Maps a rectangle found on the decoded image to the pixels of the encoded image, at
+     * full resolution and in the orientation they are stored in, undoing the part of the
+     * orientation that was applied while decoding. The result is clipped to the image
+     * @param rectangle Rectangle on the decoded image
+     * @return Rectangle covering the same content on the encoded image
+     */
+    public Rect toEncoded(Rect rectangle){
+
+        int width = matrix != null ? matrix.cols() : bitmap.getWidth();
+        int height = matrix != null ? matrix.rows() : bitmap.getHeight();
+        ImageOrientation applied = orientation == ImageOrientation.NORMAL ? encodedOrientation : ImageOrientation.NORMAL;
+        Rect stored = applied.inverse().apply(rectangle, width, height);
+
+        boolean transposed = encodedOrientation.swapsDimensions();
+        int encodedWidth = transposed ? originalHeight : originalWidth;
+        int encodedHeight = transposed ? originalWidth : originalHeight;
+        int left = Math.max(0, stored.x * sampleSize);
+        int top = Math.max(0, stored.y * sampleSize);
+        int right = Math.min(encodedWidth, (stored.x + stored.width) * sampleSize);
+        int bottom = Math.min(encodedHeight, (stored.y + stored.height) * sampleSize);
+        return new Rect(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+    }
+}
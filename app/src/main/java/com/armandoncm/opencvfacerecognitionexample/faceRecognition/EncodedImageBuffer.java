@@ -0,0 +1,86 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer holding the encoded bytes of an image, e.g. a JPEG file, so that
+ * its metadata and its pixels are both decoded from a single read of the source
+ * The backing array is kept between reads, an instance is meant to be reused by a single
+ * thread
+ *
+ * @author ArmandoNCM
+ */
+public class EncodedImageBuffer {
+
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+
+    /**
+     * Largest backing array kept between reads, larger ones are dropped by {@link #trim()}
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+
+    private int length;
+
+    /**
+     * Replaces the content of the buffer with everything left in a stream, the stream is
+     * not closed
+     * @param inputStream Stream to be read until its end
+     * @param expectedLength Expected number of bytes, or a non positive number if unknown
+     * @throws IOException If the stream could not be read
+     */
+    public void readFrom(InputStream inputStream, long expectedLength) throws IOException {
+
+        // One spare byte lets the read reporting the end of the stream land without growing
+        if (expectedLength >= data.length && expectedLength < Integer.MAX_VALUE){
+            data = new byte[(int) expectedLength + 1];
+        }
+        length = 0;
+        while (true){
+            if (length == data.length){
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int read = inputStream.read(data, length, data.length - length);
+            if (read < 0){
+                return;
+            }
+            length += read;
+        }
+    }
+
+    /**
+     * @return Backing array, only the first {@link #getLength()} bytes are valid
+     */
+    public byte[] getData(){
+        return data;
+    }
+
+    /**
+     * @return Number of valid bytes
+     */
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * @return Stream over the valid bytes, it needs no closing
+     */
+    public InputStream openStream(){
+        return new ByteArrayInputStream(data, 0, length);
+    }
+
+    /**
+     * Forgets the content and drops the backing array if it grew too large to be kept
+     */
+    public void trim(){
+
+        length = 0;
+        if (data.length > MAX_RETAINED_CAPACITY){
+            data = new byte[INITIAL_CAPACITY];
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of enrolled face templates
+ *
+ * Every template is appended as a length-prefixed little-endian record holding the label,
+ * the dimension, the template components and a CRC32 of them, so the cost of an enrollment
+ * only depends on the number of templates being enrolled and never on the gallery size.
+ * A record interrupted by a crash is detected by its length or checksum and discarded
+ *
+ * @author ArmandoNCM
+ */
+public class EnrollmentLog implements Closeable {
+
+    /**
+     * Label, dimension and checksum of a record
+     */
+    private static final int RECORD_OVERHEAD = 12;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel channel;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CRC32 crc = new CRC32();
+
+    private int recordCount;
+
+    /**
+     * Opens a log for appending, creating it if needed
+     * Existing records are counted and a torn record at the end of the file is truncated
+     * @param file Log file
+     * @throws IOException If the log could not be opened
+     */
+    public EnrollmentLog(File file) throws IOException {
+
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        final int[] count = new int[1];
+        long validLength = replay(channel, new Listener() {
+            @Override
+            public void onRecord(int label, float[] template) {
+                count[0]++;
+            }
+        });
+        recordCount = count[0];
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    /**
+     * Receives the records of a log being replayed
+     */
+    public interface Listener {
+
+        /**
+         * @param label Label the template was enrolled for
+         * @param template Enrolled template
+         */
+        void onRecord(int label, float[] template);
+    }
+
+    /**
+     * Appends templates of one label and forces them to storage before returning
+     * @param label Label the templates are enrolled for
+     * @param templates Templates to be appended
+     * @throws IOException If the records could not be written
+     */
+    public synchronized void append(int label, float[][] templates) throws IOException {
+
+        int length = 0;
+        for (float[] template : templates){
+            length += 4 + RECORD_OVERHEAD + template.length * 4;
+        }
+        if (buffer.capacity() < length){
+            buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        for (float[] template : templates){
+            buffer.putInt(RECORD_OVERHEAD - 4 + template.length * 4);
+            int payloadStart = buffer.position();
+            buffer.putInt(label);
+            buffer.putInt(template.length);
+            for (float component : template){
+                buffer.putFloat(component);
+            }
+            crc.reset();
+            crc.update(buffer.array(), payloadStart, buffer.position() - payloadStart);
+            buffer.putInt((int) crc.getValue());
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        // Only the data has to be durable, file metadata updates are not waited for
+        channel.force(false);
+        recordCount += templates.length;
+    }
+
+    /**
+     * @return Number of records in the log
+     */
+    public synchronized int getRecordCount(){
+        return recordCount;
+    }
+
+    /**
+     * @return Log file
+     */
+    public File getFile(){
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Reads every valid record of a log file in the order they were appended
+     * @param file Log file
+     * @param listener Listener receiving the records
+     * @throws IOException If the log could not be read
+     */
+    public static void replay(File file, Listener listener) throws IOException {
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            replay(randomAccessFile.getChannel(), listener);
+        }
+    }
+
+    /**
+     * @return Length of the log up to the end of its last valid record
+     */
+    private static long replay(FileChannel channel, Listener listener) throws IOException {
+
+        long length = channel.size();
+        long position = 0;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        while (position + 4 <= length){
+            lengthBuffer.clear();
+            readFully(channel, lengthBuffer, position);
+            int recordLength = lengthBuffer.getInt(0);
+            if (recordLength < RECORD_OVERHEAD - 4 || position + 4 + recordLength + 4 > length){
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordLength + 4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, record, position + 4);
+            crc.reset();
+            crc.update(record.array(), 0, recordLength);
+            int dimension = record.getInt(4);
+            if (record.getInt(recordLength) != (int) crc.getValue() || dimension * 4 != recordLength - 8){
+                break;
+            }
+            float[] template = new float[dimension];
+            for (int i = 0; i < dimension; i++){
+                template[i] = record.getFloat(8 + i * 4);
+            }
+            listener.onRecord(record.getInt(0), template);
+            position += 4 + recordLength + 4;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0){
+                throw new IOException("Unexpected end of the enrollment log");
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class turns the faces detected on an image into normalized face chips: fixed-size,
+ * gray scale and histogram equalized crops ready to be recognized or enrolled
+ *
+ * The chips are written into a strip of pixels owned by the extractor which is reused on
+ * every call, every chip being a region of it, so once the strip has grown to the largest
+ * number of faces seen no pixel buffer is allocated anymore. Faces are shrunk with area
+ * interpolation, which averages the pixels instead of skipping them, and enlarged with
+ * bilinear interpolation
+ * Chips are histogram equalized unless an {@link IlluminationNormalization} stage is given,
+ * which copes better with faces lit from one side and normalizes all the chips of a call
+ * at once as regions of the strip, templates enrolled with one kind of chips should only
+ * be compared with the same kind
+ *
+ * An extractor is meant to be used by a single thread, the chips it returns are
+ * overwritten by its next call
+ *
+ * @author ArmandoNCM
+ */
+public class FaceChipExtractor {
+
+    /**
+     * Default side of the chips in pixels
+     */
+    public static final int DEFAULT_CHIP_SIZE = 100;
+
+    private final Size chipSize;
+
+    /**
+     * Chips stacked one above the other
+     */
+    private Mat strip;
+
+    /**
+     * Region of the strip of every chip
+     */
+    private final List<Mat> pool = new ArrayList<>();
+
+    private final List<Rect> regions = new ArrayList<>();
+
+    private final IlluminationNormalization illuminationNormalization;
+
+    /**
+     * Scratch chip for color images, resized before being converted to gray scale
+     */
+    private Mat colorChip;
+
+    public FaceChipExtractor(){
+        this(DEFAULT_CHIP_SIZE);
+    }
+
+    /**
+     * @param chipSize Side of the chips in pixels
+     */
+    public FaceChipExtractor(int chipSize){
+        this(chipSize, null);
+    }
+
+    /**
+     * @param chipSize Side of the chips in pixels
+     * @param illuminationNormalization Stage normalizing the chips, null to equalize their histogram
+     */
+    public FaceChipExtractor(int chipSize, IlluminationNormalization illuminationNormalization){
+        this.chipSize = new Size(chipSize, chipSize);
+        this.illuminationNormalization = illuminationNormalization;
+    }
+
+    /**
+     * Extracts the chip of a single face
+     * @param image Gray scale or RGBA image the face was detected on
+     * @param face Rectangle the face was detected in
+     * @return Chip of the face, overwritten by the next call to the extractor
+     */
+    public Mat extract(Mat image, Rect face){
+        return extract(image, new Rect[]{face}).get(0);
+    }
+
+    /**
+     * Extracts the chips of all the faces detected on an image
+     * @param image Gray scale or RGBA image the faces were detected on
+     * @param faces Rectangles the faces were detected in
+     * @return Chip of every face, in the order of the rectangles, overwritten by the next
+     * call to the extractor
+     */
+    public List<Mat> extract(Mat image, Rect[] faces){
+
+        growPool(faces.length);
+        List<Mat> chips = new ArrayList<>(faces.length);
+        for (int i = 0; i < faces.length; i++){
+            Mat chip = pool.get(i);
+            extract(image, faces[i], chip);
+            chips.add(chip);
+        }
+        normalize(chips);
+        return chips;
+    }
+
+    /**
+     * Extracts the chips of all the faces detected on an image from its pyramid, every face
+     * being cropped from the smallest level on which it is still at least as large as the
+     * chips, so large faces are shrunk from an already reduced level
+     * @param pyramid Pyramid of the gray scale or RGBA image the faces were detected on
+     * @param faces Rectangles the faces were detected in, on the base of the pyramid
+     * @return Chip of every face, in the order of the rectangles, overwritten by the next
+     * call to the extractor
+     */
+    public List<Mat> extract(ImagePyramid pyramid, Rect[] faces){
+
+        growPool(faces.length);
+        List<Mat> chips = new ArrayList<>(faces.length);
+        for (int i = 0; i < faces.length; i++){
+            int level = 0;
+            while (level + 1 < pyramid.getLevelCount()
+                    && (faces[i].width >> (level + 1)) >= chipSize.width
+                    && (faces[i].height >> (level + 1)) >= chipSize.height){
+                level++;
+            }
+            Mat chip = pool.get(i);
+            extract(pyramid.getLevel(level), pyramid.fromBase(faces[i], level), chip);
+            chips.add(chip);
+        }
+        normalize(chips);
+        return chips;
+    }
+
+    private void growPool(int size){
+
+        if (pool.size() >= size){
+            return;
+        }
+        // The chips returned so far are overwritten by this call anyway, the strip is replaced
+        int capacity = Math.max(size, pool.size() * 2);
+        int side = (int) chipSize.height;
+        release();
+        strip = new Mat(capacity * side, (int) chipSize.width, CvType.CV_8UC1);
+        for (int i = 0; i < capacity; i++){
+            Rect region = new Rect(0, i * side, (int) chipSize.width, side);
+            regions.add(region);
+            pool.add(strip.submat(region));
+        }
+    }
+
+    private void normalize(List<Mat> chips){
+
+        if (illuminationNormalization != null){
+            illuminationNormalization.normalize(strip, regions.subList(0, chips.size()).toArray(new Rect[chips.size()]));
+        } else {
+            for (Mat chip : chips){
+                Imgproc.equalizeHist(chip, chip);
+            }
+        }
+    }
+
+    private void extract(Mat image, Rect face, Mat chip){
+
+        Mat crop = image.submat(face);
+        int interpolation = face.width > chipSize.width ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR;
+        if (image.channels() == 1){
+            Imgproc.resize(crop, chip, chipSize, 0, 0, interpolation);
+        } else {
+            if (colorChip == null){
+                colorChip = new Mat();
+            }
+            Imgproc.resize(crop, colorChip, chipSize, 0, 0, interpolation);
+            Imgproc.cvtColor(colorChip, chip, image.channels() == 4 ? Imgproc.COLOR_RGBA2GRAY : Imgproc.COLOR_RGB2GRAY);
+        }
+        // Only the header of the crop is released, its pixels belong to the image
+        crop.release();
+    }
+
+    /**
+     * @return Side of the chips in pixels
+     */
+    public int getChipSize(){
+        return (int) chipSize.width;
+    }
+
+    /**
+     * Releases the pooled chips, the extractor may still be used afterwards
+     */
+    public void release(){
+
+        for (Mat chip : pool){
+            chip.release();
+        }
+        pool.clear();
+        regions.clear();
+        if (strip != null){
+            strip.release();
+            strip = null;
+        }
+        if (colorChip != null){
+            colorChip.release();
+            colorChip = null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class drops near-duplicate training faces before they are enrolled
+ *
+ * Bursts of almost identical frames bloat the gallery and slow every search down without
+ * making recognition any more accurate. Every face is reduced to its {@link PerceptualHash}
+ * and dropped if a face of the same person already enrolled, or kept earlier in the same
+ * batch, has a hash within the Hamming radius. The hashes of every person are kept in a
+ * {@link BkTree} so the lookup does not compare against all of them
+ *
+ * Selecting faces does not remember them, their hashes are remembered with
+ * {@link #remember(int, long[])} once the faces are actually enrolled, so a failed
+ * enrollment does not cause the faces to be dropped when they are enrolled again
+ *
+ * @author ArmandoNCM
+ */
+public class FaceDeduplicator {
+
+    /**
+     * Default maximum number of differing hash bits for two faces to be duplicates
+     */
+    public static final int DEFAULT_RADIUS = 6;
+
+    private final int radius;
+
+    private final Map<Integer, BkTree> treesByLabel = new HashMap<>();
+
+    private final Statistics statistics = new Statistics();
+
+    public FaceDeduplicator(){
+        this(DEFAULT_RADIUS);
+    }
+
+    /**
+     * @param radius Maximum number of differing hash bits for two faces to be duplicates,
+     *               a negative radius keeps every face
+     */
+    public FaceDeduplicator(int radius){
+        this.radius = radius;
+    }
+
+    /**
+     * @return Maximum number of differing hash bits for two faces to be duplicates
+     */
+    public int getRadius(){
+        return radius;
+    }
+
+    /**
+     * Selects the faces that duplicate neither a remembered face of the same person nor a
+     * face selected earlier in the same batch, nothing is remembered
+     * @param label Label of the person the faces belong to
+     * @param faces Cropped gray scale faces
+     * @return Faces that are not near-duplicates, in their original order, and their hashes
+     */
+    public synchronized Selection select(int label, Mat[] faces){
+
+        long start = System.nanoTime();
+        BkTree tree = treesByLabel.get(label);
+        List<Mat> kept = new ArrayList<>();
+        long[] hashes = new long[faces.length];
+        for (Mat face : faces){
+            long hash = PerceptualHash.dHash(face);
+            if (radius < 0 || !isDuplicate(tree, hashes, kept.size(), hash)){
+                hashes[kept.size()] = hash;
+                kept.add(face);
+            }
+        }
+        statistics.facesSeen += faces.length;
+        statistics.facesKept += kept.size();
+        statistics.nanoseconds += System.nanoTime() - start;
+        return new Selection(kept.toArray(new Mat[kept.size()]), Arrays.copyOf(hashes, kept.size()));
+    }
+
+    private boolean isDuplicate(BkTree tree, long[] batch, int batchSize, long hash){
+
+        if (tree != null && tree.containsWithin(hash, radius)){
+            return true;
+        }
+        // Batches are small, their own hashes are compared one by one
+        for (int i = 0; i < batchSize; i++){
+            if (PerceptualHash.hammingDistance(batch[i], hash) <= radius){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remembers the hashes of enrolled faces, later faces within the radius of any of them
+     * are dropped
+     * @param label Label of the person the faces belong to
+     * @param hashes Hashes of the faces, see {@link Selection#getHashes()}
+     */
+    public synchronized void remember(int label, long[] hashes){
+
+        BkTree tree = treesByLabel.get(label);
+        if (tree == null){
+            tree = new BkTree();
+            treesByLabel.put(label, tree);
+        }
+        for (long hash : hashes){
+            tree.add(hash);
+        }
+    }
+
+    /**
+     * Forgets the faces of a person, e.g. when they are removed from the gallery
+     * @param label Label of the person
+     */
+    public synchronized void forget(int label){
+        treesByLabel.remove(label);
+    }
+
+    /**
+     * @return Copy of the figures observed so far
+     */
+    public synchronized Statistics getStatistics(){
+
+        Statistics copy = new Statistics();
+        copy.facesSeen = statistics.facesSeen;
+        copy.facesKept = statistics.facesKept;
+        copy.nanoseconds = statistics.nanoseconds;
+        return copy;
+    }
+
+    /**
+     * Faces selected for enrollment along with their hashes
+     */
+    public static class Selection {
+
+        private final Mat[] faces;
+
+        private final long[] hashes;
+
+        private Selection(Mat[] faces, long[] hashes){
+            this.faces = faces;
+            this.hashes = hashes;
+        }
+
+        /**
+         * @return Faces that are not near-duplicates
+         */
+        public Mat[] getFaces(){
+            return faces;
+        }
+
+        /**
+         * @return Hash of every selected face, in the same order
+         */
+        public long[] getHashes(){
+            return hashes;
+        }
+    }
+
+    /**
+     * Gallery size reduction and throughput of the deduplication
+     */
+    public static class Statistics {
+
+        private long facesSeen;
+
+        private long facesKept;
+
+        private long nanoseconds;
+
+        /**
+         * @return Number of faces filtered
+         */
+        public long getFacesSeen(){
+            return facesSeen;
+        }
+
+        /**
+         * @return Number of faces kept for enrollment
+         */
+        public long getFacesKept(){
+            return facesKept;
+        }
+
+        /**
+         * @return Fraction of the faces dropped as duplicates, i.e. the reduction of the
+         * gallery growth
+         */
+        public double getReduction(){
+            return facesSeen == 0 ? 0 : 1 - (double) facesKept / facesSeen;
+        }
+
+        /**
+         * @return Number of faces hashed and looked up per second
+         */
+        public double getThroughput(){
+            return nanoseconds == 0 ? 0 : facesSeen * 1e9 / nanoseconds;
+        }
+
+        @Override
+        public String toString(){
+            return "Statistics{facesSeen=" + facesSeen + ", facesKept=" + facesKept
+                    + ", reduction=" + getReduction() + ", throughput=" + getThroughput() + "}";
+        }
+    }
+}
@@ -29,6 +29,31 @@ public class FaceDetection {
 
     private static final String PRE_TRAINED_DATA_FILENAME = "opencv_data.xml";
 
+    /**
+     * Minimum size of detected faces in pixels
+     */
+    public static final int MINIMUM_FACE_SIZE = 50;
+
+    /**
+     * Maximum size of detected faces in pixels
+     */
+    public static final int MAXIMUM_FACE_SIZE = 2000;
+
+    /**
+     * Smallest face worth detecting as a fraction of the shorter side of the image, e.g.
+     * the faces at the back of a group photo; images need no more resolution than the one
+     * at which such a face is {@link #MINIMUM_FACE_SIZE} pixels large
+     */
+    public static final double MINIMUM_FACE_FRACTION = 0.05;
+
+    /**
+     * @return Minimum length in pixels of the shorter side of the images given to the
+     * detector, at which the smallest faces worth detecting are still large enough
+     */
+    public static int getMinimumImageShortSide(){
+        return (int) Math.ceil(MINIMUM_FACE_SIZE / MINIMUM_FACE_FRACTION);
+    }
+
     private static FaceDetection instance;
 
     private CascadeClassifier cascadeClassifier;
@@ -72,8 +97,8 @@ public class FaceDetection {
         // The detection of faces writes the ROI's to a Matrix of Rectangles
         MatOfRect matOfRect = new MatOfRect();
         // Minimum and Maximum size of detected objects (faces) in pixels
-        Size minSize = new Size(50,50);
-        Size maxSize = new Size(2000, 2000);
+        Size minSize = new Size(MINIMUM_FACE_SIZE, MINIMUM_FACE_SIZE);
+        Size maxSize = new Size(MAXIMUM_FACE_SIZE, MAXIMUM_FACE_SIZE);
         /*
          * scaleFactor: image is scaled down by 30%
          * minNeighbors: The higher the lower chance of detection but higher quality of the
@@ -90,6 +115,49 @@ public class FaceDetection {
         return rectangles;
     }
 
+    /**
+     * Detect faces on the smallest level of a pyramid still large enough for the smallest
+     * faces worth detecting, see {@link #getMinimumImageShortSide()}
+     * @param pyramid Pyramid of the image
+     * @return Array of OpenCV Rectangle objects representing ROI's (Regions of Interest) on
+     * the base of the pyramid
+     */
+    public Rect[] detectFaces(ImagePyramid pyramid){
+        return detectFaces(pyramid, null);
+    }
+
+    /**
+     * Detect faces like {@link #detectFaces(ImagePyramid)} on a copy of the level evened
+     * out by an illumination normalization stage, the pyramid is left untouched so that its
+     * levels can still be shown or cropped
+     * @param pyramid Pyramid of the image
+     * @param normalization Stage normalizing the level, null to detect on the level as is
+     * @return Array of OpenCV Rectangle objects representing ROI's (Regions of Interest) on
+     * the base of the pyramid
+     */
+    public Rect[] detectFaces(ImagePyramid pyramid, IlluminationNormalization normalization){
+
+        int level = pyramid.levelFor(getMinimumImageShortSide());
+        Mat image = pyramid.getLevel(level);
+        Rect[] rectangles;
+        if (normalization == null){
+            rectangles = detectFaces(image);
+        } else {
+            ImageBufferPool pool = ImageBufferPool.getInstance();
+            Mat normalized = pool.obtainMatrix(image.rows(), image.cols(), image.type());
+            try {
+                normalization.normalize(image, normalized);
+                rectangles = detectFaces(normalized);
+            } finally {
+                pool.recycle(normalized);
+            }
+        }
+        for (int i = 0; i < rectangles.length; i++){
+            rectangles[i] = pyramid.toBase(rectangles[i], level);
+        }
+        return rectangles;
+    }
+
     /**
      * Crops a subsection of the image determined by the given rectangle
      * @param image Image to be cropped
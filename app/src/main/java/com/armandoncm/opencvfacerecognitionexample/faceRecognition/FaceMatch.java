@@ -0,0 +1,48 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+/**
+ * Result of a gallery search: the label of an enrolled face template together with
+ * its position in the gallery and its distance to the query
+ *
+ * @author ArmandoNCM
+ */
+public class FaceMatch {
+
+    private final int label;
+
+    private final int templateIndex;
+
+    private final float distance;
+
+    public FaceMatch(int label, int templateIndex, float distance){
+        this.label = label;
+        this.templateIndex = templateIndex;
+        this.distance = distance;
+    }
+
+    /**
+     * @return Label of the person the matched template was enrolled for
+     */
+    public int getLabel(){
+        return label;
+    }
+
+    /**
+     * @return Index of the matched template inside the gallery that produced this match
+     */
+    public int getTemplateIndex(){
+        return templateIndex;
+    }
+
+    /**
+     * @return Distance between the query and the matched template, the lower the closer
+     */
+    public float getDistance(){
+        return distance;
+    }
+
+    @Override
+    public String toString(){
+        return "FaceMatch{label=" + label + ", templateIndex=" + templateIndex + ", distance=" + distance + "}";
+    }
+}
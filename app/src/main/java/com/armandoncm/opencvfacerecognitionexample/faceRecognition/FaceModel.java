@@ -0,0 +1,406 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Output of the face recognition model training: the labelled gallery of face templates,
+ * the projection that maps face images into the template space and the optional search
+ * indexes built over the templates
+ *
+ * Models loaded from a {@link ModelFile} keep their data in the memory mapping, opening
+ * one costs the same regardless of the gallery size and the index structures are only
+ * rebuilt when they are first requested
+ *
+ * @author ArmandoNCM
+ */
+public class FaceModel {
+
+    private final RecognitionMethod method;
+
+    private final int dimension;
+
+    private final int inputDimension;
+
+    private final IntBuffer labels;
+
+    private final FloatBuffer templates;
+
+    private final FloatBuffer mean;
+
+    private final FloatBuffer projection;
+
+    private final ModelFile source;
+
+    private InvertedFileIndex invertedFileIndex;
+
+    private ProductQuantizedGallery compressedGallery;
+
+    private Mat meanMatrix;
+
+    private Mat projectionMatrix;
+
+    private int[] dimensionOrder;
+
+    private boolean dimensionOrderComputed;
+
+    /**
+     * @param method Kind of templates the model is made of
+     * @param dimension Number of components of the face templates
+     * @param labels Label of every template
+     * @param templates Templates laid out one after the other
+     * @param inputDimension Number of pixels of the face images the projection applies to
+     * @param mean Mean face image subtracted before projecting, null if there is no projection
+     * @param projection Row-major projection matrix of inputDimension rows and dimension
+     *                   columns, null if templates are not projected
+     */
+    public FaceModel(RecognitionMethod method, int dimension, int[] labels, float[] templates, int inputDimension,
+                     float[] mean, float[] projection){
+
+        this(method, dimension, IntBuffer.wrap(labels), FloatBuffer.wrap(templates, 0, labels.length * dimension), inputDimension,
+                mean == null ? null : FloatBuffer.wrap(mean),
+                projection == null ? null : FloatBuffer.wrap(projection), null);
+    }
+
+    private FaceModel(RecognitionMethod method, int dimension, IntBuffer labels, FloatBuffer templates, int inputDimension,
+                      FloatBuffer mean, FloatBuffer projection, ModelFile source){
+
+        if (templates.remaining() != labels.remaining() * dimension){
+            throw new IllegalArgumentException("Expected " + labels.remaining() + " templates of dimension " + dimension);
+        }
+        this.method = method;
+        this.dimension = dimension;
+        this.inputDimension = inputDimension;
+        this.labels = labels;
+        this.templates = templates;
+        this.mean = mean;
+        this.projection = projection;
+        this.source = source;
+    }
+
+    /**
+     * Opens a model file by memory-mapping it, no template is read until it is accessed
+     * @param file Model file written by {@link #save(File)}
+     * @return Loaded model
+     * @throws IOException If the file could not be opened or is not a valid model file
+     */
+    public static FaceModel load(File file) throws IOException {
+
+        ModelFile modelFile = ModelFile.open(file);
+        int dimension = modelFile.getColumns(ModelFile.SECTION_TEMPLATES);
+        FloatBuffer mean = null;
+        FloatBuffer projection = null;
+        int inputDimension = 0;
+        if (modelFile.hasSection(ModelFile.SECTION_PROJECTION)){
+            projection = modelFile.getFloatSection(ModelFile.SECTION_PROJECTION);
+            mean = modelFile.getFloatSection(ModelFile.SECTION_MEAN);
+            inputDimension = modelFile.getRows(ModelFile.SECTION_PROJECTION);
+        }
+        RecognitionMethod method = RecognitionMethod.PIXELS;
+        if (modelFile.hasSection(ModelFile.SECTION_METHOD)){
+            int ordinal = modelFile.getIntSection(ModelFile.SECTION_METHOD).get(0);
+            if (ordinal < 0 || ordinal >= RecognitionMethod.values().length){
+                throw new IOException("Unknown recognition method " + ordinal + ": " + file);
+            }
+            method = RecognitionMethod.values()[ordinal];
+        }
+        return new FaceModel(method, dimension, modelFile.getIntSection(ModelFile.SECTION_LABELS),
+                modelFile.getFloatSection(ModelFile.SECTION_TEMPLATES), inputDimension, mean, projection, modelFile);
+    }
+
+    /**
+     * Writes the model, including its index structures, to a model file
+     * @param file Destination file
+     * @throws IOException If the file could not be written
+     */
+    public void save(File file) throws IOException {
+        save(file, new GallerySegment[0]);
+    }
+
+    /**
+     * Writes the model followed by templates enrolled after it to a model file, the
+     * templates are streamed from their segments and never gathered in a single array
+     * The index structures of the model are written too, the appended templates being
+     * assigned to their nearest coarse centroid and encoded with the model's quantizer
+     * @param file Destination file
+     * @param appended Segments of templates appended after the ones of the model, in order
+     * @throws IOException If the file could not be written
+     */
+    void save(File file, GallerySegment[] appended) throws IOException {
+
+        int baseCount = size();
+        int count = baseCount;
+        IntBuffer[] labelParts = new IntBuffer[appended.length + 1];
+        FloatBuffer[] templateParts = new FloatBuffer[appended.length + 1];
+        labelParts[0] = labels.duplicate();
+        templateParts[0] = templates.duplicate();
+        for (int i = 0; i < appended.length; i++){
+            if (appended[i].getDimension() != dimension){
+                throw new IllegalArgumentException("Expected templates of dimension " + dimension + " but got " + appended[i].getDimension());
+            }
+            labelParts[i + 1] = appended[i].getLabels();
+            templateParts[i + 1] = appended[i].getTemplates();
+            count += appended[i].size();
+        }
+        ModelFile.Writer writer = new ModelFile.Writer()
+                .addSection(ModelFile.SECTION_LABELS, count, 1, labelParts)
+                .addSection(ModelFile.SECTION_TEMPLATES, count, dimension, templateParts)
+                .addSection(ModelFile.SECTION_METHOD, 1, 1, IntBuffer.wrap(new int[]{method.ordinal()}));
+        if (projection != null){
+            writer.addSection(ModelFile.SECTION_MEAN, 1, inputDimension, mean.duplicate());
+            writer.addSection(ModelFile.SECTION_PROJECTION, inputDimension, dimension, projection.duplicate());
+        }
+
+        // The index structures are taken as they are, restoring them from the file is not needed
+        InvertedFileIndex index;
+        ProductQuantizedGallery gallery;
+        synchronized (this) {
+            index = invertedFileIndex;
+            gallery = compressedGallery;
+        }
+        float[] template = new float[dimension];
+
+        float[] centroids = null;
+        IntBuffer assignments = null;
+        if (index != null){
+            centroids = index.getCentroids();
+            assignments = IntBuffer.wrap(index.getAssignments(baseCount));
+        } else if (source != null && source.hasSection(ModelFile.SECTION_IVF_CENTROIDS)){
+            FloatBuffer centroidSection = source.getFloatSection(ModelFile.SECTION_IVF_CENTROIDS);
+            centroids = new float[centroidSection.remaining()];
+            centroidSection.get(centroids);
+            assignments = source.getIntSection(ModelFile.SECTION_IVF_ASSIGNMENTS);
+        }
+        if (centroids != null){
+            int listCount = centroids.length / dimension;
+            int[] appendedAssignments = new int[count - baseCount];
+            int position = 0;
+            for (GallerySegment segment : appended){
+                for (int i = 0; i < segment.size(); i++){
+                    segment.getTemplate(i, template);
+                    appendedAssignments[position++] = VectorDistances.nearestRow(template, 0, centroids, listCount, dimension);
+                }
+            }
+            writer.addSection(ModelFile.SECTION_IVF_CENTROIDS, listCount, dimension, FloatBuffer.wrap(centroids));
+            writer.addSection(ModelFile.SECTION_IVF_ASSIGNMENTS, count, 1, assignments, IntBuffer.wrap(appendedAssignments));
+        }
+
+        ProductQuantizer quantizer = null;
+        ByteBuffer codes = null;
+        if (gallery != null){
+            quantizer = gallery.getQuantizer();
+            codes = ByteBuffer.wrap(gallery.getCodes(), 0, baseCount * quantizer.getCodeSize());
+        } else if (source != null && source.hasSection(ModelFile.SECTION_PQ_CODEBOOKS)){
+            quantizer = restoreQuantizer();
+            codes = source.getByteSection(ModelFile.SECTION_PQ_CODES);
+        }
+        if (quantizer != null){
+            int codeSize = quantizer.getCodeSize();
+            byte[] appendedCodes = new byte[(count - baseCount) * codeSize];
+            int position = 0;
+            for (GallerySegment segment : appended){
+                for (int i = 0; i < segment.size(); i++){
+                    segment.getTemplate(i, template);
+                    quantizer.encode(template, 0, appendedCodes, position++ * codeSize);
+                }
+            }
+            writer.addSection(ModelFile.SECTION_PQ_CODEBOOKS, quantizer.getSubspaces() * quantizer.getCentroids(),
+                    dimension / quantizer.getSubspaces(), FloatBuffer.wrap(quantizer.getCodebooks()));
+            writer.addSection(ModelFile.SECTION_PQ_CODES, count, codeSize, codes, ByteBuffer.wrap(appendedCodes));
+        }
+
+        writer.writeTo(file);
+    }
+
+    /**
+     * @return Number of templates in the gallery
+     */
+    public int size(){
+        return labels.remaining();
+    }
+
+    /**
+     * @return Kind of templates the model is made of
+     */
+    public RecognitionMethod getMethod(){
+        return method;
+    }
+
+    /**
+     * @return Number of components of the face templates
+     */
+    public int getDimension(){
+        return dimension;
+    }
+
+    /**
+     * @return Number of pixels of the face images the projection applies to, zero if
+     * templates are not projected
+     */
+    public int getInputDimension(){
+        return inputDimension;
+    }
+
+    /**
+     * @param index Index of a template
+     * @return Label of the template
+     */
+    public int getLabel(int index){
+        return labels.get(labels.position() + index);
+    }
+
+    /**
+     * Copies a template out of the gallery
+     * @param index Index of the template
+     * @param destination Array receiving the template
+     */
+    public void getTemplate(int index, float[] destination){
+
+        FloatBuffer view = templates.duplicate();
+        view.position(templates.position() + index * dimension);
+        view.get(destination, 0, dimension);
+    }
+
+    /**
+     * @return Read-only view over the labels of all the templates
+     */
+    public IntBuffer getLabels(){
+        return labels.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Read-only view over all the templates laid out one after the other
+     */
+    public FloatBuffer getTemplates(){
+        return templates.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Read-only view over the mean face image, null if templates are not projected
+     */
+    public FloatBuffer getMean(){
+        return mean == null ? null : mean.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Read-only view over the row-major projection matrix, null if templates are
+     * not projected
+     */
+    public FloatBuffer getProjection(){
+        return projection == null ? null : projection.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Mean face image as a single row OpenCV Matrix, created once and shared by all
+     * callers which must not modify it, null if templates are not projected
+     */
+    public synchronized Mat getMeanMatrix(){
+
+        if (meanMatrix == null && mean != null){
+            meanMatrix = toMatrix(mean, 1, inputDimension);
+        }
+        return meanMatrix;
+    }
+
+    /**
+     * @return Projection as an OpenCV Matrix of inputDimension rows and dimension columns,
+     * created once and shared by all callers which must not modify it, null if templates are
+     * not projected
+     */
+    public synchronized Mat getProjectionMatrix(){
+
+        if (projectionMatrix == null && projection != null){
+            projectionMatrix = toMatrix(projection, inputDimension, dimension);
+        }
+        return projectionMatrix;
+    }
+
+    private static Mat toMatrix(FloatBuffer buffer, int rows, int columns){
+
+        float[] values = new float[rows * columns];
+        buffer.duplicate().get(values);
+        Mat matrix = new Mat(rows, columns, CvType.CV_32F);
+        matrix.put(0, 0, values);
+        return matrix;
+    }
+
+    /**
+     * Order in which early abandoning distance kernels should visit the template components
+     * Projected templates already have their components sorted by decreasing variance, the
+     * components of the other kinds of templates are sorted by their variance in this model
+     * @return Component indices sorted by decreasing variance, null for the natural order
+     */
+    public synchronized int[] getDimensionOrder(){
+
+        if (!dimensionOrderComputed){
+            if (projection == null && size() > 1){
+                dimensionOrder = VectorDistances.orderByVariance(templates.duplicate(), size(), dimension);
+            }
+            dimensionOrderComputed = true;
+        }
+        return dimensionOrder;
+    }
+
+    /**
+     * @return Inverted-file index over the templates, restored from the model file on first
+     * use, null if the model has none
+     */
+    public synchronized InvertedFileIndex getInvertedFileIndex(){
+
+        if (invertedFileIndex == null && source != null && source.hasSection(ModelFile.SECTION_IVF_CENTROIDS)){
+            invertedFileIndex = InvertedFileIndex.restore(method, dimension,
+                    source.getFloatSection(ModelFile.SECTION_IVF_CENTROIDS),
+                    source.getIntSection(ModelFile.SECTION_IVF_ASSIGNMENTS), labels.duplicate(), templates.duplicate());
+        }
+        return invertedFileIndex;
+    }
+
+    /**
+     * @param invertedFileIndex Inverted-file index holding every template of this model
+     *                          under its index
+     */
+    public synchronized void setInvertedFileIndex(InvertedFileIndex invertedFileIndex){
+        this.invertedFileIndex = invertedFileIndex;
+    }
+
+    /**
+     * @return Product-quantized copy of the gallery, restored from the model file on first
+     * use, null if the model has none
+     */
+    public synchronized ProductQuantizedGallery getCompressedGallery(){
+
+        if (compressedGallery == null && source != null && source.hasSection(ModelFile.SECTION_PQ_CODEBOOKS)){
+            ProductQuantizer quantizer = restoreQuantizer();
+            ByteBuffer codeSection = source.getByteSection(ModelFile.SECTION_PQ_CODES);
+            byte[] codes = new byte[codeSection.remaining()];
+            codeSection.get(codes);
+            int[] labelValues = new int[size()];
+            labels.duplicate().get(labelValues);
+            compressedGallery = new ProductQuantizedGallery(quantizer, codes, labelValues);
+        }
+        return compressedGallery;
+    }
+
+    private ProductQuantizer restoreQuantizer(){
+
+        int subspaces = source.getColumns(ModelFile.SECTION_PQ_CODES);
+        FloatBuffer codebookSection = source.getFloatSection(ModelFile.SECTION_PQ_CODEBOOKS);
+        float[] codebooks = new float[codebookSection.remaining()];
+        codebookSection.get(codebooks);
+        return new ProductQuantizer(dimension, subspaces, source.getRows(ModelFile.SECTION_PQ_CODEBOOKS) / subspaces, codebooks);
+    }
+
+    /**
+     * @param compressedGallery Product-quantized gallery holding every template of this model
+     *                          in the same order
+     */
+    public synchronized void setCompressedGallery(ProductQuantizedGallery compressedGallery){
+        this.compressedGallery = compressedGallery;
+    }
+}
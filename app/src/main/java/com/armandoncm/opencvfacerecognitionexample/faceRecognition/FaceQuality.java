@@ -0,0 +1,154 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Cheap quality score of a cropped face, used to skip the faces that are not worth
+ * recognizing or enrolling
+ *
+ * The score combines three measures, each mapped to the [0, 1] range:
+ * sharpness, the variance of the Laplacian, which collapses on blurry faces; size, the
+ * pixel area of the crop, as tiny crops carry little detail; and exposure, the spread
+ * between the dark and bright percentiles of the histogram, which collapses on under or
+ * over exposed faces. The measures are taken on a small fixed-size copy of the face so
+ * that assessing a face costs the same whatever its size, a fraction of a millisecond
+ *
+ * @author ArmandoNCM
+ */
+public class FaceQuality {
+
+    /**
+     * Default score below which faces are not recognized nor enrolled
+     */
+    public static final double DEFAULT_MINIMUM_SCORE = 0.3;
+
+    /**
+     * Side of the copy of the face the sharpness and exposure are measured on
+     */
+    private static final int ASSESSMENT_SIZE = 64;
+
+    /**
+     * Laplacian variance of a sharp face at the assessment size
+     */
+    private static final double SHARP_LAPLACIAN_VARIANCE = 400;
+
+    /**
+     * Side of a face crop large enough to carry all the detail the templates use
+     */
+    private static final double FULL_DETAIL_SIDE = 96;
+
+    /**
+     * Spread between the dark and bright percentiles of a well exposed face
+     */
+    private static final double WELL_EXPOSED_SPREAD = 128;
+
+    /**
+     * Fraction of the pixels excluded at each end of the histogram when measuring its spread
+     */
+    private static final double PERCENTILE = 0.05;
+
+    private final double sharpness;
+
+    private final double size;
+
+    private final double exposure;
+
+    private FaceQuality(double sharpness, double size, double exposure){
+        this.sharpness = sharpness;
+        this.size = size;
+        this.exposure = exposure;
+    }
+
+    /**
+     * Assesses the quality of a cropped face
+     * @param face Cropped gray scale face
+     * @return Quality of the face
+     */
+    public static FaceQuality assess(Mat face){
+
+        Mat small = new Mat();
+        Imgproc.resize(face, small, new Size(ASSESSMENT_SIZE, ASSESSMENT_SIZE), 0, 0, Imgproc.INTER_AREA);
+
+        Mat laplacian = new Mat();
+        Imgproc.Laplacian(small, laplacian, CvType.CV_16S);
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble standardDeviation = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, standardDeviation);
+        double deviation = standardDeviation.toArray()[0];
+
+        byte[] pixels = new byte[ASSESSMENT_SIZE * ASSESSMENT_SIZE];
+        small.get(0, 0, pixels);
+
+        small.release();
+        laplacian.release();
+        mean.release();
+        standardDeviation.release();
+
+        double sharpness = Math.min(1, deviation * deviation / SHARP_LAPLACIAN_VARIANCE);
+        double side = Math.sqrt(face.size().area());
+        double size = Math.min(1, side / FULL_DETAIL_SIDE);
+        double exposure = Math.min(1, histogramSpread(pixels) / WELL_EXPOSED_SPREAD);
+        return new FaceQuality(sharpness, size, exposure);
+    }
+
+    /**
+     * @return Distance between the dark and bright percentiles of the pixel intensities
+     */
+    private static int histogramSpread(byte[] pixels){
+
+        int[] histogram = new int[256];
+        for (byte pixel : pixels){
+            histogram[pixel & 0xFF]++;
+        }
+        int excluded = (int) (pixels.length * PERCENTILE);
+        int dark = 0;
+        for (int count = 0; dark < 255 && count + histogram[dark] <= excluded; dark++){
+            count += histogram[dark];
+        }
+        int bright = 255;
+        for (int count = 0; bright > 0 && count + histogram[bright] <= excluded; bright--){
+            count += histogram[bright];
+        }
+        return Math.max(0, bright - dark);
+    }
+
+    /**
+     * @return Sharpness of the face, from 0 for a flat blur to 1 for a sharp face
+     */
+    public double getSharpness(){
+        return sharpness;
+    }
+
+    /**
+     * @return Size of the crop, from 0 to 1 for crops large enough to carry all the detail
+     */
+    public double getSize(){
+        return size;
+    }
+
+    /**
+     * @return Exposure of the face, from 0 for a uniform intensity to 1 for a well spread
+     * histogram
+     */
+    public double getExposure(){
+        return exposure;
+    }
+
+    /**
+     * @return Overall quality, the geometric mean of the sharpness, size and exposure, so
+     * that any of them being poor is enough to make the face poor
+     */
+    public double getScore(){
+        return Math.cbrt(sharpness * size * exposure);
+    }
+
+    @Override
+    public String toString(){
+        return "FaceQuality{score=" + getScore() + ", sharpness=" + sharpness + ", size=" + size + ", exposure=" + exposure + "}";
+    }
+}
@@ -0,0 +1,574 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is responsible for recognizing cropped faces against the gallery of
+ * enrolled faces kept by {@link ModelTraining}
+ * Keep in mind the difference between detection and recognition formal definitions when
+ * using this class
+ *
+ * Every recognition works on the gallery snapshot current when it starts, so it never
+ * waits for enrollments, compactions or retraining happening at the same time
+ * The copies of the gallery kept by the search modes are updated when snapshots are
+ * published. The sharded gallery mode owns worker threads, {@link #close()} stops them
+ *
+ * @author ArmandoNCM
+ */
+public class FaceRecognition {
+
+    /**
+     * Maximum number of K-Means iterations training the coarse centroids of the
+     * inverted-file index
+     */
+    private static final int INVERTED_FILE_ITERATIONS = 20;
+
+    private final ModelTraining modelTraining;
+
+    private int shardCount;
+
+    private volatile Mirror<ShardedGallery> shardedGallery;
+
+    private int hashTables;
+
+    private int hashBits;
+
+    private volatile Mirror<HistogramLshIndex> hashIndex;
+
+    private final HistogramLshIndex.Statistics hashingStatistics = new HistogramLshIndex.Statistics();
+
+    private int invertedFileLists;
+
+    private volatile int invertedFileProbes;
+
+    private volatile Mirror<InvertedFileIndex> invertedFileIndex;
+
+    private boolean quantizedSearch;
+
+    private volatile int reRankDepth;
+
+    private volatile Mirror<ProductQuantizedGallery> quantizedGallery;
+
+    private volatile double minimumQuality = FaceQuality.DEFAULT_MINIMUM_SCORE;
+
+    private TemplateEncoding templateEncoding = TemplateEncoding.FLOAT32;
+
+    private volatile Mirror<CompactGallery> compactGallery;
+
+    private final ModelTraining.SnapshotListener snapshotListener = new ModelTraining.SnapshotListener() {
+        @Override
+        public void onSnapshotPublished() {
+            updateMirrors();
+        }
+    };
+
+    /**
+     * Copy of the gallery in the structure of a search mode, tagged with the model version
+     * its templates were extracted with
+     * The copies are updated when snapshots are published, holding the monitor, and are
+     * published through volatile writes, so recognitions read them without waiting and
+     * search the snapshot itself when the copy belongs to another model version
+     */
+    private static class Mirror<T> {
+
+        private final T structure;
+
+        private final int modelVersion;
+
+        private Mirror(T structure, int modelVersion){
+            this.structure = structure;
+            this.modelVersion = modelVersion;
+        }
+    }
+
+    /**
+     * @param modelTraining Owner of the gallery faces are recognized against
+     */
+    public FaceRecognition(ModelTraining modelTraining){
+
+        this.modelTraining = modelTraining;
+        modelTraining.addSnapshotListener(snapshotListener);
+    }
+
+    /**
+     * Enables the sharded gallery mode, in which the gallery is copied into shards owned by
+     * dedicated worker threads and every query is searched on all of them in parallel
+     * Suited to batch jobs running many queries on a multi-core machine
+     * It is meant to be configured before recognitions start
+     * @param shardCount Number of shards, zero or one to search on the calling thread
+     */
+    public synchronized void setShardCount(int shardCount){
+
+        this.shardCount = shardCount;
+        retireShards();
+        updateShards(modelTraining.getSnapshot());
+    }
+
+    /**
+     * Unpublishes the sharded gallery, its workers stop once the searches running on it
+     * are over. To be called while holding the monitor
+     */
+    private void retireShards(){
+
+        Mirror<ShardedGallery> retired = shardedGallery;
+        shardedGallery = null;
+        if (retired != null){
+            retired.structure.close();
+        }
+    }
+
+    /**
+     * Enables the locality-sensitive hashing prefilter for LBPH galleries, only the
+     * templates sharing a hash bucket with the query get their exact chi-square distance
+     * computed, see {@link HistogramLshIndex}
+     * It is meant to be configured before recognitions start
+     * @param tables Number of hash tables, zero disables the prefilter
+     * @param bits Number of bits of every hash
+     */
+    public synchronized void setHashing(int tables, int bits){
+
+        hashTables = tables;
+        hashBits = bits;
+        hashIndex = null;
+        updateHashIndex(modelTraining.getSnapshot());
+    }
+
+    /**
+     * Enables the inverted-file search, in which the gallery is partitioned by K-Means
+     * centroids and only the templates of the partitions closest to the query get their
+     * exact distance computed, see {@link InvertedFileIndex}
+     * It is meant to be configured before recognitions start
+     * @param lists Number of partitions (nlist), zero disables the inverted-file search
+     * @param probes Number of partitions scanned per query (nprobe), the more the higher
+     *               the recall
+     */
+    public synchronized void setInvertedFileSearch(int lists, int probes){
+
+        invertedFileLists = lists;
+        invertedFileProbes = probes;
+        invertedFileIndex = null;
+        updateInvertedFileIndex(modelTraining.getSnapshot());
+    }
+
+    /**
+     * Enables searching a product-quantized copy of the gallery, whose distances are looked
+     * up in a table per query instead of computed, see {@link ProductQuantizedGallery}
+     * The copy is compressed with the quantizer trained along with the model, see
+     * {@link ModelTraining#setProductQuantization(int)}, galleries of models without one
+     * are searched by the other modes
+     * It is meant to be configured before recognitions start
+     * @param enabled Whether the product-quantized search is enabled
+     * @param reRankDepth Number of candidates of the compressed search whose exact distance
+     *                    is computed, zero to return approximate distances
+     */
+    public synchronized void setQuantizedSearch(boolean enabled, int reRankDepth){
+
+        quantizedSearch = enabled;
+        this.reRankDepth = reRankDepth;
+        quantizedGallery = null;
+        updateQuantizedGallery(modelTraining.getSnapshot());
+    }
+
+    /**
+     * Sets the quality score below which faces are not recognized, see {@link FaceQuality}
+     * @param minimumQuality Minimum score, zero recognizes every face
+     */
+    public void setMinimumQuality(double minimumQuality){
+        this.minimumQuality = minimumQuality;
+    }
+
+    /**
+     * @return Quality score below which faces are not recognized
+     */
+    public double getMinimumQuality(){
+        return minimumQuality;
+    }
+
+    /**
+     * Enables searching a copy of the gallery stored in a compact encoding, which cuts the
+     * memory bandwidth of the linear scans at a small loss of accuracy, see
+     * {@link CompactGallery#measure(GallerySnapshot, TemplateEncoding, float[][], int)}
+     * It is meant to be configured before recognitions start
+     * @param encoding Encoding of the copy, {@link TemplateEncoding#FLOAT32} searches the
+     *                 gallery snapshots directly
+     */
+    public synchronized void setTemplateEncoding(TemplateEncoding encoding){
+
+        templateEncoding = encoding;
+        compactGallery = null;
+        updateCompactGallery(modelTraining.getSnapshot());
+    }
+
+    /**
+     * Brings the copies of the gallery of the enabled search modes up to date with the
+     * current snapshot, called whenever a snapshot is published
+     */
+    private synchronized void updateMirrors(){
+
+        // Notifications may arrive out of order, the current snapshot is never older
+        GallerySnapshot snapshot = modelTraining.getSnapshot();
+        updateHashIndex(snapshot);
+        updateInvertedFileIndex(snapshot);
+        updateQuantizedGallery(snapshot);
+        updateCompactGallery(snapshot);
+        updateShards(snapshot);
+    }
+
+    /**
+     * Brings the compact copy of the gallery up to date with a snapshot, enrollments are
+     * appended to it and a retrained model causes it to be rebuilt and published again
+     * To be called while holding the monitor
+     */
+    private void updateCompactGallery(GallerySnapshot snapshot){
+
+        if (templateEncoding == TemplateEncoding.FLOAT32){
+            return;
+        }
+        Mirror<CompactGallery> mirror = compactGallery;
+        if (mirror == null || mirror.modelVersion != snapshot.getModelVersion()){
+            mirror = new Mirror<>(new CompactGallery(snapshot.getMethod(), snapshot.getDimension(), templateEncoding),
+                    snapshot.getModelVersion());
+        }
+        // Appending to the published copy is safe, its searches take a read lock
+        for (int index = mirror.structure.size(); index < snapshot.size(); index++){
+            float[] template = new float[snapshot.getDimension()];
+            int label = snapshot.getTemplate(index, template);
+            mirror.structure.add(label, template);
+        }
+        compactGallery = mirror;
+    }
+
+    /**
+     * @return Candidate set sizes observed by the recognitions that used the LSH prefilter
+     */
+    public HistogramLshIndex.Statistics getHashingStatistics(){
+
+        HistogramLshIndex.Statistics copy = new HistogramLshIndex.Statistics();
+        synchronized (hashingStatistics) {
+            copy.add(hashingStatistics);
+        }
+        return copy;
+    }
+
+    /**
+     * @return LSH index of the gallery used by the current configuration, null if the
+     * prefilter is disabled or the gallery is not made of LBPH histograms
+     */
+    public HistogramLshIndex getHashIndex(){
+        return current(hashIndex, modelTraining.getSnapshot());
+    }
+
+    /**
+     * Brings the LSH index up to date with a snapshot, like
+     * {@link #updateCompactGallery(GallerySnapshot)}
+     */
+    private void updateHashIndex(GallerySnapshot snapshot){
+
+        if (hashTables <= 0 || snapshot.getMethod() != RecognitionMethod.LBPH){
+            hashIndex = null;
+            return;
+        }
+        Mirror<HistogramLshIndex> mirror = hashIndex;
+        if (mirror == null || mirror.modelVersion != snapshot.getModelVersion()){
+            mirror = new Mirror<>(HistogramLshIndex.build(snapshot, hashTables, hashBits, snapshot.getModelVersion()),
+                    snapshot.getModelVersion());
+        }
+        for (int index = mirror.structure.size(); index < snapshot.size(); index++){
+            float[] template = new float[snapshot.getDimension()];
+            int label = snapshot.getTemplate(index, template);
+            mirror.structure.add(label, template);
+        }
+        hashIndex = mirror;
+    }
+
+    /**
+     * @return Inverted-file index of the gallery used by the current configuration, null if
+     * the inverted-file search is disabled or the gallery is empty
+     */
+    public InvertedFileIndex getInvertedFileIndex(){
+        return current(invertedFileIndex, modelTraining.getSnapshot());
+    }
+
+    /**
+     * Brings the inverted-file index up to date with a snapshot, like
+     * {@link #updateCompactGallery(GallerySnapshot)}, the centroids are trained once there
+     * are templates to train them on
+     */
+    private void updateInvertedFileIndex(GallerySnapshot snapshot){
+
+        if (invertedFileLists <= 0 || snapshot.size() == 0){
+            invertedFileIndex = null;
+            return;
+        }
+        Mirror<InvertedFileIndex> mirror = invertedFileIndex;
+        if (mirror == null || mirror.modelVersion != snapshot.getModelVersion()){
+            mirror = new Mirror<>(InvertedFileIndex.build(snapshot, invertedFileLists, INVERTED_FILE_ITERATIONS),
+                    snapshot.getModelVersion());
+        }
+        for (int index = mirror.structure.size(); index < snapshot.size(); index++){
+            float[] template = new float[snapshot.getDimension()];
+            int label = snapshot.getTemplate(index, template);
+            mirror.structure.add(index, label, template);
+        }
+        invertedFileIndex = mirror;
+    }
+
+    /**
+     * Brings the product-quantized copy of the gallery up to date with a snapshot, like
+     * {@link #updateCompactGallery(GallerySnapshot)}
+     */
+    private void updateQuantizedGallery(GallerySnapshot snapshot){
+
+        ProductQuantizedGallery trained = !quantizedSearch || snapshot.getModel() == null
+                ? null : snapshot.getModel().getCompressedGallery();
+        if (trained == null){
+            quantizedGallery = null;
+            return;
+        }
+        Mirror<ProductQuantizedGallery> mirror = quantizedGallery;
+        if (mirror == null || mirror.modelVersion != snapshot.getModelVersion()){
+            // Re-ranking needs the exact templates, the ones of the model are not kept with its codes
+            mirror = new Mirror<>(new ProductQuantizedGallery(trained.getQuantizer(), reRankDepth > 0),
+                    snapshot.getModelVersion());
+        }
+        for (int index = mirror.structure.size(); index < snapshot.size(); index++){
+            float[] template = new float[snapshot.getDimension()];
+            int label = snapshot.getTemplate(index, template);
+            mirror.structure.add(label, template);
+        }
+        quantizedGallery = mirror;
+    }
+
+    private FaceMatch[] searchHashed(HistogramLshIndex index, float[] template, int k){
+
+        HistogramLshIndex.Statistics statistics = new HistogramLshIndex.Statistics();
+        FaceMatch[] matches = index.search(template, k, statistics);
+        synchronized (hashingStatistics) {
+            hashingStatistics.add(statistics);
+        }
+        return matches;
+    }
+
+    /**
+     * Brings the sharded copy of the gallery up to date with a snapshot, like
+     * {@link #updateCompactGallery(GallerySnapshot)}, the replaced copy is closed once the
+     * searches running on it are over
+     */
+    private void updateShards(GallerySnapshot snapshot){
+
+        if (shardCount <= 1){
+            return;
+        }
+        Mirror<ShardedGallery> mirror = shardedGallery;
+        if (mirror == null || mirror.modelVersion != snapshot.getModelVersion()){
+            mirror = new Mirror<>(new ShardedGallery(snapshot.getMethod(), snapshot.getDimension(),
+                    snapshot.getDimensionOrder(), shardCount), snapshot.getModelVersion());
+        }
+        for (int index = mirror.structure.size(); index < snapshot.size(); index++){
+            float[] template = new float[snapshot.getDimension()];
+            int label = snapshot.getTemplate(index, template);
+            mirror.structure.add(label, template);
+        }
+        if (mirror != shardedGallery){
+            retireShards();
+            shardedGallery = mirror;
+        }
+    }
+
+    /**
+     * @return Sharded copy of the gallery registered for a search, to be released once the
+     * search is over, null if the sharded mode is disabled or its copy does not match the
+     * snapshot
+     */
+    private ShardedGallery acquireShards(GallerySnapshot snapshot){
+
+        ShardedGallery shards = current(shardedGallery, snapshot);
+        // A copy replaced right after being read can no longer be acquired
+        return shards != null && shards.acquire() ? shards : null;
+    }
+
+    /**
+     * @return Copy of the gallery if its templates were extracted with the model of the
+     * snapshot, null otherwise
+     */
+    private static <T> T current(Mirror<T> mirror, GallerySnapshot snapshot){
+        return mirror != null && mirror.modelVersion == snapshot.getModelVersion() ? mirror.structure : null;
+    }
+
+    /**
+     * Stops updating the copies of the gallery and the worker threads of the sharded
+     * gallery mode once the searches running on them are over, recognitions search the
+     * gallery snapshots directly afterwards
+     */
+    public synchronized void close(){
+
+        modelTraining.removeSnapshotListener(snapshotListener);
+        shardCount = 0;
+        hashTables = 0;
+        invertedFileLists = 0;
+        quantizedSearch = false;
+        templateEncoding = TemplateEncoding.FLOAT32;
+        retireShards();
+        hashIndex = null;
+        invertedFileIndex = null;
+        quantizedGallery = null;
+        compactGallery = null;
+    }
+
+    /**
+     * Recognizes a cropped face
+     * @param face Cropped gray scale face
+     * @return Closest enrolled template, null if the gallery is empty or the face is below
+     * the minimum quality
+     */
+    public FaceMatch recognize(Mat face){
+
+        FaceMatch[] matches = recognize(face, 1);
+        return matches.length == 0 ? null : matches[0];
+    }
+
+    /**
+     * Searches the enrolled templates closest to a cropped face
+     * @param face Cropped gray scale face
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest, none if the face is below the
+     * minimum quality
+     */
+    public FaceMatch[] recognize(Mat face, int k){
+
+        if (minimumQuality > 0 && FaceQuality.assess(face).getScore() < minimumQuality){
+            return new FaceMatch[0];
+        }
+        GallerySnapshot snapshot = modelTraining.getSnapshot();
+        float[] template = FeatureExtraction.extractTemplate(face, snapshot.getModel());
+        HistogramLshIndex index = current(hashIndex, snapshot);
+        if (index != null){
+            return searchHashed(index, template, k);
+        }
+        InvertedFileIndex invertedFile = current(invertedFileIndex, snapshot);
+        if (invertedFile != null){
+            return invertedFile.search(template, k, invertedFileProbes);
+        }
+        ProductQuantizedGallery quantized = current(quantizedGallery, snapshot);
+        if (quantized != null){
+            return quantized.search(template, k, reRankDepth);
+        }
+        CompactGallery compact = current(compactGallery, snapshot);
+        if (compact != null){
+            return compact.search(template, k);
+        }
+        ShardedGallery shards = acquireShards(snapshot);
+        if (shards != null){
+            try {
+                return shards.search(template, k);
+            } finally {
+                shards.release();
+            }
+        }
+        return snapshot.search(template, k);
+    }
+
+    /**
+     * Recognizes many cropped faces at once, e.g. all the faces detected in a group photo
+     * The faces are projected with a single matrix product and the gallery is scanned once
+     * for all of them
+     * @param faces Cropped gray scale faces
+     * @return Closest enrolled template of every face, null entries if the gallery is empty
+     * or the face is below the minimum quality
+     */
+    public FaceMatch[] recognize(List<Mat> faces){
+
+        FaceMatch[][] matches = recognize(faces, 1);
+        FaceMatch[] closest = new FaceMatch[matches.length];
+        for (int i = 0; i < matches.length; i++){
+            closest[i] = matches[i].length == 0 ? null : matches[i][0];
+        }
+        return closest;
+    }
+
+    /**
+     * Searches the enrolled templates closest to each of many cropped faces
+     * @param faces Cropped gray scale faces
+     * @param k Number of matches to return per face
+     * @return Matches of every face sorted from the closest to the farthest, none for the
+     * faces below the minimum quality
+     */
+    public FaceMatch[][] recognize(List<Mat> faces, int k){
+
+        if (minimumQuality <= 0){
+            return recognizeAssessed(faces, k);
+        }
+        List<Mat> acceptedFaces = new ArrayList<>();
+        List<Integer> acceptedIndices = new ArrayList<>();
+        for (int i = 0; i < faces.size(); i++){
+            if (FaceQuality.assess(faces.get(i)).getScore() >= minimumQuality){
+                acceptedFaces.add(faces.get(i));
+                acceptedIndices.add(i);
+            }
+        }
+        FaceMatch[][] acceptedMatches = recognizeAssessed(acceptedFaces, k);
+        FaceMatch[][] matches = new FaceMatch[faces.size()][];
+        Arrays.fill(matches, new FaceMatch[0]);
+        for (int i = 0; i < acceptedMatches.length; i++){
+            matches[acceptedIndices.get(i)] = acceptedMatches[i];
+        }
+        return matches;
+    }
+
+    /**
+     * Searches the enrolled templates closest to each of many faces whose quality was
+     * already checked by the caller
+     * @param faces Cropped gray scale faces
+     * @param k Number of matches to return per face
+     * @return Matches of every face sorted from the closest to the farthest
+     */
+    FaceMatch[][] recognizeAssessed(List<Mat> faces, int k){
+
+        if (faces.isEmpty()){
+            return new FaceMatch[0][];
+        }
+        GallerySnapshot snapshot = modelTraining.getSnapshot();
+        float[][] templates = FeatureExtraction.extractTemplates(faces, snapshot.getModel());
+        HistogramLshIndex index = current(hashIndex, snapshot);
+        if (index != null){
+            FaceMatch[][] matches = new FaceMatch[templates.length][];
+            for (int i = 0; i < templates.length; i++){
+                matches[i] = searchHashed(index, templates[i], k);
+            }
+            return matches;
+        }
+        InvertedFileIndex invertedFile = current(invertedFileIndex, snapshot);
+        if (invertedFile != null){
+            FaceMatch[][] matches = new FaceMatch[templates.length][];
+            for (int i = 0; i < templates.length; i++){
+                matches[i] = invertedFile.search(templates[i], k, invertedFileProbes);
+            }
+            return matches;
+        }
+        ProductQuantizedGallery quantized = current(quantizedGallery, snapshot);
+        if (quantized != null){
+            FaceMatch[][] matches = new FaceMatch[templates.length][];
+            for (int i = 0; i < templates.length; i++){
+                matches[i] = quantized.search(templates[i], k, reRankDepth);
+            }
+            return matches;
+        }
+        CompactGallery compact = current(compactGallery, snapshot);
+        if (compact != null){
+            return compact.search(templates, k);
+        }
+        ShardedGallery shards = acquireShards(snapshot);
+        if (shards != null){
+            try {
+                return shards.search(templates, k);
+            } finally {
+                shards.release();
+            }
+        }
+        return snapshot.search(templates, k);
+    }
+}
@@ -0,0 +1,428 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class links the faces detected on consecutive frames of a video into tracks, so that
+ * recognition runs once per track instead of once per detection
+ *
+ * Detections are matched to the tracks of the previous frame by the overlap (intersection
+ * over union) between them and the box every track is predicted at, assuming it keeps
+ * moving at its last velocity. Every detection is scored with {@link FaceQuality}, and only
+ * the best K frames of every track are recognized: a frame is recognized if it passes the
+ * minimum quality of the recognizer and clearly beats the frames the track was recognized
+ * on, replacing the worst of them once the track holds K, tracks without an identity yet
+ * are recognized on every frame. Every recognized frame votes for its label with its
+ * quality, and the identity of the track is the label with the most votes
+ *
+ * @author ArmandoNCM
+ */
+public class FaceTracker {
+
+    /**
+     * Minimum overlap between a detection and the predicted box of a track to link them
+     */
+    private static final double DEFAULT_MINIMUM_OVERLAP = 0.3;
+
+    /**
+     * Number of consecutive frames a track survives without detections
+     */
+    private static final int DEFAULT_MAXIMUM_MISSED_FRAMES = 10;
+
+    /**
+     * Number of best frames of every track that are recognized
+     */
+    private static final int DEFAULT_RECOGNITIONS_PER_TRACK = 3;
+
+    /**
+     * Minimum relative quality gain over the recognized frames of a track for a new frame
+     * of it to be recognized
+     */
+    private static final double QUALITY_GAIN = 1.2;
+
+    private final FaceRecognition faceRecognition;
+
+    private final double minimumOverlap;
+
+    private final int maximumMissedFrames;
+
+    private final int recognitionsPerTrack;
+
+    private final List<Track> tracks = new ArrayList<>();
+
+    private int nextTrackId;
+
+    private long frameCount;
+
+    private long detectionCount;
+
+    private long recognitionCount;
+
+    /**
+     * @param faceRecognition Recognizer the tracks are identified with
+     */
+    public FaceTracker(FaceRecognition faceRecognition){
+        this(faceRecognition, DEFAULT_MINIMUM_OVERLAP, DEFAULT_MAXIMUM_MISSED_FRAMES, DEFAULT_RECOGNITIONS_PER_TRACK);
+    }
+
+    /**
+     * @param faceRecognition Recognizer the tracks are identified with
+     * @param minimumOverlap Minimum intersection over union between a detection and the
+     *                       predicted box of a track to link them
+     * @param maximumMissedFrames Number of consecutive frames a track survives without detections
+     * @param recognitionsPerTrack Number of best frames of every track that are recognized
+     */
+    public FaceTracker(FaceRecognition faceRecognition, double minimumOverlap, int maximumMissedFrames, int recognitionsPerTrack){
+
+        this.faceRecognition = faceRecognition;
+        this.minimumOverlap = minimumOverlap;
+        this.maximumMissedFrames = maximumMissedFrames;
+        this.recognitionsPerTrack = recognitionsPerTrack;
+    }
+
+    /**
+     * Links the faces detected on a new frame to the tracks, and recognizes the faces of
+     * the tracks that need it with a single batched recognition
+     * @param frame Gray scale frame the faces were detected on
+     * @param detections Faces detected on the frame
+     * @return Tracks seen on this frame
+     */
+    public synchronized List<Track> update(Mat frame, Rect[] detections){
+
+        List<Track> seen = link(detections);
+        double minimumQuality = faceRecognition.getMinimumQuality();
+
+        List<Track> toRecognize = new ArrayList<>();
+        List<Mat> faces = new ArrayList<>();
+        List<Double> qualities = new ArrayList<>();
+        for (int i = 0; i < detections.length; i++){
+            Track track = seen.get(i);
+            Mat face = frame.submat(detections[i]);
+            double quality = FaceQuality.assess(face).getScore();
+            if (quality >= minimumQuality && track.wantsRecognition(quality, recognitionsPerTrack)){
+                toRecognize.add(track);
+                faces.add(face);
+                qualities.add(quality);
+            } else {
+                face.release();
+            }
+        }
+
+        if (!faces.isEmpty()){
+            FaceMatch[][] matches = faceRecognition.recognizeAssessed(faces, 1);
+            recognitionCount += faces.size();
+            for (int i = 0; i < matches.length; i++){
+                FaceMatch match = matches[i].length == 0 ? null : matches[i][0];
+                toRecognize.get(i).vote(match, qualities.get(i), recognitionsPerTrack);
+                faces.get(i).release();
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Links the faces detected on a new frame to the tracks, starting a track for every
+     * face not linked and dropping the tracks missed on too many frames
+     * @param detections Faces detected on the frame
+     * @return Track of every detection, in the same order
+     */
+    synchronized List<Track> link(Rect[] detections){
+
+        frameCount++;
+        detectionCount += detections.length;
+
+        Track[] assignments = assign(detections);
+        List<Track> seen = new ArrayList<>();
+        for (int i = 0; i < detections.length; i++){
+            Track track = assignments[i];
+            if (track == null){
+                track = new Track(nextTrackId++, detections[i]);
+                tracks.add(track);
+            } else {
+                track.moveTo(detections[i]);
+            }
+            seen.add(track);
+        }
+
+        for (Iterator<Track> iterator = tracks.iterator(); iterator.hasNext(); ){
+            Track track = iterator.next();
+            if (!seen.contains(track) && ++track.missedFrames > maximumMissedFrames){
+                iterator.remove();
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Greedily links every detection to the free track it overlaps the most
+     * @return Track of every detection, null for detections starting a new track
+     */
+    private Track[] assign(Rect[] detections){
+
+        List<double[]> candidates = new ArrayList<>();
+        for (int trackIndex = 0; trackIndex < tracks.size(); trackIndex++){
+            Rect predicted = tracks.get(trackIndex).predict();
+            for (int detection = 0; detection < detections.length; detection++){
+                double overlap = intersectionOverUnion(predicted, detections[detection]);
+                if (overlap >= minimumOverlap){
+                    candidates.add(new double[]{overlap, trackIndex, detection});
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(b[0], a[0]);
+            }
+        });
+
+        Track[] assignments = new Track[detections.length];
+        boolean[] assignedTracks = new boolean[tracks.size()];
+        for (double[] candidate : candidates){
+            int trackIndex = (int) candidate[1];
+            int detection = (int) candidate[2];
+            if (!assignedTracks[trackIndex] && assignments[detection] == null){
+                assignedTracks[trackIndex] = true;
+                assignments[detection] = tracks.get(trackIndex);
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * @param a First rectangle
+     * @param b Second rectangle
+     * @return Area of the intersection of both rectangles divided by the area of their union
+     */
+    public static double intersectionOverUnion(Rect a, Rect b){
+
+        int left = Math.max(a.x, b.x);
+        int top = Math.max(a.y, b.y);
+        int right = Math.min(a.x + a.width, b.x + b.width);
+        int bottom = Math.min(a.y + a.height, b.y + b.height);
+        if (right <= left || bottom <= top){
+            return 0;
+        }
+        double intersection = (double) (right - left) * (bottom - top);
+        return intersection / (a.area() + b.area() - intersection);
+    }
+
+    /**
+     * @return Tracks currently alive, including the ones missed on the last few frames
+     */
+    public synchronized List<Track> getTracks(){
+        return new ArrayList<>(tracks);
+    }
+
+    /**
+     * @return Number of frames processed
+     */
+    public synchronized long getFrameCount(){
+        return frameCount;
+    }
+
+    /**
+     * @return Number of detections processed
+     */
+    public synchronized long getDetectionCount(){
+        return detectionCount;
+    }
+
+    /**
+     * @return Number of faces recognized
+     */
+    public synchronized long getRecognitionCount(){
+        return recognitionCount;
+    }
+
+    /**
+     * @return Fraction of the detections that were recognized, what recognizing every face
+     * of every frame would cost divided by what tracking costs
+     */
+    public synchronized double getRecognitionRate(){
+        return detectionCount == 0 ? 0 : (double) recognitionCount / detectionCount;
+    }
+
+    /**
+     * A face followed across frames, together with the identity votes of its recognitions
+     */
+    public static class Track {
+
+        private final int id;
+
+        private Rect rectangle;
+
+        /**
+         * Displacement of the rectangle between the last two frames it was detected on
+         */
+        private int velocityX;
+
+        private int velocityY;
+
+        private int missedFrames;
+
+        private int age;
+
+        private int recognitions;
+
+        /**
+         * Quality and label of every recognized frame kept as a vote, -1 labels for frames
+         * recognized against an empty gallery
+         */
+        private double[] voteQualities = new double[0];
+
+        private int[] voteLabels = new int[0];
+
+        private int identity = -1;
+
+        private double confidence;
+
+        Track(int id, Rect rectangle){
+            this.id = id;
+            this.rectangle = rectangle;
+            this.age = 1;
+        }
+
+        /**
+         * @return Box the face is expected at on the next frame
+         */
+        private Rect predict(){
+
+            int frames = missedFrames + 1;
+            return new Rect(rectangle.x + velocityX * frames, rectangle.y + velocityY * frames,
+                    rectangle.width, rectangle.height);
+        }
+
+        private void moveTo(Rect detection){
+
+            int frames = missedFrames + 1;
+            velocityX = (detection.x - rectangle.x) / frames;
+            velocityY = (detection.y - rectangle.y) / frames;
+            rectangle = detection;
+            missedFrames = 0;
+            age++;
+        }
+
+        boolean wantsRecognition(double quality, int recognitionsPerTrack){
+
+            // Tracks not identified yet, e.g. recognized against an empty gallery, keep trying
+            if (voteQualities.length == 0 || identity == -1){
+                return true;
+            }
+            int reference = voteQualities.length < recognitionsPerTrack ? best() : worst();
+            return quality >= voteQualities[reference] * QUALITY_GAIN;
+        }
+
+        void vote(FaceMatch match, double quality, int recognitionsPerTrack){
+
+            recognitions++;
+            int slot = voteQualities.length;
+            if (slot < recognitionsPerTrack){
+                voteQualities = Arrays.copyOf(voteQualities, slot + 1);
+                voteLabels = Arrays.copyOf(voteLabels, slot + 1);
+            } else {
+                slot = worst();
+            }
+            voteQualities[slot] = quality;
+            voteLabels[slot] = match == null ? -1 : match.getLabel();
+
+            // Tally the votes of the frames kept
+            Map<Integer, Double> tally = new HashMap<>();
+            double total = 0;
+            identity = -1;
+            for (int i = 0; i < voteLabels.length; i++){
+                if (voteLabels[i] == -1){
+                    continue;
+                }
+                Double current = tally.get(voteLabels[i]);
+                double updated = (current == null ? 0 : current) + voteQualities[i];
+                tally.put(voteLabels[i], updated);
+                total += voteQualities[i];
+                if (identity == -1 || updated > tally.get(identity)){
+                    identity = voteLabels[i];
+                }
+            }
+            confidence = identity == -1 ? 0 : tally.get(identity) / total;
+        }
+
+        private int best(){
+
+            int best = 0;
+            for (int i = 1; i < voteQualities.length; i++){
+                if (voteQualities[i] > voteQualities[best]){
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        private int worst(){
+
+            int worst = 0;
+            for (int i = 1; i < voteQualities.length; i++){
+                if (voteQualities[i] < voteQualities[worst]){
+                    worst = i;
+                }
+            }
+            return worst;
+        }
+
+        /**
+         * @return Identifier of the track, unique within its tracker
+         */
+        public int getId(){
+            return id;
+        }
+
+        /**
+         * @return Rectangle the face was last detected at
+         */
+        public Rect getRectangle(){
+            return rectangle;
+        }
+
+        /**
+         * @return Number of frames the face was detected on
+         */
+        public int getAge(){
+            return age;
+        }
+
+        /**
+         * @return Number of frames of the track that were recognized
+         */
+        public int getRecognitionCount(){
+            return recognitions;
+        }
+
+        /**
+         * @return Label with the most votes, -1 if the track was not recognized yet
+         */
+        public int getIdentity(){
+            return identity;
+        }
+
+        /**
+         * @return Fraction of the votes given to the identity of the track
+         */
+        public double getConfidence(){
+            return confidence;
+        }
+
+        @Override
+        public String toString(){
+            return "Track{id=" + id + ", identity=" + identity + ", confidence=" + getConfidence()
+                    + ", age=" + age + ", recognitions=" + recognitions + "}";
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is responsible for turning cropped gray scale faces into the face templates
+ * stored in the recognition gallery
+ *
+ * @author ArmandoNCM
+ */
+public class FeatureExtraction {
+
+    /**
+     * Width and height in pixels the faces are normalized to before extracting templates
+     */
+    public static final int FACE_SIZE = 32;
+
+    /**
+     * Number of components of a template made of the raw normalized pixels
+     */
+    public static final int PIXEL_DIMENSION = FACE_SIZE * FACE_SIZE;
+
+    /**
+     * Width and height in pixels the faces are normalized to for local binary patterns
+     */
+    public static final int LBP_FACE_SIZE = 64;
+
+    /**
+     * Number of cells per side of the grid of local binary pattern histograms
+     */
+    public static final int LBP_GRID_SIZE = 4;
+
+    /**
+     * Number of uniform local binary patterns plus one bin for all the non-uniform ones
+     */
+    public static final int LBP_BINS = 59;
+
+    /**
+     * Number of components of a template made of local binary pattern histograms
+     */
+    public static final int LBP_DIMENSION = LBP_GRID_SIZE * LBP_GRID_SIZE * LBP_BINS;
+
+    /**
+     * Bin of every 8 bit local binary pattern
+     */
+    private static final byte[] UNIFORM_PATTERN_BINS = new byte[256];
+
+    static {
+        int bin = 0;
+        for (int pattern = 0; pattern < 256; pattern++){
+            // A pattern is uniform if it has at most two circular bit transitions
+            int transitions = Integer.bitCount((pattern ^ ((pattern >>> 1) | ((pattern & 1) << 7))) & 0xFF);
+            UNIFORM_PATTERN_BINS[pattern] = (byte) (transitions <= 2 ? bin++ : LBP_BINS - 1);
+        }
+    }
+
+    /**
+     * Normalizes a cropped face to a fixed size, equalizes its histogram and writes its
+     * pixels scaled to the [0, 1] range
+     * @param face Cropped gray scale face
+     * @param destination Array of at least {@link #PIXEL_DIMENSION} components
+     */
+    public static void extractPixels(Mat face, float[] destination){
+
+        Mat resizedFace = new Mat();
+        Imgproc.resize(face, resizedFace, new Size(FACE_SIZE, FACE_SIZE), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.equalizeHist(resizedFace, resizedFace);
+        Mat floatFace = new Mat();
+        resizedFace.convertTo(floatFace, CvType.CV_32F, 1.0 / 255);
+        floatFace.get(0, 0, destination);
+        resizedFace.release();
+        floatFace.release();
+    }
+
+    /**
+     * Computes the grid of uniform local binary pattern histograms of a cropped face,
+     * every cell histogram is normalized to add up to one
+     * @param face Cropped gray scale face
+     * @param destination Array of at least {@link #LBP_DIMENSION} components
+     */
+    public static void extractLbpHistograms(Mat face, float[] destination){
+
+        Mat resizedFace = new Mat();
+        Imgproc.resize(face, resizedFace, new Size(LBP_FACE_SIZE, LBP_FACE_SIZE), 0, 0, Imgproc.INTER_AREA);
+        byte[] pixels = new byte[LBP_FACE_SIZE * LBP_FACE_SIZE];
+        resizedFace.get(0, 0, pixels);
+        resizedFace.release();
+
+        Arrays.fill(destination, 0, LBP_DIMENSION, 0);
+        int cellSize = LBP_FACE_SIZE / LBP_GRID_SIZE;
+        for (int y = 1; y < LBP_FACE_SIZE - 1; y++){
+            int row = y * LBP_FACE_SIZE;
+            int cellRow = y / cellSize * LBP_GRID_SIZE;
+            for (int x = 1; x < LBP_FACE_SIZE - 1; x++){
+                int center = pixels[row + x] & 0xFF;
+                // Neighbours visited clockwise starting at the top left one
+                int pattern = 0;
+                pattern |= ((pixels[row - LBP_FACE_SIZE + x - 1] & 0xFF) >= center ? 1 : 0) << 7;
+                pattern |= ((pixels[row - LBP_FACE_SIZE + x] & 0xFF) >= center ? 1 : 0) << 6;
+                pattern |= ((pixels[row - LBP_FACE_SIZE + x + 1] & 0xFF) >= center ? 1 : 0) << 5;
+                pattern |= ((pixels[row + x + 1] & 0xFF) >= center ? 1 : 0) << 4;
+                pattern |= ((pixels[row + LBP_FACE_SIZE + x + 1] & 0xFF) >= center ? 1 : 0) << 3;
+                pattern |= ((pixels[row + LBP_FACE_SIZE + x] & 0xFF) >= center ? 1 : 0) << 2;
+                pattern |= ((pixels[row + LBP_FACE_SIZE + x - 1] & 0xFF) >= center ? 1 : 0) << 1;
+                pattern |= ((pixels[row + x - 1] & 0xFF) >= center ? 1 : 0);
+                int cell = cellRow + x / cellSize;
+                destination[cell * LBP_BINS + UNIFORM_PATTERN_BINS[pattern]]++;
+            }
+        }
+
+        for (int cell = 0; cell < LBP_GRID_SIZE * LBP_GRID_SIZE; cell++){
+            float total = 0;
+            for (int bin = 0; bin < LBP_BINS; bin++){
+                total += destination[cell * LBP_BINS + bin];
+            }
+            for (int bin = 0; bin < LBP_BINS; bin++){
+                destination[cell * LBP_BINS + bin] /= total;
+            }
+        }
+    }
+
+    /**
+     * Computes the features a model of the given method is trained on: the normalized
+     * pixels for projection based methods, the histograms for LBPH
+     * @param face Cropped gray scale face
+     * @param method Recognition method
+     * @return Features of the face
+     */
+    public static float[] extractFeatures(Mat face, RecognitionMethod method){
+
+        float[] features;
+        if (method == RecognitionMethod.LBPH){
+            features = new float[LBP_DIMENSION];
+            extractLbpHistograms(face, features);
+        } else {
+            features = new float[PIXEL_DIMENSION];
+            extractPixels(face, features);
+        }
+        return features;
+    }
+
+    /**
+     * Computes the template of a cropped face for the given model
+     * @param face Cropped gray scale face
+     * @param model Model whose method and projection are applied, if null the template is
+     *              made of the normalized pixels
+     * @return Face template
+     */
+    public static float[] extractTemplate(Mat face, FaceModel model){
+
+        RecognitionMethod method = model == null ? RecognitionMethod.PIXELS : model.getMethod();
+        float[] pixels = extractFeatures(face, method);
+        if (model == null || model.getProjection() == null){
+            return pixels;
+        }
+        float[] template = new float[model.getDimension()];
+        project(pixels, model.getMean(), model.getProjection(), template);
+        return template;
+    }
+
+    /**
+     * Computes the templates of many cropped faces at once for the given model
+     * With a projection based model all the faces are centered and projected with a single
+     * matrix product instead of one projection per face
+     * @param faces Cropped gray scale faces
+     * @param model Model whose method and projection are applied, if null the templates are
+     *              made of the normalized pixels
+     * @return Face templates, in the same order as the faces
+     */
+    public static float[][] extractTemplates(List<Mat> faces, FaceModel model){
+
+        RecognitionMethod method = model == null ? RecognitionMethod.PIXELS : model.getMethod();
+        float[][] templates = new float[faces.size()][];
+        if (model == null || model.getProjection() == null){
+            for (int i = 0; i < templates.length; i++){
+                templates[i] = extractFeatures(faces.get(i), method);
+            }
+            return templates;
+        }
+        if (templates.length == 0){
+            return templates;
+        }
+
+        int inputDimension = model.getInputDimension();
+        float[] pixels = new float[inputDimension];
+        Mat pixelRows = new Mat(templates.length, inputDimension, CvType.CV_32F);
+        for (int i = 0; i < templates.length; i++){
+            extractPixels(faces.get(i), pixels);
+            pixelRows.put(i, 0, pixels);
+        }
+        Mat meanRows = new Mat();
+        Core.repeat(model.getMeanMatrix(), templates.length, 1, meanRows);
+        Core.subtract(pixelRows, meanRows, pixelRows);
+        Mat projected = new Mat();
+        Core.gemm(pixelRows, model.getProjectionMatrix(), 1, new Mat(), 0, projected);
+
+        for (int i = 0; i < templates.length; i++){
+            templates[i] = new float[model.getDimension()];
+            projected.get(i, 0, templates[i]);
+        }
+        pixelRows.release();
+        meanRows.release();
+        projected.release();
+        return templates;
+    }
+
+    /**
+     * Projects a vector of pixels into the template space: (pixels - mean) * projection
+     * @param pixels Normalized pixels of a face
+     * @param mean Mean face
+     * @param projection Row-major projection matrix with one row per pixel
+     * @param template Array receiving the projected template
+     */
+    public static void project(float[] pixels, FloatBuffer mean, FloatBuffer projection, float[] template){
+
+        int dimension = template.length;
+        int inputDimension = mean.remaining();
+        Arrays.fill(template, 0);
+        for (int pixel = 0; pixel < inputDimension; pixel++){
+            float centered = pixels[pixel] - mean.get(mean.position() + pixel);
+            int row = projection.position() + pixel * dimension;
+            for (int component = 0; component < dimension; component++){
+                template[component] += centered * projection.get(row + component);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Immutable block of labelled face templates, the unit galleries are built from
+ * A segment is either enrolled in memory or a view over a memory-mapped model snapshot
+ *
+ * @author ArmandoNCM
+ */
+public class GallerySegment {
+
+    /**
+     * Number of templates compared with every query of a batch before moving on, 64
+     * templates of 128 floats take 32 KB, about the size of a mobile L1 data cache
+     */
+    private static final int SCAN_BLOCK_SIZE = 64;
+
+    private final int dimension;
+
+    private final IntBuffer labels;
+
+    private final FloatBuffer templates;
+
+    /**
+     * @param dimension Number of components of the templates
+     * @param labels Label of every template, the array must not be modified afterwards
+     * @param templates Templates laid out one after the other, the array must not be
+     *                  modified afterwards
+     */
+    public GallerySegment(int dimension, int[] labels, float[] templates){
+        this(dimension, IntBuffer.wrap(labels), FloatBuffer.wrap(templates, 0, labels.length * dimension).slice());
+    }
+
+    private GallerySegment(int dimension, IntBuffer labels, FloatBuffer templates){
+        this.dimension = dimension;
+        this.labels = labels;
+        this.templates = templates;
+    }
+
+    /**
+     * Creates a segment viewing all the templates of a model, no data is copied
+     * @param model Model whose gallery is viewed
+     * @return Segment over the model's gallery
+     */
+    public static GallerySegment of(FaceModel model){
+        return new GallerySegment(model.getDimension(), model.getLabels().slice(), model.getTemplates().slice());
+    }
+
+    /**
+     * @return Number of templates in the segment
+     */
+    public int size(){
+        return labels.limit();
+    }
+
+    /**
+     * @return Number of components of the templates
+     */
+    public int getDimension(){
+        return dimension;
+    }
+
+    /**
+     * @param index Index of a template inside the segment
+     * @return Label of the template
+     */
+    public int getLabel(int index){
+        return labels.get(index);
+    }
+
+    /**
+     * @return Read-only view over the labels of all the templates
+     */
+    public IntBuffer getLabels(){
+        return labels.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Read-only view over all the templates laid out one after the other
+     */
+    public FloatBuffer getTemplates(){
+        return templates.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies a template out of the segment
+     * @param index Index of the template inside the segment
+     * @param destination Array receiving the template
+     */
+    public void getTemplate(int index, float[] destination){
+
+        FloatBuffer view = templates.duplicate();
+        view.position(index * dimension);
+        view.get(destination, 0, dimension);
+    }
+
+    /**
+     * Offers every template of the segment to a collector
+     * Distances are computed with early abandoning against the collector's current bound
+     * @param method Recognition method deciding the distance used
+     * @param order Order in which the template components are visited, null for their
+     *              natural order
+     * @param query Query template
+     * @param baseIndex Gallery index of the first template of the segment
+     * @param collector Collector of the closest templates
+     */
+    public void search(RecognitionMethod method, int[] order, float[] query, int baseIndex, TopKCollector collector){
+
+        int size = size();
+        for (int i = 0; i < size; i++){
+            collector.offer(baseIndex + i, labels.get(i),
+                    VectorDistances.distance(method, query, 0, templates, i * dimension, dimension, order, collector.bound()));
+        }
+    }
+
+    /**
+     * Offers every template of the segment to the collectors of many queries
+     * The segment is scanned once in blocks of templates, all queries being compared with
+     * a block while it is still in cache
+     * @param method Recognition method deciding the distance used
+     * @param order Order in which the template components are visited, null for their
+     *              natural order
+     * @param queries Query templates
+     * @param baseIndex Gallery index of the first template of the segment
+     * @param collectors Collector of the closest templates of every query
+     */
+    public void search(RecognitionMethod method, int[] order, float[][] queries, int baseIndex, TopKCollector[] collectors){
+
+        int size = size();
+        for (int blockStart = 0; blockStart < size; blockStart += SCAN_BLOCK_SIZE){
+            int blockEnd = Math.min(size, blockStart + SCAN_BLOCK_SIZE);
+            for (int query = 0; query < queries.length; query++){
+                TopKCollector collector = collectors[query];
+                for (int i = blockStart; i < blockEnd; i++){
+                    collector.offer(baseIndex + i, labels.get(i), VectorDistances.distance(method, queries[query], 0,
+                            templates, i * dimension, dimension, order, collector.bound()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the labels and templates of the segment
+     * @param labelDestination Array receiving the labels
+     * @param templateDestination Array receiving the templates
+     * @param offset Index of the first copied template inside the destination arrays
+     */
+    public void copyTo(int[] labelDestination, float[] templateDestination, int offset){
+
+        labels.duplicate().get(labelDestination, offset, size());
+        templates.duplicate().get(templateDestination, offset * dimension, size() * dimension);
+    }
+}
@@ -0,0 +1,201 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.Arrays;
+
+/**
+ * Immutable version of the recognition gallery
+ *
+ * A snapshot is made of the model it was trained with and a list of immutable segments.
+ * Enrolling never modifies a published snapshot, a new one sharing the existing segments
+ * plus a new segment is published instead, so readers can search a snapshot without any
+ * locking. Segments no longer referenced by any snapshot are reclaimed by the garbage
+ * collector once the last reader holding them is done
+ *
+ * @author ArmandoNCM
+ */
+public class GallerySnapshot {
+
+    private final FaceModel model;
+
+    private final int modelVersion;
+
+    private final GallerySegment[] segments;
+
+    private final int[] baseIndices;
+
+    private final int size;
+
+    /**
+     * @param model Model the templates were produced by, null for pixel templates
+     * @param modelVersion Version of the template space, changes whenever a model is retrained
+     * @param segments Segments of the gallery
+     */
+    public GallerySnapshot(FaceModel model, int modelVersion, GallerySegment[] segments){
+
+        this.model = model;
+        this.modelVersion = modelVersion;
+        this.segments = segments;
+        baseIndices = new int[segments.length];
+        int total = 0;
+        for (int i = 0; i < segments.length; i++){
+            baseIndices[i] = total;
+            total += segments[i].size();
+        }
+        size = total;
+    }
+
+    /**
+     * Creates the snapshot resulting from enrolling a new segment, this one is left untouched
+     * @param segment Segment of newly enrolled templates
+     * @return New snapshot sharing the segments of this one
+     */
+    public GallerySnapshot withSegment(GallerySegment segment){
+
+        GallerySegment[] newSegments = Arrays.copyOf(segments, segments.length + 1);
+        newSegments[segments.length] = segment;
+        return new GallerySnapshot(model, modelVersion, newSegments);
+    }
+
+    /**
+     * @return Model the templates were produced by, null for pixel templates
+     */
+    public FaceModel getModel(){
+        return model;
+    }
+
+    /**
+     * Version of the template space, templates of snapshots with the same version are
+     * comparable and keep their gallery indices, only appended to by enrollments
+     * @return Version of the template space
+     */
+    public int getModelVersion(){
+        return modelVersion;
+    }
+
+    /**
+     * @return Kind of templates the gallery is made of
+     */
+    public RecognitionMethod getMethod(){
+        return model == null ? RecognitionMethod.PIXELS : model.getMethod();
+    }
+
+    /**
+     * @return Number of components of the templates
+     */
+    public int getDimension(){
+        return model == null ? FeatureExtraction.PIXEL_DIMENSION : model.getDimension();
+    }
+
+    /**
+     * @return Order in which the distance kernels visit the template components, null for
+     * their natural order
+     */
+    public int[] getDimensionOrder(){
+        return model == null ? null : model.getDimensionOrder();
+    }
+
+    /**
+     * @return Segments of the gallery
+     */
+    public GallerySegment[] getSegments(){
+        return segments.clone();
+    }
+
+    /**
+     * @return Number of templates in the gallery
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Copies a template out of the gallery
+     * @param index Gallery index of the template
+     * @param destination Array receiving the template
+     * @return Label of the template
+     */
+    public int getTemplate(int index, float[] destination){
+
+        int segment = Arrays.binarySearch(baseIndices, index);
+        if (segment < 0){
+            segment = -segment - 2;
+        }
+        // Skip empty segments sharing the same base index
+        while (segment + 1 < segments.length && baseIndices[segment + 1] == index){
+            segment++;
+        }
+        int localIndex = index - baseIndices[segment];
+        segments[segment].getTemplate(localIndex, destination);
+        return segments[segment].getLabel(localIndex);
+    }
+
+    /**
+     * Searches the K templates closest to a query
+     * @param query Query template
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest
+     */
+    public FaceMatch[] search(float[] query, int k){
+
+        TopKCollector collector = new TopKCollector(k);
+        RecognitionMethod method = getMethod();
+        int[] order = getDimensionOrder();
+        for (int i = 0; i < segments.length; i++){
+            segments[i].search(method, order, query, baseIndices[i], collector);
+        }
+        return collector.toMatches();
+    }
+
+    /**
+     * Searches the K templates closest to each of many queries, scanning the gallery once
+     * @param queries Query templates
+     * @param k Number of matches to return per query
+     * @return Matches of every query sorted from the closest to the farthest
+     */
+    public FaceMatch[][] search(float[][] queries, int k){
+
+        TopKCollector[] collectors = new TopKCollector[queries.length];
+        for (int i = 0; i < queries.length; i++){
+            collectors[i] = new TopKCollector(k);
+        }
+        RecognitionMethod method = getMethod();
+        int[] order = getDimensionOrder();
+        for (int i = 0; i < segments.length; i++){
+            segments[i].search(method, order, queries, baseIndices[i], collectors);
+        }
+
+        FaceMatch[][] matches = new FaceMatch[queries.length][];
+        for (int i = 0; i < queries.length; i++){
+            matches[i] = collectors[i].toMatches();
+        }
+        return matches;
+    }
+
+    /**
+     * Copies the first segments of the gallery into a standalone model
+     * @param segmentCount Number of leading segments to be copied
+     * @return Model holding the templates of the copied segments
+     */
+    public FaceModel toModel(int segmentCount){
+
+        int dimension = getDimension();
+        int count = segmentCount == segments.length ? size : baseIndices[segmentCount];
+        int[] labels = new int[count];
+        float[] templates = new float[count * dimension];
+        for (int i = 0; i < segmentCount; i++){
+            segments[i].copyTo(labels, templates, baseIndices[i]);
+        }
+
+        if (model == null){
+            return new FaceModel(RecognitionMethod.PIXELS, dimension, labels, templates, 0, null, null);
+        }
+        if (model.getProjection() == null){
+            return new FaceModel(model.getMethod(), dimension, labels, templates, 0, null, null);
+        }
+        float[] mean = new float[model.getInputDimension()];
+        model.getMean().get(mean);
+        float[] projection = new float[model.getInputDimension() * dimension];
+        model.getProjection().get(projection);
+        return new FaceModel(model.getMethod(), dimension, labels, templates, model.getInputDimension(), mean, projection);
+    }
+}
@@ -0,0 +1,120 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+/**
+ * Conversions between floats and IEEE 754 half-precision floats stored in shorts
+ * Half precision keeps 11 significant bits, enough for normalized face templates, at half
+ * the memory and bandwidth of a float
+ *
+ * @author ArmandoNCM
+ */
+public class HalfFloat {
+
+    /**
+     * Float value of every one of the 65536 half-precision bit patterns, so that scan
+     * kernels decode a component with a single lookup
+     */
+    private static final float[] DECODING_TABLE = new float[1 << 16];
+
+    static {
+        for (int half = 0; half < DECODING_TABLE.length; half++){
+            DECODING_TABLE[half] = decode(half);
+        }
+    }
+
+    /**
+     * Converts a float to half precision, rounding to the nearest representable value
+     * @param value Float value
+     * @return Bits of the half-precision value, infinity if the value exceeds 65504
+     */
+    public static short toHalf(float value){
+
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (floatExponent == 0xff){
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 0x1f){
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0){
+            // Subnormal half, or zero if the value is too small
+            if (exponent < -10){
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)){
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1fff;
+        // A carry out of the mantissa correctly bumps the exponent, possibly to infinity
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)){
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * @param half Bits of a half-precision value
+     * @return Float value of the half-precision value
+     */
+    public static float toFloat(short half){
+        return DECODING_TABLE[half & 0xffff];
+    }
+
+    /**
+     * Converts a vector to half precision
+     * @param source Array holding the vector
+     * @param sourceOffset Position of the vector inside its array
+     * @param destination Array receiving the half-precision vector
+     * @param destinationOffset Position of the half-precision vector inside its array
+     * @param dimension Number of components of the vector
+     */
+    public static void encode(float[] source, int sourceOffset, short[] destination, int destinationOffset, int dimension){
+
+        for (int i = 0; i < dimension; i++){
+            destination[destinationOffset + i] = toHalf(source[sourceOffset + i]);
+        }
+    }
+
+    /**
+     * Converts a half-precision vector back to floats
+     * @param source Array holding the half-precision vector
+     * @param sourceOffset Position of the half-precision vector inside its array
+     * @param destination Array receiving the vector
+     * @param destinationOffset Position of the vector inside its array
+     * @param dimension Number of components of the vector
+     */
+    public static void decode(short[] source, int sourceOffset, float[] destination, int destinationOffset, int dimension){
+
+        for (int i = 0; i < dimension; i++){
+            destination[destinationOffset + i] = DECODING_TABLE[source[sourceOffset + i] & 0xffff];
+        }
+    }
+
+    private static float decode(int half){
+
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f){
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0){
+            // Zero or subnormal, mantissa times 2^-24
+            float value = mantissa / 16777216f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,352 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locality-sensitive hashing prefilter for LBPH histogram templates
+ *
+ * Histograms are mapped to the square root of their bins, whose euclidean distance is the
+ * Hellinger distance and ranks histograms much like chi-square does, and then hashed by
+ * the signs of random projections (one bit per hyperplane) into several independent
+ * tables. A query only computes the exact chi-square distance to the templates sharing a
+ * bucket with it in at least one table, or to every template when fewer than K of them do
+ *
+ * More tables raise the recall at the cost of larger candidate sets, more bits per table
+ * do the opposite; {@link #measure(float[][], int)} reports both figures for tuning
+ *
+ * @author ArmandoNCM
+ */
+public class HistogramLshIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int dimension;
+
+    private final int tables;
+
+    private final int bits;
+
+    /**
+     * Random hyperplanes laid out as [table][bit][component]
+     */
+    private final float[] hyperplanes;
+
+    /**
+     * Mean of the square-rooted histograms the index was built with, hyperplanes go through it
+     */
+    private final float[] center;
+
+    private final List<Map<Integer, int[]>> buckets;
+
+    /**
+     * Queries share the read lock, adding takes the write lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int[] labels = new int[INITIAL_CAPACITY];
+
+    private float[] templates;
+
+    private int size;
+
+    /**
+     * @param dimension Number of bins of the histograms
+     * @param tables Number of hash tables
+     * @param bits Number of bits of every hash, at most 31
+     * @param center Mean of the square-rooted histograms the hyperplanes go through
+     * @param seed Seed of the random hyperplanes
+     */
+    public HistogramLshIndex(int dimension, int tables, int bits, float[] center, long seed){
+
+        if (bits < 1 || bits > 31){
+            throw new IllegalArgumentException("The number of bits per hash must be between 1 and 31: " + bits);
+        }
+        this.dimension = dimension;
+        this.tables = tables;
+        this.bits = bits;
+        this.center = center.clone();
+        templates = new float[INITIAL_CAPACITY * dimension];
+
+        Random random = new Random(seed);
+        hyperplanes = new float[tables * bits * dimension];
+        for (int i = 0; i < hyperplanes.length; i++){
+            hyperplanes[i] = (float) random.nextGaussian();
+        }
+        buckets = new ArrayList<>(tables);
+        for (int table = 0; table < tables; table++){
+            buckets.add(new HashMap<Integer, int[]>());
+        }
+    }
+
+    /**
+     * Builds an index holding every template of an LBPH gallery snapshot
+     * @param snapshot Gallery snapshot of LBPH histograms
+     * @param tables Number of hash tables
+     * @param bits Number of bits of every hash
+     * @param seed Seed of the random hyperplanes
+     * @return Index whose template indices are the gallery indices of the snapshot
+     */
+    public static HistogramLshIndex build(GallerySnapshot snapshot, int tables, int bits, long seed){
+
+        int dimension = snapshot.getDimension();
+        float[] template = new float[dimension];
+        float[] center = new float[dimension];
+        for (int i = 0; i < snapshot.size(); i++){
+            snapshot.getTemplate(i, template);
+            for (int bin = 0; bin < dimension; bin++){
+                center[bin] += (float) Math.sqrt(template[bin]);
+            }
+        }
+        for (int bin = 0; bin < dimension && snapshot.size() > 0; bin++){
+            center[bin] /= snapshot.size();
+        }
+
+        HistogramLshIndex index = new HistogramLshIndex(dimension, tables, bits, center, seed);
+        for (int i = 0; i < snapshot.size(); i++){
+            int label = snapshot.getTemplate(i, template);
+            index.add(label, template);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a histogram to the index, it gets the next consecutive template index
+     * @param label Label of the person the histogram belongs to
+     * @param histogram LBPH histogram template
+     * @return Template index of the histogram
+     */
+    public int add(int label, float[] histogram){
+
+        int[] hashes = hash(histogram);
+        lock.writeLock().lock();
+        try {
+            return insert(label, histogram, hashes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int insert(int label, float[] histogram, int[] hashes){
+
+        if (size == labels.length){
+            labels = Arrays.copyOf(labels, size * 2);
+            templates = Arrays.copyOf(templates, size * 2 * dimension);
+        }
+        labels[size] = label;
+        System.arraycopy(histogram, 0, templates, size * dimension, dimension);
+
+        for (int table = 0; table < tables; table++){
+            int[] bucket = buckets.get(table).get(hashes[table]);
+            if (bucket == null){
+                // The first slot holds the number of entries
+                bucket = new int[4];
+            } else if (bucket[0] + 1 == bucket.length){
+                bucket = Arrays.copyOf(bucket, bucket.length * 2);
+            }
+            bucket[++bucket[0]] = size;
+            buckets.get(table).put(hashes[table], bucket);
+        }
+        return size++;
+    }
+
+    /**
+     * @return Number of histograms in the index
+     */
+    public int size(){
+
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the K histograms closest to a query among its LSH candidates
+     * @param query LBPH histogram template
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest, with exact chi-square distances
+     */
+    public FaceMatch[] search(float[] query, int k){
+        return search(query, k, null);
+    }
+
+    /**
+     * Searches the K histograms closest to a query among its LSH candidates
+     * @param query LBPH histogram template
+     * @param k Number of matches to return
+     * @param statistics Statistics updated with the size of the candidate set, may be null
+     * @return Matches sorted from the closest to the farthest, with exact chi-square distances
+     */
+    public FaceMatch[] search(float[] query, int k, Statistics statistics){
+
+        int[] hashes = hash(query);
+        lock.readLock().lock();
+        try {
+            return searchCandidates(query, hashes, k, statistics);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private FaceMatch[] searchCandidates(float[] query, int[] hashes, int k, Statistics statistics){
+
+        BitSet candidates = new BitSet(size);
+        for (int table = 0; table < tables; table++){
+            int[] bucket = buckets.get(table).get(hashes[table]);
+            if (bucket != null){
+                for (int i = 1; i <= bucket[0]; i++){
+                    candidates.set(bucket[i]);
+                }
+            }
+        }
+        // Too few collisions would return fewer than K matches, or none, the whole gallery is scanned instead
+        if (candidates.cardinality() < Math.min(k, size)){
+            candidates.set(0, size);
+        }
+
+        // Exact chi-square re-rank of the candidates
+        TopKCollector collector = new TopKCollector(k);
+        int candidateCount = 0;
+        for (int index = candidates.nextSetBit(0); index >= 0; index = candidates.nextSetBit(index + 1)){
+            collector.offer(index, labels[index],
+                    VectorDistances.chiSquare(query, 0, templates, index * dimension, dimension, null, collector.bound()));
+            candidateCount++;
+        }
+        if (statistics != null){
+            // Statistics belong to the caller, concurrent queries must not share them
+            statistics.queries++;
+            statistics.candidates += candidateCount;
+            statistics.gallerySize = size;
+        }
+        return collector.toMatches();
+    }
+
+    /**
+     * Measures the candidate set size and the recall of the index against an exhaustive
+     * chi-square search, to be used to tune the number of tables and bits
+     * @param queries Query histograms
+     * @param k Number of matches per query whose recall is measured
+     * @return Statistics of the measured queries
+     */
+    public Statistics measure(float[][] queries, int k){
+
+        Statistics statistics = new Statistics();
+        lock.readLock().lock();
+        try {
+            for (float[] query : queries){
+                measure(query, k, statistics);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return statistics;
+    }
+
+    private void measure(float[] query, int k, Statistics statistics){
+
+        FaceMatch[] approximate = searchCandidates(query, hash(query), k, statistics);
+
+        TopKCollector exhaustive = new TopKCollector(k);
+        for (int index = 0; index < size; index++){
+            exhaustive.offer(index, labels[index], VectorDistances.chiSquare(query, 0, templates, index * dimension, dimension));
+        }
+        FaceMatch[] exact = exhaustive.toMatches();
+        for (FaceMatch match : exact){
+            for (FaceMatch candidate : approximate){
+                if (candidate.getTemplateIndex() == match.getTemplateIndex()){
+                    statistics.recalled++;
+                    break;
+                }
+            }
+        }
+        statistics.relevant += exact.length;
+    }
+
+    private int[] hash(float[] histogram){
+
+        float[] transformed = new float[dimension];
+        for (int bin = 0; bin < dimension; bin++){
+            transformed[bin] = (float) Math.sqrt(histogram[bin]) - center[bin];
+        }
+        int[] hashes = new int[tables];
+        for (int table = 0; table < tables; table++){
+            int hash = 0;
+            for (int bit = 0; bit < bits; bit++){
+                int hyperplane = (table * bits + bit) * dimension;
+                float projection = 0;
+                for (int bin = 0; bin < dimension; bin++){
+                    projection += transformed[bin] * hyperplanes[hyperplane + bin];
+                }
+                hash = (hash << 1) | (projection >= 0 ? 1 : 0);
+            }
+            hashes[table] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * Candidate set sizes and recall observed over a number of queries
+     */
+    public static class Statistics {
+
+        private int queries;
+
+        private long candidates;
+
+        private int gallerySize;
+
+        private long recalled;
+
+        private long relevant;
+
+        /**
+         * Adds up the figures observed by another statistics object
+         * @param other Statistics to be added to these ones
+         */
+        public void add(Statistics other){
+            queries += other.queries;
+            candidates += other.candidates;
+            gallerySize = Math.max(gallerySize, other.gallerySize);
+            recalled += other.recalled;
+            relevant += other.relevant;
+        }
+
+        /**
+         * @return Average number of candidates whose exact distance was computed per query
+         */
+        public double getAverageCandidates(){
+            return queries == 0 ? 0 : (double) candidates / queries;
+        }
+
+        /**
+         * @return Average fraction of the gallery whose exact distance was computed per query
+         */
+        public double getCandidateFraction(){
+            return gallerySize == 0 ? 0 : getAverageCandidates() / gallerySize;
+        }
+
+        /**
+         * @return Fraction of the exact top-K matches also found by the index, only measured
+         * by {@link HistogramLshIndex#measure(float[][], int)}
+         */
+        public double getRecall(){
+            return relevant == 0 ? 0 : (double) recalled / relevant;
+        }
+
+        @Override
+        public String toString(){
+            return "Statistics{queries=" + queries + ", averageCandidates=" + getAverageCandidates()
+                    + ", candidateFraction=" + getCandidateFraction() + ", recall=" + getRecall() + "}";
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.CLAHE;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Pre-processing stage evening out the lighting of gray scale images with contrast limited
+ * adaptive histogram equalization (CLAHE), which equalizes every tile of a grid on its own
+ * so that a face half in the shade gains contrast on both halves, without amplifying the
+ * noise of flat areas as much as plain equalization does
+ *
+ * The native CLAHE instance is created once, on first use, and reused by every call, the
+ * calls being serialized as it keeps internal buffers. Equalizing tile by tile costs more
+ * than plain equalization, so the stage is meant for face regions and for the reduced
+ * images faces are detected on, never for full resolution photos. Batch jobs running on a
+ * plain JVM may use {@link #normalize(byte[], int, int, byte[])}, which runs the same
+ * algorithm in Java with the tiles processed concurrently
+ *
+ * @author ArmandoNCM
+ */
+public class IlluminationNormalization {
+
+    /**
+     * Default contrast limit, as a multiple of the mean number of pixels per histogram bin
+     */
+    public static final double DEFAULT_CLIP_LIMIT = 2.0;
+
+    /**
+     * Default number of tiles along each side of the images
+     */
+    public static final int DEFAULT_TILES = 8;
+
+    private final double clipLimit;
+
+    private final int tiles;
+
+    private CLAHE clahe;
+
+    /**
+     * Scratch matrix regions are normalized into before being copied back
+     */
+    private Mat scratch;
+
+    public IlluminationNormalization(){
+        this(DEFAULT_CLIP_LIMIT, DEFAULT_TILES);
+    }
+
+    /**
+     * @param clipLimit Contrast limit, as a multiple of the mean number of pixels per bin
+     * @param tiles Number of tiles along each side of the images
+     */
+    public IlluminationNormalization(double clipLimit, int tiles){
+        this.clipLimit = clipLimit;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Normalizes a whole gray scale image, which should already be reduced to the
+     * resolution it is processed at
+     * @param image Gray scale image
+     * @param destination Matrix receiving the normalized image, it may be the image itself
+     */
+    public synchronized void normalize(Mat image, Mat destination){
+
+        getClahe().apply(image, destination);
+    }
+
+    /**
+     * Normalizes the given regions of a gray scale image in place, e.g. the faces detected
+     * on it, leaving the rest of the image untouched
+     * @param image Gray scale image
+     * @param regions Regions to be normalized
+     */
+    public synchronized void normalize(Mat image, Rect[] regions){
+
+        CLAHE clahe = getClahe();
+        if (scratch == null){
+            scratch = new Mat();
+        }
+        for (Rect region : regions){
+            Mat roi = image.submat(region);
+            clahe.apply(roi, scratch);
+            scratch.copyTo(roi);
+            // Only the header of the region is released, its pixels belong to the image
+            roi.release();
+        }
+    }
+
+    /**
+     * Normalizes a gray scale image in Java, the look up tables of the tiles being built
+     * concurrently, see {@link ImageKernels#clahe}. No native code is involved
+     * @param image Pixels of the gray scale image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param destination Array receiving the normalized pixels, it may be the image itself
+     */
+    public void normalize(byte[] image, int width, int height, byte[] destination){
+
+        ImageKernels.clahe(image, width, height, destination, tiles, tiles, clipLimit);
+    }
+
+    private CLAHE getClahe(){
+
+        if (clahe == null){
+            clahe = Imgproc.createCLAHE(clipLimit, new Size(tiles, tiles));
+        }
+        return clahe;
+    }
+
+    /**
+     * Releases the native buffers kept between calls, the stage may still be used afterwards
+     */
+    public synchronized void release(){
+
+        if (clahe != null){
+            clahe.collectGarbage();
+        }
+        if (scratch != null){
+            scratch.release();
+            scratch = null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of the OpenCV Matrices (Mat) and Android Bitmaps the image processing pipeline
+ * works on, so that processing an image reuses the pixel buffers of the previous one
+ * instead of allocating new ones and leaving the native memory of the old matrices to
+ * {@link Mat#finalize()}
+ *
+ * Buffers are obtained for a given size and type and returned explicitly once they are
+ * no longer needed. Returned buffers are kept idle, keyed by their size and type, up to a
+ * memory cap; once the idle buffers exceed it, the least recently returned ones are
+ * released. Buffers that are not returned are simply never reused
+ *
+ * @author ArmandoNCM
+ */
+public class ImageBufferPool {
+
+    /**
+     * Default number of bytes the idle buffers may take, enough for a few 12 megapixel
+     * gray scale images or a couple of reduced color ones
+     */
+    public static final long DEFAULT_MEMORY_CAP = 32 * 1024 * 1024;
+
+    private static ImageBufferPool instance;
+
+    private final long memoryCap;
+
+    /**
+     * Idle buffers of every size and type, the most recently returned last
+     */
+    private final Map<String, ArrayDeque<Object>> idleBuffers = new HashMap<>();
+
+    /**
+     * Bytes taken by every idle buffer, the least recently returned first
+     */
+    private final LinkedHashMap<Object, Long> leastRecentlyReturned = new LinkedHashMap<>();
+
+    private long idleBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * @param memoryCap Number of bytes the idle buffers may take
+     */
+    public ImageBufferPool(long memoryCap){
+        this.memoryCap = memoryCap;
+    }
+
+    /**
+     * Singleton pattern instantiation
+     * @return Instance of ImageBufferPool shared by the image processing pipeline
+     */
+    public static synchronized ImageBufferPool getInstance(){
+
+        if (instance == null){
+            instance = new ImageBufferPool(DEFAULT_MEMORY_CAP);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Obtains a matrix, reusing an idle one of the same size and type if there is one
+     * Its content is undefined
+     * @param rows Number of rows of the matrix
+     * @param cols Number of columns of the matrix
+     * @param type OpenCV type of the matrix, e.g. CvType.CV_8UC1
+     * @return Matrix to be returned with {@link #recycle(Mat)} once it is no longer needed
+     */
+    public synchronized Mat obtainMatrix(int rows, int cols, int type){
+
+        Mat matrix = (Mat) takeIdle(matrixKey(rows, cols, type));
+        if (matrix == null){
+            matrix = new Mat(rows, cols, type);
+        }
+        return matrix;
+    }
+
+    /**
+     * Returns a matrix to the pool, matrices that cannot be reused as a whole, i.e.
+     * sub-matrices, or that are larger than the memory cap are released instead
+     * The matrix must not be used anymore
+     * @param matrix Matrix obtained from the pool or created by the caller
+     */
+    public synchronized void recycle(Mat matrix){
+
+        if (matrix == null || leastRecentlyReturned.containsKey(matrix)){
+            return;
+        }
+        if (matrix.empty() || matrix.isSubmatrix() || !matrix.isContinuous()){
+            matrix.release();
+            return;
+        }
+        long bytes = matrix.total() * matrix.elemSize();
+        if (bytes > memoryCap){
+            matrix.release();
+            return;
+        }
+        putIdle(matrixKey(matrix.rows(), matrix.cols(), matrix.type()), matrix, bytes);
+    }
+
+    /**
+     * Obtains a mutable bitmap, reusing an idle one of the same size and configuration if
+     * there is one. Its content is undefined
+     * @param width Width of the bitmap
+     * @param height Height of the bitmap
+     * @param config Configuration of the bitmap
+     * @return Bitmap to be returned with {@link #recycle(Bitmap)} once it is no longer needed
+     */
+    public synchronized Bitmap obtainBitmap(int width, int height, Bitmap.Config config){
+
+        Bitmap bitmap = (Bitmap) takeIdle(bitmapKey(width, height, config));
+        if (bitmap == null){
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool, immutable bitmaps, which cannot be written into, and
+     * bitmaps larger than the memory cap are recycled instead
+     * The bitmap must not be used anymore, nor be shown by any view
+     * @param bitmap Bitmap obtained from the pool or created by the caller
+     */
+    public synchronized void recycle(Bitmap bitmap){
+
+        if (bitmap == null || bitmap.isRecycled() || leastRecentlyReturned.containsKey(bitmap)){
+            return;
+        }
+        long bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bytes > memoryCap){
+            bitmap.recycle();
+            return;
+        }
+        putIdle(bitmapKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap, bytes);
+    }
+
+    /**
+     * Releases all the idle buffers, e.g. when the system runs low on memory
+     */
+    public synchronized void clear(){
+
+        for (Object buffer : leastRecentlyReturned.keySet()){
+            free(buffer);
+        }
+        leastRecentlyReturned.clear();
+        idleBuffers.clear();
+        idleBytes = 0;
+    }
+
+    private Object takeIdle(String key){
+
+        ArrayDeque<Object> buffers = idleBuffers.get(key);
+        if (buffers == null || buffers.isEmpty()){
+            misses++;
+            return null;
+        }
+        hits++;
+        Object buffer = buffers.pollLast();
+        idleBytes -= leastRecentlyReturned.remove(buffer);
+        return buffer;
+    }
+
+    private void putIdle(String key, Object buffer, long bytes){
+
+        ArrayDeque<Object> buffers = idleBuffers.get(key);
+        if (buffers == null){
+            buffers = new ArrayDeque<>();
+            idleBuffers.put(key, buffers);
+        }
+        buffers.addLast(buffer);
+        leastRecentlyReturned.put(buffer, bytes);
+        idleBytes += bytes;
+
+        // Evict the least recently returned buffers until the idle ones fit under the cap
+        Iterator<Map.Entry<Object, Long>> iterator = leastRecentlyReturned.entrySet().iterator();
+        while (idleBytes > memoryCap && iterator.hasNext()){
+            Map.Entry<Object, Long> eldest = iterator.next();
+            Object evicted = eldest.getKey();
+            iterator.remove();
+            idleBytes -= eldest.getValue();
+            for (ArrayDeque<Object> candidates : idleBuffers.values()){
+                if (candidates.remove(evicted)){
+                    break;
+                }
+            }
+            free(evicted);
+            evictions++;
+        }
+    }
+
+    private static void free(Object buffer){
+
+        if (buffer instanceof Mat){
+            ((Mat) buffer).release();
+        } else {
+            ((Bitmap) buffer).recycle();
+        }
+    }
+
+    private static String matrixKey(int rows, int cols, int type){
+        return "Mat:" + rows + "x" + cols + ":" + type;
+    }
+
+    private static String bitmapKey(int width, int height, Bitmap.Config config){
+        return "Bitmap:" + width + "x" + height + ":" + config;
+    }
+
+    /**
+     * @return Number of bytes the idle buffers may take
+     */
+    public long getMemoryCap(){
+        return memoryCap;
+    }
+
+    /**
+     * @return Number of bytes taken by the idle buffers
+     */
+    public synchronized long getIdleBytes(){
+        return idleBytes;
+    }
+
+    /**
+     * @return Number of buffers obtained by reusing an idle one
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    /**
+     * @return Number of buffers that had to be allocated
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return Number of idle buffers released to stay under the memory cap
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "ImageBufferPool{idleBytes=" + idleBytes + ", memoryCap=" + memoryCap + ", hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+}
@@ -3,11 +3,17 @@ package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
 import android.graphics.Bitmap;
 
 import org.opencv.android.Utils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
 /**
  * This class is responsible for converting images from Android Bitmap objects to
  *  OpenCV Matrix (Mat) objects and vice versa
+ * The converted images are obtained from the {@link ImageBufferPool}, and should be
+ * returned to it once they are no longer needed
+ * Code that only needs to look at the pixels of a bitmap as a matrix, or to write a
+ * matrix into a bitmap, may use a {@link BitmapMatBridge} instead, which copies them once
+ * and allocates nothing
  *
  * @author ArmandoNCM
  */
@@ -16,10 +22,10 @@ public class ImageConversion {
     /**
      * Converts an Android Bitmap to an OpenCV Matrix (Mat)
      * @param bitmap Android Bitmap to be converted
-     * @return OpenCV Matrix (Mat)
+     * @return OpenCV RGBA Matrix (Mat)
      */
     public static Mat convertBitmapToMatrix(Bitmap bitmap){
-        Mat matrix = new Mat();
+        Mat matrix = ImageBufferPool.getInstance().obtainMatrix(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
         Utils.bitmapToMat(bitmap, matrix);
         return matrix;
     }
@@ -27,10 +33,10 @@ public class ImageConversion {
     /**
      * Converts an OpenCV Matrix to an Android Bitmap
      * @param matrix OpenCV Matrix to be converted
-     * @return Android Bitmap
+     * @return Android ARGB_8888 Bitmap
      */
     public static Bitmap convertMatrixToBitmap(Mat matrix){
-        Bitmap bitmap = Bitmap.createBitmap(matrix.cols(), matrix.rows(), Bitmap.Config.ARGB_8888);
+        Bitmap bitmap = ImageBufferPool.getInstance().obtainBitmap(matrix.cols(), matrix.rows(), Bitmap.Config.ARGB_8888);
         Utils.matToBitmap(matrix, bitmap);
         return bitmap;
     }
@@ -0,0 +1,530 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure Java versions of the pre-processing kernels OpenCV runs natively, working on byte
+ * arrays so they run and can be tested on a plain JVM: RGBA to gray scale conversion, area
+ * and bilinear resizing, histogram equalization and contrast limited adaptive histogram
+ * equalization (CLAHE), all on 8-bit images laid out row after row without padding
+ *
+ * Arithmetic is fixed-point, with the same integer gray scale coefficients and 11-bit
+ * bilinear weights OpenCV uses, so results stay within one intensity level of the native
+ * ones. Images are split into bands of rows processed on a shared work-stealing pool, small
+ * images being processed on the calling thread
+ *
+ * @author ArmandoNCM
+ */
+public class ImageKernels {
+
+    /**
+     * Fixed-point precision of the gray scale coefficients
+     */
+    private static final int GRAY_SHIFT = 14;
+
+    /**
+     * ITU-R BT.601 luma coefficients scaled by 2^14, they add up to 2^14
+     */
+    private static final int RED_TO_GRAY = 4899;
+
+    private static final int GREEN_TO_GRAY = 9617;
+
+    private static final int BLUE_TO_GRAY = 1868;
+
+    /**
+     * Fixed-point precision of the bilinear weights
+     */
+    private static final int LINEAR_BITS = 11;
+
+    private static final int LINEAR_ONE = 1 << LINEAR_BITS;
+
+    /**
+     * Fixed-point precision of the area weights, their products are accumulated as longs
+     */
+    private static final int AREA_BITS = 16;
+
+    private static final int AREA_ONE = 1 << AREA_BITS;
+
+    /**
+     * Number of pixels below which an image is processed as a single band
+     */
+    private static final int PIXELS_PER_BAND = 64 * 1024;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Converts an RGBA image to gray scale
+     * @param rgba Pixels of the RGBA image, four bytes each
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param gray Array receiving the gray scale pixels, one byte each
+     */
+    public static void rgbaToGray(final byte[] rgba, final int width, int height, final byte[] gray){
+
+        checkLength(rgba, width * height * 4);
+        checkLength(gray, width * height);
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                int rounding = 1 << (GRAY_SHIFT - 1);
+                for (int pixel = fromRow * width, end = toRow * width; pixel < end; pixel++){
+                    int offset = pixel * 4;
+                    int luma = (rgba[offset] & 0xFF) * RED_TO_GRAY + (rgba[offset + 1] & 0xFF) * GREEN_TO_GRAY
+                            + (rgba[offset + 2] & 0xFF) * BLUE_TO_GRAY;
+                    gray[pixel] = (byte) ((luma + rounding) >> GRAY_SHIFT);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resizes a gray scale image by bilinear interpolation, sampling at the centers of the
+     * destination pixels as OpenCV's INTER_LINEAR does
+     * @param source Pixels of the source image
+     * @param sourceWidth Width of the source image
+     * @param sourceHeight Height of the source image
+     * @param destination Array receiving the pixels of the resized image
+     * @param width Width of the resized image
+     * @param height Height of the resized image
+     */
+    public static void resizeBilinear(final byte[] source, final int sourceWidth, int sourceHeight,
+                                      final byte[] destination, final int width, int height){
+
+        checkLength(source, sourceWidth * sourceHeight);
+        checkLength(destination, width * height);
+        final int[] columns = new int[width];
+        final int[] columnWeights = new int[width];
+        linearTable(sourceWidth, width, columns, columnWeights);
+        final int[] rows = new int[height];
+        final int[] rowWeights = new int[height];
+        linearTable(sourceHeight, height, rows, rowWeights);
+
+        final int lastColumn = sourceWidth - 1;
+        final int lastRow = sourceHeight - 1;
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                int rounding = 1 << (2 * LINEAR_BITS - 1);
+                for (int y = fromRow; y < toRow; y++){
+                    int top = rows[y] * sourceWidth;
+                    int bottom = Math.min(rows[y] + 1, lastRow) * sourceWidth;
+                    int weight = rowWeights[y];
+                    for (int x = 0; x < width; x++){
+                        int left = columns[x];
+                        int right = Math.min(left + 1, lastColumn);
+                        int columnWeight = columnWeights[x];
+                        int upper = (source[top + left] & 0xFF) * (LINEAR_ONE - columnWeight) + (source[top + right] & 0xFF) * columnWeight;
+                        int lower = (source[bottom + left] & 0xFF) * (LINEAR_ONE - columnWeight) + (source[bottom + right] & 0xFF) * columnWeight;
+                        destination[y * width + x] = (byte) ((upper * (LINEAR_ONE - weight) + lower * weight + rounding) >> (2 * LINEAR_BITS));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes, for every destination coordinate, the source coordinate before it and the
+     * weight of the one after it, clamped at the borders
+     */
+    private static void linearTable(int sourceSize, int size, int[] coordinates, int[] weights){
+
+        double scale = (double) sourceSize / size;
+        for (int i = 0; i < size; i++){
+            double position = (i + 0.5) * scale - 0.5;
+            int coordinate = (int) Math.floor(position);
+            double fraction = position - coordinate;
+            if (coordinate < 0){
+                coordinate = 0;
+                fraction = 0;
+            } else if (coordinate >= sourceSize - 1){
+                coordinate = sourceSize - 1;
+                fraction = 0;
+            }
+            coordinates[i] = coordinate;
+            weights[i] = (int) Math.round(fraction * LINEAR_ONE);
+        }
+    }
+
+    /**
+     * Resizes a gray scale image by pixel area relation, every destination pixel being the
+     * mean of the source area it covers, as OpenCV's INTER_AREA does when shrinking
+     * @param source Pixels of the source image
+     * @param sourceWidth Width of the source image
+     * @param sourceHeight Height of the source image
+     * @param destination Array receiving the pixels of the resized image
+     * @param width Width of the resized image, at most the source width
+     * @param height Height of the resized image, at most the source height
+     */
+    public static void resizeArea(final byte[] source, final int sourceWidth, int sourceHeight,
+                                  final byte[] destination, final int width, int height){
+
+        if (width > sourceWidth || height > sourceHeight){
+            throw new IllegalArgumentException("Area resizing only shrinks images, use bilinear resizing to enlarge them");
+        }
+        checkLength(source, sourceWidth * sourceHeight);
+        checkLength(destination, width * height);
+        final AreaTable columns = new AreaTable(sourceWidth, width);
+        final AreaTable rows = new AreaTable(sourceHeight, height);
+
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                int[] rowSums = new int[width];
+                long[] sums = new long[width];
+                long rounding = 1L << (2 * AREA_BITS - 1);
+                for (int y = fromRow; y < toRow; y++){
+                    Arrays.fill(sums, 0);
+                    for (int r = rows.starts[y]; r < rows.starts[y + 1]; r++){
+                        int offset = rows.sources[r] * sourceWidth;
+                        // Horizontal pass over one source row, then its weighted accumulation
+                        for (int x = 0; x < width; x++){
+                            int sum = 0;
+                            for (int c = columns.starts[x]; c < columns.starts[x + 1]; c++){
+                                sum += (source[offset + columns.sources[c]] & 0xFF) * columns.weights[c];
+                            }
+                            rowSums[x] = sum;
+                        }
+                        long rowWeight = rows.weights[r];
+                        for (int x = 0; x < width; x++){
+                            sums[x] += rowSums[x] * rowWeight;
+                        }
+                    }
+                    for (int x = 0; x < width; x++){
+                        destination[y * width + x] = (byte) ((sums[x] + rounding) >> (2 * AREA_BITS));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Source cells covered by every destination cell of one axis and the fraction of the
+     * destination cell each of them covers, in fixed-point adding up exactly to one
+     */
+    private static class AreaTable {
+
+        /**
+         * Index of the first entry of every destination cell, plus one past the last entry
+         */
+        private final int[] starts;
+
+        private final int[] sources;
+
+        private final int[] weights;
+
+        private AreaTable(int sourceSize, int size){
+
+            double scale = (double) sourceSize / size;
+            starts = new int[size + 1];
+            int capacity = size * ((int) Math.ceil(scale) + 1);
+            int[] cellSources = new int[capacity];
+            int[] cellWeights = new int[capacity];
+            int entries = 0;
+            for (int i = 0; i < size; i++){
+                starts[i] = entries;
+                double begin = i * scale;
+                double end = Math.min(sourceSize, (i + 1) * scale);
+                int first = entries;
+                int largest = entries;
+                int total = 0;
+                for (int cell = (int) Math.floor(begin); cell < end; cell++){
+                    double covered = Math.min(end, cell + 1) - Math.max(begin, cell);
+                    int weight = (int) Math.round(covered / scale * AREA_ONE);
+                    if (weight == 0){
+                        continue;
+                    }
+                    cellSources[entries] = cell;
+                    cellWeights[entries] = weight;
+                    if (weight > cellWeights[largest]){
+                        largest = entries;
+                    }
+                    total += weight;
+                    entries++;
+                }
+                // Rounding errors go to the largest weight so that flat areas stay flat
+                if (entries > first){
+                    cellWeights[largest] += AREA_ONE - total;
+                }
+            }
+            starts[size] = entries;
+            sources = Arrays.copyOf(cellSources, entries);
+            weights = Arrays.copyOf(cellWeights, entries);
+        }
+    }
+
+    /**
+     * Equalizes the histogram of a gray scale image, mapping intensities through their
+     * cumulative distribution as OpenCV's equalizeHist does
+     * @param source Pixels of the source image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param destination Array receiving the equalized pixels, it may be the source array
+     */
+    public static void equalizeHistogram(final byte[] source, final int width, int height, final byte[] destination){
+
+        checkLength(source, width * height);
+        checkLength(destination, width * height);
+        final int[][] histograms = new int[bandCount(width, height)][256];
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                int[] histogram = histograms[band];
+                for (int pixel = fromRow * width, end = toRow * width; pixel < end; pixel++){
+                    histogram[source[pixel] & 0xFF]++;
+                }
+            }
+        });
+        int[] histogram = new int[256];
+        for (int[] bandHistogram : histograms){
+            for (int i = 0; i < 256; i++){
+                histogram[i] += bandHistogram[i];
+            }
+        }
+
+        final byte[] lookUpTable = new byte[256];
+        int total = width * height;
+        int first = 0;
+        while (first < 255 && histogram[first] == 0){
+            first++;
+        }
+        if (histogram[first] == total){
+            // A flat image keeps its only intensity
+            Arrays.fill(lookUpTable, (byte) first);
+        } else {
+            float scale = 255f / (total - histogram[first]);
+            int sum = 0;
+            for (int i = first + 1; i < 256; i++){
+                sum += histogram[i];
+                lookUpTable[i] = (byte) Math.min(255, Math.round(sum * scale));
+            }
+        }
+
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                for (int pixel = fromRow * width, end = toRow * width; pixel < end; pixel++){
+                    destination[pixel] = lookUpTable[source[pixel] & 0xFF];
+                }
+            }
+        });
+    }
+
+    /**
+     * Equalizes the histogram of a gray scale image tile by tile, limiting the contrast
+     * every tile may gain, as OpenCV's CLAHE does. The look up table of every tile is built
+     * concurrently, then every pixel is mapped through the tables of its four nearest tiles
+     * with bilinear weights, band by band. Images whose size is not a multiple of the grid
+     * are padded by reflection when building the tables
+     * @param source Pixels of the source image
+     * @param width Width of the image
+     * @param height Height of the image
+     * @param destination Array receiving the equalized pixels, it may be the source array
+     * @param tilesX Number of tile columns
+     * @param tilesY Number of tile rows
+     * @param clipLimit Contrast limit, as a multiple of the mean number of pixels per bin
+     */
+    public static void clahe(final byte[] source, final int width, final int height, final byte[] destination,
+                             final int tilesX, final int tilesY, double clipLimit){
+
+        checkLength(source, width * height);
+        checkLength(destination, width * height);
+        final int tileWidth = (width + tilesX - 1) / tilesX;
+        final int tileHeight = (height + tilesY - 1) / tilesY;
+        final int tileArea = tileWidth * tileHeight;
+        final int limit = clipLimit > 0 ? Math.max(1, (int) (clipLimit * tileArea / 256)) : Integer.MAX_VALUE;
+        final byte[][] tables = new byte[tilesX * tilesY][256];
+
+        int tiles = tilesX * tilesY;
+        // Building the tables reads every pixel of the padded image once
+        forEachPart(tiles, partCount(tiles, (long) tiles * tileArea), new Band() {
+            @Override
+            public void process(int part, int fromTile, int toTile) {
+                int[] histogram = new int[256];
+                for (int tile = fromTile; tile < toTile; tile++){
+                    Arrays.fill(histogram, 0);
+                    int left = (tile % tilesX) * tileWidth;
+                    int top = (tile / tilesX) * tileHeight;
+                    for (int y = top; y < top + tileHeight; y++){
+                        int row = reflect(y, height) * width;
+                        for (int x = left; x < left + tileWidth; x++){
+                            histogram[source[row + reflect(x, width)] & 0xFF]++;
+                        }
+                    }
+                    clipHistogram(histogram, limit);
+                    float scale = 255f / tileArea;
+                    int sum = 0;
+                    for (int i = 0; i < 256; i++){
+                        sum += histogram[i];
+                        tables[tile][i] = (byte) Math.min(255, Math.round(sum * scale));
+                    }
+                }
+            }
+        });
+
+        // The tiles around every column and their weights are the same on every row
+        final int[] leftTiles = new int[width];
+        final int[] rightTiles = new int[width];
+        final float[] rightWeights = new float[width];
+        float inverseTileWidth = 1f / tileWidth;
+        for (int x = 0; x < width; x++){
+            float tileX = x * inverseTileWidth - 0.5f;
+            int tileX1 = (int) Math.floor(tileX);
+            rightWeights[x] = tileX - tileX1;
+            rightTiles[x] = Math.min(tileX1 + 1, tilesX - 1);
+            leftTiles[x] = Math.max(tileX1, 0);
+        }
+
+        forEachBand(width, height, new Band() {
+            @Override
+            public void process(int band, int fromRow, int toRow) {
+                float inverseTileHeight = 1f / tileHeight;
+                for (int y = fromRow; y < toRow; y++){
+                    float tileY = y * inverseTileHeight - 0.5f;
+                    int tileY1 = (int) Math.floor(tileY);
+                    float weightY = tileY - tileY1;
+                    int upperRow = Math.max(tileY1, 0) * tilesX;
+                    int lowerRow = Math.min(tileY1 + 1, tilesY - 1) * tilesX;
+                    for (int x = 0, pixel = y * width; x < width; x++, pixel++){
+                        int value = source[pixel] & 0xFF;
+                        float weightX = rightWeights[x];
+                        float upper = (tables[upperRow + leftTiles[x]][value] & 0xFF) * (1 - weightX)
+                                + (tables[upperRow + rightTiles[x]][value] & 0xFF) * weightX;
+                        float lower = (tables[lowerRow + leftTiles[x]][value] & 0xFF) * (1 - weightX)
+                                + (tables[lowerRow + rightTiles[x]][value] & 0xFF) * weightX;
+                        destination[pixel] = (byte) Math.min(255, Math.round(upper * (1 - weightY) + lower * weightY));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Clips the bins of a histogram to a limit, spreading what was clipped evenly over all
+     * the bins and the remainder over bins spaced evenly
+     */
+    private static void clipHistogram(int[] histogram, int limit){
+
+        int clipped = 0;
+        for (int i = 0; i < 256; i++){
+            if (histogram[i] > limit){
+                clipped += histogram[i] - limit;
+                histogram[i] = limit;
+            }
+        }
+        int batch = clipped / 256;
+        int residual = clipped - batch * 256;
+        for (int i = 0; i < 256; i++){
+            histogram[i] += batch;
+        }
+        if (residual > 0){
+            int step = Math.max(256 / residual, 1);
+            for (int i = 0; i < 256 && residual > 0; i += step, residual--){
+                histogram[i]++;
+            }
+        }
+    }
+
+    /**
+     * @return Coordinate reflected back into the image without repeating the border pixel,
+     * for coordinates at most one image size past its end
+     */
+    private static int reflect(int coordinate, int size){
+        return coordinate < size ? coordinate : Math.max(0, 2 * size - coordinate - 2);
+    }
+
+    /**
+     * Work done on a band of consecutive rows of an image, or of consecutive tiles
+     */
+    private interface Band {
+
+        /**
+         * @param band Index of the band, from zero to the number of bands of the image
+         * @param fromRow First row of the band
+         * @param toRow Row following the last row of the band
+         */
+        void process(int band, int fromRow, int toRow);
+    }
+
+    /**
+     * @return Number of bands an image is split into
+     */
+    static int bandCount(int width, int height){
+        return partCount(height, (long) width * height);
+    }
+
+    /**
+     * @param items Number of rows or tiles to be split
+     * @param pixels Number of pixels the items cover
+     * @return Number of parts the items are split into, small images being processed in a
+     * single part because handing them to the pool costs more than it saves
+     */
+    private static int partCount(int items, long pixels){
+
+        int maximum = Math.min(items, POOL.getParallelism() * 4);
+        return (int) Math.max(1, Math.min(maximum, pixels / PIXELS_PER_BAND));
+    }
+
+    private static void forEachBand(int width, int height, Band band){
+
+        forEachPart(height, bandCount(width, height), band);
+    }
+
+    /**
+     * Splits a number of items, rows or tiles, into parts of consecutive items processed
+     * on the pool, a single part being processed on the calling thread
+     */
+    private static void forEachPart(int items, int parts, Band band){
+
+        if (parts <= 1){
+            band.process(0, 0, items);
+        } else {
+            POOL.invoke(new BandTask(band, items, parts, 0, parts));
+        }
+    }
+
+    /**
+     * Splits a range of bands in halves until a single band is left
+     */
+    private static class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+
+        private final int height;
+
+        private final int bands;
+
+        private final int from;
+
+        private final int to;
+
+        private BandTask(Band band, int height, int bands, int from, int to){
+            this.band = band;
+            this.height = height;
+            this.bands = bands;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+
+            if (to - from == 1){
+                band.process(from, (int) ((long) height * from / bands), (int) ((long) height * to / bands));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BandTask(band, height, bands, from, middle), new BandTask(band, height, bands, middle, to));
+        }
+    }
+
+    private static void checkLength(byte[] pixels, int expected){
+
+        if (pixels.length < expected){
+            throw new IllegalArgumentException("Expected at least " + expected + " pixel bytes but got " + pixels.length);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import android.support.media.ExifInterface;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Orientation of a stored image, as given by its EXIF orientation tag, and the transforms
+ * that bring images and positions found on them upright
+ *
+ * @author ArmandoNCM
+ */
+public enum ImageOrientation {
+
+    NORMAL(false),
+
+    FLIP_HORIZONTAL(false),
+
+    ROTATE_180(false),
+
+    FLIP_VERTICAL(false),
+
+    TRANSPOSE(true),
+
+    ROTATE_90(true),
+
+    TRANSVERSE(true),
+
+    ROTATE_270(true);
+
+    private final boolean swapsDimensions;
+
+    ImageOrientation(boolean swapsDimensions){
+        this.swapsDimensions = swapsDimensions;
+    }
+
+    /**
+     * @param orientation Orientation attribute obtained by the ExifInterface EXIF tag reading capabilities
+     * @return Orientation of the image, normal if the attribute is undefined or unknown
+     */
+    public static ImageOrientation fromExif(int orientation){
+
+        switch (orientation){
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                return FLIP_HORIZONTAL;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return ROTATE_180;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return FLIP_VERTICAL;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return TRANSPOSE;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return ROTATE_90;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return TRANSVERSE;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return ROTATE_270;
+            default:
+                return NORMAL;
+        }
+    }
+
+    /**
+     * @return Whether the upright image is the stored one with its width and height swapped
+     */
+    public boolean swapsDimensions(){
+        return swapsDimensions;
+    }
+
+    /**
+     * Tells whether faces on the stored image are upright, so that they can be detected
+     * without orienting the image first and only the detections need to be transformed
+     * @return True for the normal orientation and the horizontal mirror
+     */
+    public boolean keepsFacesUpright(){
+        return this == NORMAL || this == FLIP_HORIZONTAL;
+    }
+
+    /**
+     * @return Orientation undoing this one, mapping upright images back to stored ones
+     */
+    public ImageOrientation inverse(){
+
+        switch (this) {
+            case ROTATE_90:
+                return ROTATE_270;
+            case ROTATE_270:
+                return ROTATE_90;
+            default:
+                // Flips, the half turn and the transpositions undo themselves
+                return this;
+        }
+    }
+
+    /**
+     * Brings a stored image upright, flips are done in place while rotations and
+     * transpositions, which change the shape of non square images, release the given
+     * matrix and return a new one
+     * @param matrix Stored image
+     * @return Upright image
+     */
+    public Mat apply(Mat matrix){
+
+        if (!swapsDimensions){
+            apply(matrix, matrix);
+            return matrix;
+        }
+        Mat oriented = new Mat();
+        apply(matrix, oriented);
+        matrix.release();
+        return oriented;
+    }
+
+    /**
+     * Brings a stored image upright into another matrix, which may be the same one for
+     * the orientations that do not swap the dimensions
+     * @param stored Stored image
+     * @param upright Matrix the upright image is written to, reallocated by OpenCV only if
+     *                its size or type do not match
+     */
+    public void apply(Mat stored, Mat upright){
+
+        switch (this) {
+            case FLIP_HORIZONTAL:
+                Core.flip(stored, upright, 1);
+                break;
+            case ROTATE_180:
+                Core.flip(stored, upright, -1);
+                break;
+            case FLIP_VERTICAL:
+                Core.flip(stored, upright, 0);
+                break;
+            case TRANSPOSE:
+                Core.transpose(stored, upright);
+                break;
+            case ROTATE_90:
+                Core.rotate(stored, upright, Core.ROTATE_90_CLOCKWISE);
+                break;
+            case TRANSVERSE:
+                Core.rotate(stored, upright, Core.ROTATE_90_COUNTERCLOCKWISE);
+                Core.flip(upright, upright, 1);
+                break;
+            case ROTATE_270:
+                Core.rotate(stored, upright, Core.ROTATE_90_COUNTERCLOCKWISE);
+                break;
+            default:
+                if (upright != stored){
+                    stored.copyTo(upright);
+                }
+        }
+    }
+
+    /**
+     * Maps a rectangle found on the stored image to the upright image
+     * @param rectangle Rectangle on the stored image
+     * @param width Width of the stored image
+     * @param height Height of the stored image
+     * @return Rectangle covering the same content on the upright image
+     */
+    public Rect apply(Rect rectangle, int width, int height){
+
+        int left = rectangle.x;
+        int top = rectangle.y;
+        int right = width - rectangle.x - rectangle.width;
+        int bottom = height - rectangle.y - rectangle.height;
+        switch (this) {
+            case FLIP_HORIZONTAL:
+                return new Rect(right, top, rectangle.width, rectangle.height);
+            case ROTATE_180:
+                return new Rect(right, bottom, rectangle.width, rectangle.height);
+            case FLIP_VERTICAL:
+                return new Rect(left, bottom, rectangle.width, rectangle.height);
+            case TRANSPOSE:
+                return new Rect(top, left, rectangle.height, rectangle.width);
+            case ROTATE_90:
+                return new Rect(bottom, left, rectangle.height, rectangle.width);
+            case TRANSVERSE:
+                return new Rect(bottom, right, rectangle.height, rectangle.width);
+            case ROTATE_270:
+                return new Rect(top, right, rectangle.height, rectangle.width);
+            default:
+                return rectangle;
+        }
+    }
+}
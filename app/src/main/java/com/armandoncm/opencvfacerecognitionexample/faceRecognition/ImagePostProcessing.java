@@ -18,7 +18,7 @@ public class ImagePostProcessing {
      * the aspect ratio
      * @param image Image to be upscaled
      * @param desiredWidth Desired width of the upscaled image
-     * @return Upscaled image with the same aspect ratio
+     * @return Upscaled image with the same aspect ratio, obtained from the {@link ImageBufferPool}
      */
     public static Mat upscaleImage(Mat image, double desiredWidth){
 
@@ -28,8 +28,8 @@ public class ImagePostProcessing {
         double newWidth = desiredWidth;
         double newHeight = newWidth / aspectRatio;
 
-        Size newSize = new Size(newWidth, newHeight);
-        Mat resizedImage = new Mat();
+        Size newSize = new Size(Math.round(newWidth), Math.round(newHeight));
+        Mat resizedImage = ImageBufferPool.getInstance().obtainMatrix((int) newSize.height, (int) newSize.width, image.type());
         Imgproc.resize(image, resizedImage, newSize);
 
         return resizedImage;
@@ -1,17 +1,24 @@
 package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
 
 
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.net.Uri;
-import android.provider.MediaStore;
+import android.os.ParcelFileDescriptor;
 import android.support.media.ExifInterface;
 
 import com.armandoncm.opencvfacerecognitionexample.ApplicationCore;
 
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -22,86 +29,383 @@ import java.io.InputStream;
  */
 public class ImagePreProcessing {
 
+    /**
+     * Largest factor OpenCV can reduce an image by while decoding it
+     */
+    private static final int MAX_REDUCED_DECODE_FACTOR = 8;
+
+    /**
+     * Fraction of the side of a face added around it when its region is decoded, so that
+     * the crop shows the whole head and not just the box the detector found
+     */
+    private static final double FACE_REGION_PADDING = 0.25;
+
+    /**
+     * Buffer every thread reads the encoded images it loads into
+     */
+    private static final ThreadLocal<EncodedImageBuffer> ENCODED_IMAGE_BUFFER = new ThreadLocal<EncodedImageBuffer>() {
+        @Override
+        protected EncodedImageBuffer initialValue() {
+            return new EncodedImageBuffer();
+        }
+    };
+
+    /**
+     * Bridges every thread moves the pixels of the bitmaps it orients through, one holding
+     * the stored pixels and one the upright pixels when the orientation changes the shape
+     */
+    private static final ThreadLocal<BitmapMatBridge> STORED_PIXELS = new ThreadLocal<BitmapMatBridge>() {
+        @Override
+        protected BitmapMatBridge initialValue() {
+            return new BitmapMatBridge();
+        }
+    };
+
+    private static final ThreadLocal<BitmapMatBridge> UPRIGHT_PIXELS = new ThreadLocal<BitmapMatBridge>() {
+        @Override
+        protected BitmapMatBridge initialValue() {
+            return new BitmapMatBridge();
+        }
+    };
+
     /**
      * Removes the Color information from an OpenCV Matrix
      * @param matrix Original OpenCV Matrix to filter
-     * @return Gray Scale OpenCV Matrix
+     * @return Gray Scale OpenCV Matrix, obtained from the {@link ImageBufferPool}
      */
     public static Mat removeColorInformation(Mat matrix){
-        Mat grayScaleMatrix = new Mat();
+        Mat grayScaleMatrix = ImageBufferPool.getInstance().obtainMatrix(matrix.rows(), matrix.cols(), CvType.CV_8UC1);
         Imgproc.cvtColor(matrix, grayScaleMatrix, Imgproc.COLOR_RGB2GRAY);
         return grayScaleMatrix;
     }
 
     /**
-     * Rotates the given Android Bitmap to the correct orientation to display on an ImageView
-     * @param bitmap Bitmap whose orientation is to be corrected
-     * @param orientation Orientation attribute obtained by the ExifInterface EXIF tag reading capabilities
-     * @return Correctly oriented Android Bitmap
+     * Retrieves an Android Bitmap given its Uri, at the lowest resolution at which the
+     * smallest faces worth detecting are still large enough for the detector, see
+     * {@link FaceDetection#MINIMUM_FACE_FRACTION}
+     * @param uri Uri of the content to be fetched
+     * @return Android Bitmap
+     * @throws IOException If there was a problem retrieving the content
      */
-    private static Bitmap rotateBitmap(Bitmap bitmap, int orientation) {
+    public static Bitmap loadBitmap(Uri uri) throws IOException {
 
-        Matrix matrix = new Matrix();
-        switch (orientation) {
-            case ExifInterface.ORIENTATION_NORMAL:
-                return bitmap;
-            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
-                matrix.setScale(-1, 1);
-                break;
-            case ExifInterface.ORIENTATION_ROTATE_180:
-                matrix.setRotate(180);
-                break;
-            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
-                matrix.setRotate(180);
-                matrix.postScale(-1, 1);
-                break;
-            case ExifInterface.ORIENTATION_TRANSPOSE:
-                matrix.setRotate(90);
-                matrix.postScale(-1, 1);
-                break;
-            case ExifInterface.ORIENTATION_ROTATE_90:
-                matrix.setRotate(90);
+        return loadImage(uri, FaceDetection.getMinimumImageShortSide()).getBitmap();
+    }
+
+    /**
+     * Retrieves an image given its Uri, subsampled while it is decoded so that the full
+     * resolution pixels are never held in memory
+     * The content is read once into a reusable buffer, and its bounds, its EXIF orientation
+     * and its pixels are all decoded from those bytes. The largest power of two sample size
+     * keeping the shorter side of the image at or above the requested minimum is used
+     * @param uri Uri of the content to be fetched
+     * @param minimumShortSide Minimum length in pixels of the shorter side of the decoded image
+     * @return Decoded image, correctly oriented
+     * @throws IOException If there was a problem retrieving the content
+     */
+    public static DecodedImage loadImage(Uri uri, int minimumShortSide) throws IOException {
+
+        EncodedImageBuffer buffer = ENCODED_IMAGE_BUFFER.get();
+        try {
+            readContent(uri, buffer);
+            return decodeImage(buffer, minimumShortSide);
+        } finally {
+            buffer.trim();
+            trimBridges();
+        }
+    }
+
+    /**
+     * Retrieves an image given its Uri straight into a gray scale OpenCV Matrix (Mat),
+     * without going through a color bitmap and a color matrix
+     * Mirrored images, whose faces are still upright, are left as stored and the mirror is
+     * returned for the rectangles found on them to be transformed instead, any other EXIF
+     * orientation is applied to the gray scale matrix
+     * The encoded bytes are decoded by OpenCV, JPEG images being reduced by a factor of up to
+     * eight while they are decoded, which keeps the shorter side of the image at or above the
+     * requested minimum
+     * @param uri Uri of the content to be fetched
+     * @param minimumShortSide Minimum length in pixels of the shorter side of the decoded image
+     * @return Decoded image holding a gray scale matrix with upright faces
+     * @throws IOException If there was a problem retrieving or decoding the content
+     */
+    public static DecodedImage loadGrayMatrix(Uri uri, int minimumShortSide) throws IOException {
+
+        EncodedImageBuffer buffer = ENCODED_IMAGE_BUFFER.get();
+        try {
+            readContent(uri, buffer);
+
+            // Only the header is parsed to learn the dimensions of the image
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(buffer.getData(), 0, buffer.getLength(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0){
+                throw new IOException("Could not read the bounds of the image " + uri);
+            }
+            int sampleSize = Math.min(MAX_REDUCED_DECODE_FACTOR,
+                    calculateSampleSize(options.outWidth, options.outHeight, minimumShortSide));
+
+            Mat encoded = new Mat(1, buffer.getLength(), CvType.CV_8UC1);
+            encoded.put(0, 0, buffer.getData(), 0, buffer.getLength());
+            Mat matrix = Imgcodecs.imdecode(encoded, grayDecodeFlags(sampleSize));
+            encoded.release();
+            if (matrix.empty()){
+                throw new IOException("Could not decode the image " + uri);
+            }
+
+            // Images whose faces are already upright are not transformed, only what is found on them
+            ImageOrientation orientation = readOrientation(buffer);
+            ImageOrientation pendingOrientation = orientation;
+            if (!orientation.keepsFacesUpright()){
+                matrix = orientation.apply(matrix);
+                pendingOrientation = ImageOrientation.NORMAL;
+            }
+            boolean transposed = orientation.swapsDimensions();
+            return new DecodedImage(matrix, orientation, pendingOrientation, sampleSize,
+                    transposed ? options.outHeight : options.outWidth, transposed ? options.outWidth : options.outHeight);
+        } finally {
+            buffer.trim();
+        }
+    }
+
+    /**
+     * @param sampleSize Factor the resolution is divided by, one, two, four or eight
+     * @return Flags making OpenCV decode a gray scale image reduced by the factor, the EXIF
+     * orientation is left to {@link ImageOrientation}
+     */
+    private static int grayDecodeFlags(int sampleSize){
+
+        int flags;
+        switch (sampleSize){
+            case 2:
+                flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
                 break;
-            case ExifInterface.ORIENTATION_TRANSVERSE:
-                matrix.setRotate(-90);
-                matrix.postScale(-1, 1);
+            case 4:
+                flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
                 break;
-            case ExifInterface.ORIENTATION_ROTATE_270:
-                matrix.setRotate(-90);
+            case 8:
+                flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
                 break;
             default:
-                return bitmap;
+                flags = Imgcodecs.IMREAD_GRAYSCALE;
         }
+        return flags | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+    }
+
+    /**
+     * @return Orientation of the encoded image, normal if it could not be read
+     */
+    private static ImageOrientation readOrientation(EncodedImageBuffer buffer){
+
         try {
-            return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        }
-        catch (OutOfMemoryError e) {
+            return ImageOrientation.fromExif(new ExifInterface(buffer.openStream())
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED));
+        } catch (IOException e){
             e.printStackTrace();
-            return null;
+            return ImageOrientation.NORMAL;
         }
     }
 
     /**
-     * Retrieves an Android Bitmap given its Uri
-     * @param uri Uri of the content to be fetched
-     * @return Android Bitmap
-     * @throws IOException If there was a problem retrieving the content
+     * Reads the whole content of a Uri into a buffer, the size reported by its file
+     * descriptor, when there is one, is used to size the buffer upfront
      */
-    public static Bitmap loadBitmap(Uri uri) throws IOException {
+    private static void readContent(Uri uri, EncodedImageBuffer buffer) throws IOException {
 
-        Bitmap bitmap = MediaStore.Images.Media.getBitmap(ApplicationCore.getContext().getContentResolver(), uri);
+        ContentResolver contentResolver = ApplicationCore.getContext().getContentResolver();
+        long expectedLength = -1;
+        ParcelFileDescriptor fileDescriptor = null;
+        try {
+            fileDescriptor = contentResolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e){
+            // Streamed content without a file descriptor, it is read from a stream below
+        }
 
+        InputStream inputStream;
+        if (fileDescriptor != null){
+            expectedLength = fileDescriptor.getStatSize();
+            inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+        } else {
+            inputStream = contentResolver.openInputStream(uri);
+            if (inputStream == null){
+                throw new IOException("Could not open the content " + uri);
+            }
+        }
         try {
-            InputStream inputStream = ApplicationCore.getContext().getContentResolver().openInputStream(uri);
-            assert inputStream != null;
-            ExifInterface exifInterface = new ExifInterface(inputStream);
-            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-            return rotateBitmap(bitmap, orientation);
-        } catch (IOException e){
-            e.printStackTrace();
-            // If the orientation correction attempt failed, return the bitmap as is
+            buffer.readFrom(inputStream, expectedLength);
+        } finally {
+            inputStream.close();
+            if (fileDescriptor != null){
+                fileDescriptor.close();
+            }
+        }
+    }
+
+    private static DecodedImage decodeImage(EncodedImageBuffer buffer, int minimumShortSide) throws IOException {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(buffer.getData(), 0, buffer.getLength(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0){
+            throw new IOException("Could not read the bounds of the image");
+        }
+        int originalWidth = options.outWidth;
+        int originalHeight = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(originalWidth, originalHeight, minimumShortSide);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(buffer.getData(), 0, buffer.getLength(), options);
+        if (bitmap == null){
+            throw new IOException("Could not decode the image");
+        }
+
+        ImageOrientation orientation = readOrientation(buffer);
+        bitmap = orientBitmap(bitmap, orientation);
+        boolean transposed = orientation.swapsDimensions();
+        return new DecodedImage(bitmap, orientation, options.inSampleSize,
+                transposed ? originalHeight : originalWidth, transposed ? originalWidth : originalHeight);
+    }
+
+    /**
+     * Brings a stored bitmap upright as a matrix, without the filtered copy
+     * Bitmap.createBitmap makes, the given bitmap is returned to the
+     * {@link ImageBufferPool} if it is transformed
+     * The pixels are moved through direct buffers shared with the matrices, so they are
+     * copied once in, transformed, and copied once out, flips being done in place
+     * @param bitmap Stored ARGB_8888 bitmap
+     * @param orientation Orientation of the bitmap
+     * @return Upright bitmap
+     */
+    private static Bitmap orientBitmap(Bitmap bitmap, ImageOrientation orientation){
+
+        if (orientation == ImageOrientation.NORMAL){
             return bitmap;
         }
+        BitmapMatBridge stored = STORED_PIXELS.get();
+        Mat storedMatrix = stored.readFrom(bitmap);
+        ImageBufferPool.getInstance().recycle(bitmap);
+
+        BitmapMatBridge upright = stored;
+        Mat uprightMatrix = storedMatrix;
+        if (orientation.swapsDimensions()){
+            upright = UPRIGHT_PIXELS.get();
+            uprightMatrix = upright.getMatrix(storedMatrix.rows(), storedMatrix.cols());
+        }
+        orientation.apply(storedMatrix, uprightMatrix);
+        return upright.toBitmap();
+    }
+
+    /**
+     * Drops the pixel buffers of this thread that grew too large to be kept
+     */
+    private static void trimBridges(){
+
+        STORED_PIXELS.get().trim();
+        UPRIGHT_PIXELS.get().trim();
+    }
+
+    /**
+     * Second phase of loading a photo: once the faces were detected on a reduced decode of
+     * it, only the padded face rectangles are decoded again, at the lowest resolution
+     * keeping their shorter side at or above the requested minimum and at full resolution
+     * if they are smaller. The rest of the photo is never decoded, so the memory and time
+     * taken are proportional to the area of the faces rather than to the size of the photo
+     * @param uri Uri of the photo the image was decoded from
+     * @param image Reduced decode of the photo the faces were detected on
+     * @param faces Rectangles the faces were detected in, on the decoded image
+     * @param minimumShortSide Minimum length in pixels of the shorter side of every region
+     * @return Upright color bitmap of every face, in the order of the rectangles
+     * @throws IOException If there was a problem retrieving or decoding the content
+     */
+    public static Bitmap[] loadFaceRegions(Uri uri, DecodedImage image, Rect[] faces, int minimumShortSide) throws IOException {
+
+        Mat matrix = image.getMatrix();
+        int width = matrix != null ? matrix.cols() : image.getBitmap().getWidth();
+        int height = matrix != null ? matrix.rows() : image.getBitmap().getHeight();
+
+        BitmapRegionDecoder decoder = openRegionDecoder(uri);
+        try {
+            Bitmap[] regions = new Bitmap[faces.length];
+            for (int i = 0; i < faces.length; i++){
+                Rect face = faces[i];
+                int padding = (int) (Math.max(face.width, face.height) * FACE_REGION_PADDING);
+                int left = Math.max(0, face.x - padding);
+                int top = Math.max(0, face.y - padding);
+                int right = Math.min(width, face.x + face.width + padding);
+                int bottom = Math.min(height, face.y + face.height + padding);
+                Rect region = image.toEncoded(new Rect(left, top, right - left, bottom - top));
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = calculateSampleSize(region.width, region.height, Math.max(1, minimumShortSide));
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                Bitmap bitmap = decoder.decodeRegion(new android.graphics.Rect(region.x, region.y,
+                        region.x + region.width, region.y + region.height), options);
+                if (bitmap == null){
+                    throw new IOException("Could not decode the region " + region + " of the image " + uri);
+                }
+                regions[i] = orientBitmap(bitmap, image.getEncodedOrientation());
+            }
+            return regions;
+        } finally {
+            decoder.recycle();
+            trimBridges();
+        }
+    }
+
+    /**
+     * Opens a region decoder over the file descriptor of a Uri when there is one, so that
+     * only the parts of the file holding the requested regions are read, and over a stream
+     * of its content otherwise
+     */
+    private static BitmapRegionDecoder openRegionDecoder(Uri uri) throws IOException {
+
+        ContentResolver contentResolver = ApplicationCore.getContext().getContentResolver();
+        ParcelFileDescriptor fileDescriptor = null;
+        try {
+            fileDescriptor = contentResolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e){
+            // Streamed content without a file descriptor, it is decoded from a stream below
+        }
+
+        BitmapRegionDecoder decoder;
+        if (fileDescriptor != null){
+            try {
+                decoder = BitmapRegionDecoder.newInstance(fileDescriptor.getFileDescriptor(), false);
+            } finally {
+                fileDescriptor.close();
+            }
+        } else {
+            InputStream inputStream = contentResolver.openInputStream(uri);
+            if (inputStream == null){
+                throw new IOException("Could not open the content " + uri);
+            }
+            try {
+                decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            } finally {
+                inputStream.close();
+            }
+        }
+        if (decoder == null){
+            throw new IOException("Could not decode regions of the image " + uri);
+        }
+        return decoder;
+    }
+
+    /**
+     * @param width Width of the full resolution image
+     * @param height Height of the full resolution image
+     * @param minimumShortSide Minimum length in pixels of the shorter side of the decoded image
+     * @return Largest power of two sample size keeping the shorter side at or above the minimum
+     */
+    static int calculateSampleSize(int width, int height, int minimumShortSide){
+
+        int shortSide = Math.min(width, height);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= minimumShortSide){
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 
 
@@ -0,0 +1,164 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Gaussian pyramid of an image: the image itself followed by levels halving its width and
+ * height one after the other, shared by every stage that needs the image at a lower
+ * resolution, i.e. detection, face chips and thumbnails, so that it is reduced once
+ * instead of once per stage
+ *
+ * Levels are computed on demand with {@link Imgproc#pyrDown}, each one from the level
+ * above it, and only the levels some stage asked for and the ones above them are ever
+ * computed. The pyramid owns its image and its levels, their pixel buffers are obtained
+ * from the {@link ImageBufferPool} and all of them are given back by {@link #release()}
+ * once the image has been processed. A pyramid is meant to be used by a single thread
+ *
+ * @author ArmandoNCM
+ */
+public class ImagePyramid {
+
+    /**
+     * Shortest side a level may have
+     */
+    private static final int MINIMUM_LEVEL_SIDE = 8;
+
+    private final Mat[] levels;
+
+    private final int[] widths;
+
+    private final int[] heights;
+
+    /**
+     * @param image Base of the pyramid, owned by the pyramid from now on
+     */
+    public ImagePyramid(Mat image){
+
+        int count = 1;
+        for (int width = image.cols(), height = image.rows();
+             Math.min((width + 1) / 2, (height + 1) / 2) >= MINIMUM_LEVEL_SIDE;
+             width = (width + 1) / 2, height = (height + 1) / 2){
+            count++;
+        }
+        levels = new Mat[count];
+        widths = new int[count];
+        heights = new int[count];
+        levels[0] = image;
+        widths[0] = image.cols();
+        heights[0] = image.rows();
+        for (int level = 1; level < count; level++){
+            // Sizes pyrDown produces by default
+            widths[level] = (widths[level - 1] + 1) / 2;
+            heights[level] = (heights[level - 1] + 1) / 2;
+        }
+    }
+
+    /**
+     * @return Number of levels, including the base
+     */
+    public int getLevelCount(){
+        return levels.length;
+    }
+
+    /**
+     * @param level Level of the pyramid, zero being the base
+     * @return Width of the level, known without computing it
+     */
+    public int getWidth(int level){
+        return widths[level];
+    }
+
+    /**
+     * @param level Level of the pyramid, zero being the base
+     * @return Height of the level, known without computing it
+     */
+    public int getHeight(int level){
+        return heights[level];
+    }
+
+    /**
+     * Gives a level of the pyramid, computing it and the missing levels above it if needed
+     * @param level Level of the pyramid, zero being the base
+     * @return Image of the level, owned by the pyramid
+     */
+    public Mat getLevel(int level){
+
+        if (levels[level] == null){
+            Mat above = getLevel(level - 1);
+            Mat reduced = ImageBufferPool.getInstance().obtainMatrix(heights[level], widths[level], above.type());
+            Imgproc.pyrDown(above, reduced);
+            levels[level] = reduced;
+        }
+        return levels[level];
+    }
+
+    /**
+     * @param minimumShortSide Minimum length in pixels of the shorter side of the level
+     * @return Deepest level whose shorter side is at or above the minimum, the base if
+     * even the base is shorter
+     */
+    public int levelFor(int minimumShortSide){
+
+        int level = 0;
+        while (level + 1 < levels.length && Math.min(widths[level + 1], heights[level + 1]) >= minimumShortSide){
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Maps a rectangle found on a level to the base of the pyramid
+     * @param rectangle Rectangle on the level
+     * @param level Level the rectangle was found on
+     * @return Rectangle covering the same area of the base
+     */
+    public Rect toBase(Rect rectangle, int level){
+
+        if (level == 0){
+            return rectangle;
+        }
+        double scaleX = (double) widths[0] / widths[level];
+        double scaleY = (double) heights[0] / heights[level];
+        int left = (int) Math.round(rectangle.x * scaleX);
+        int top = (int) Math.round(rectangle.y * scaleY);
+        int right = Math.min(widths[0], (int) Math.round((rectangle.x + rectangle.width) * scaleX));
+        int bottom = Math.min(heights[0], (int) Math.round((rectangle.y + rectangle.height) * scaleY));
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Maps a rectangle on the base of the pyramid to a level
+     * @param rectangle Rectangle on the base
+     * @param level Level the rectangle is mapped to
+     * @return Rectangle covering the same area of the level, never empty
+     */
+    public Rect fromBase(Rect rectangle, int level){
+
+        if (level == 0){
+            return rectangle;
+        }
+        double scaleX = (double) widths[level] / widths[0];
+        double scaleY = (double) heights[level] / heights[0];
+        int left = Math.min(widths[level] - 1, (int) Math.floor(rectangle.x * scaleX));
+        int top = Math.min(heights[level] - 1, (int) Math.floor(rectangle.y * scaleY));
+        int right = Math.min(widths[level], Math.max(left + 1, (int) Math.ceil((rectangle.x + rectangle.width) * scaleX)));
+        int bottom = Math.min(heights[level], Math.max(top + 1, (int) Math.ceil((rectangle.y + rectangle.height) * scaleY)));
+        return new Rect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Gives back the base and every computed level, the pyramid must not be used anymore
+     */
+    public void release(){
+
+        ImageBufferPool pool = ImageBufferPool.getInstance();
+        for (int level = 0; level < levels.length; level++){
+            if (levels[level] != null){
+                pool.recycle(levels[level]);
+                levels[level] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted-file (IVF) index over face templates
+ * The template space is partitioned by coarse centroids trained with OpenCV's K-Means,
+ * every enrolled template is appended to the posting list of its nearest centroid and a
+ * query only scans the lists of its closest centroids, computing there the exact distance
+ * of the recognition method
+ *
+ * Lists are chosen by the euclidean distance to the centroids, which is what K-Means
+ * minimizes. Templates can be added at any moment without retraining the centroids
+ *
+ * @author ArmandoNCM
+ */
+public class InvertedFileIndex {
+
+    private static final int INITIAL_LIST_CAPACITY = 16;
+
+    private final RecognitionMethod method;
+
+    private final int dimension;
+
+    private final int listCount;
+
+    /**
+     * Coarse centroids laid out as [list][component]
+     */
+    private final float[] centroids;
+
+    private final int[][] listTemplateIndices;
+
+    private final int[][] listLabels;
+
+    private final float[][] listVectors;
+
+    private final int[] listSizes;
+
+    /**
+     * Queries share the read lock, adding takes the write lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int size;
+
+    InvertedFileIndex(RecognitionMethod method, int dimension, int listCount, float[] centroids){
+
+        this.method = method;
+        this.dimension = dimension;
+        this.listCount = listCount;
+        this.centroids = centroids;
+        listTemplateIndices = new int[listCount][INITIAL_LIST_CAPACITY];
+        listLabels = new int[listCount][INITIAL_LIST_CAPACITY];
+        listVectors = new float[listCount][INITIAL_LIST_CAPACITY * dimension];
+        listSizes = new int[listCount];
+    }
+
+    /**
+     * Trains the coarse centroids of an empty index with K-Means
+     * @param method Recognition method deciding the distance of the matches
+     * @param vectors Training vectors stored one after the other
+     * @param count Number of training vectors
+     * @param dimension Number of components of each vector
+     * @param listCount Desired number of posting lists, capped at the number of training vectors
+     * @param iterations Maximum number of K-Means iterations
+     * @return Empty index ready to receive templates
+     */
+    public static InvertedFileIndex train(RecognitionMethod method, float[] vectors, int count, int dimension, int listCount, int iterations){
+
+        if (count <= 0){
+            throw new IllegalArgumentException("At least one training vector is required");
+        }
+        // K-Means cannot produce more clusters than there are samples
+        int clusters = Math.min(listCount, count);
+
+        Mat samples = new Mat(count, dimension, CvType.CV_32F);
+        samples.put(0, 0, Arrays.copyOf(vectors, count * dimension));
+        Mat bestLabels = new Mat();
+        Mat centers = new Mat();
+        TermCriteria criteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, iterations, 1e-4);
+        Core.kmeans(samples, clusters, bestLabels, criteria, 1, Core.KMEANS_PP_CENTERS, centers);
+
+        float[] centroids = new float[clusters * dimension];
+        centers.get(0, 0, centroids);
+
+        samples.release();
+        bestLabels.release();
+        centers.release();
+
+        return new InvertedFileIndex(method, dimension, clusters, centroids);
+    }
+
+    /**
+     * Builds an index holding every template of a gallery snapshot, the centroids persisted
+     * with the model of the snapshot are reused when they are as many as requested,
+     * otherwise they are trained on the templates of the snapshot
+     * @param snapshot Gallery snapshot holding at least one template
+     * @param listCount Desired number of posting lists
+     * @param iterations Maximum number of K-Means iterations
+     * @return Index whose template indices are the gallery indices of the snapshot
+     */
+    public static InvertedFileIndex build(GallerySnapshot snapshot, int listCount, int iterations){
+
+        int dimension = snapshot.getDimension();
+        float[] templates = new float[snapshot.size() * dimension];
+        int[] labels = new int[snapshot.size()];
+        float[] template = new float[dimension];
+        for (int i = 0; i < snapshot.size(); i++){
+            labels[i] = snapshot.getTemplate(i, template);
+            System.arraycopy(template, 0, templates, i * dimension, dimension);
+        }
+
+        InvertedFileIndex persisted = snapshot.getModel() == null ? null : snapshot.getModel().getInvertedFileIndex();
+        InvertedFileIndex index = persisted != null && persisted.getListCount() == listCount
+                ? new InvertedFileIndex(snapshot.getMethod(), dimension, listCount, persisted.getCentroids())
+                : train(snapshot.getMethod(), templates, snapshot.size(), dimension, listCount, iterations);
+        for (int i = 0; i < snapshot.size(); i++){
+            System.arraycopy(templates, i * dimension, template, 0, dimension);
+            index.add(i, labels[i], template);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a template to the posting list of its nearest coarse centroid
+     * @param templateIndex Index identifying the template, reported back in the matches
+     * @param label Label of the person the template belongs to
+     * @param template Face template
+     */
+    public void add(int templateIndex, int label, float[] template){
+
+        if (template.length != dimension){
+            throw new IllegalArgumentException("Expected a template of dimension " + dimension + " but got " + template.length);
+        }
+        int list = VectorDistances.nearestRow(template, 0, centroids, listCount, dimension);
+        lock.writeLock().lock();
+        try {
+            addToList(list, templateIndex, label, template);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addToList(int list, int templateIndex, int label, float[] template){
+
+        int position = listSizes[list];
+        if (position == listLabels[list].length){
+            int newCapacity = position * 2;
+            listTemplateIndices[list] = Arrays.copyOf(listTemplateIndices[list], newCapacity);
+            listLabels[list] = Arrays.copyOf(listLabels[list], newCapacity);
+            listVectors[list] = Arrays.copyOf(listVectors[list], newCapacity * dimension);
+        }
+        listTemplateIndices[list][position] = templateIndex;
+        listLabels[list][position] = label;
+        System.arraycopy(template, 0, listVectors[list], position * dimension, dimension);
+        listSizes[list] = position + 1;
+        size++;
+    }
+
+    /**
+     * Rebuilds an index persisted in a model file, the templates are put back in the
+     * posting lists they were assigned to without computing any distance
+     * @param method Recognition method deciding the distance of the matches
+     * @param dimension Number of components of the templates
+     * @param centroids Coarse centroids laid out one after the other
+     * @param assignments Posting list of every template
+     * @param labels Label of every template
+     * @param templates Templates laid out one after the other
+     * @return Restored index
+     */
+    static InvertedFileIndex restore(RecognitionMethod method, int dimension, FloatBuffer centroids, IntBuffer assignments, IntBuffer labels, FloatBuffer templates){
+
+        float[] centroidValues = new float[centroids.remaining()];
+        centroids.duplicate().get(centroidValues);
+        InvertedFileIndex index = new InvertedFileIndex(method, dimension, centroidValues.length / dimension, centroidValues);
+
+        float[] template = new float[dimension];
+        int count = assignments.remaining();
+        for (int i = 0; i < count; i++){
+            for (int component = 0; component < dimension; component++){
+                template[component] = templates.get(i * dimension + component);
+            }
+            index.addToList(assignments.get(i), i, labels.get(i), template);
+        }
+        return index;
+    }
+
+    /**
+     * @return Coarse centroids laid out one after the other
+     */
+    float[] getCentroids(){
+        return centroids;
+    }
+
+    /**
+     * Collects the posting list of every template, templates must have been added with
+     * indices ranging from zero to the given count
+     * @param count Number of templates
+     * @return Posting list of every template
+     */
+    int[] getAssignments(int count){
+
+        int[] assignments = new int[count];
+        lock.readLock().lock();
+        try {
+            for (int list = 0; list < listCount; list++){
+                for (int i = 0; i < listSizes[list]; i++){
+                    assignments[listTemplateIndices[list][i]] = list;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return assignments;
+    }
+
+    /**
+     * @return Number of templates in the index
+     */
+    public int size(){
+
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of posting lists
+     */
+    public int getListCount(){
+        return listCount;
+    }
+
+    /**
+     * @return Recognition method deciding the distance of the matches
+     */
+    public RecognitionMethod getMethod(){
+        return method;
+    }
+
+    /**
+     * @return Number of components of the indexed templates
+     */
+    public int getDimension(){
+        return dimension;
+    }
+
+    /**
+     * Searches the K closest templates among the posting lists of the closest centroids
+     * @param query Query template
+     * @param k Number of matches to return
+     * @param probes Number of posting lists to scan (nprobe), the more the higher the recall
+     * @return Matches sorted from the closest to the farthest, with exact distances of the
+     * recognition method
+     */
+    public FaceMatch[] search(float[] query, int k, int probes){
+
+        int[] lists = closestLists(query, Math.min(probes, listCount));
+        TopKCollector collector = new TopKCollector(k);
+        lock.readLock().lock();
+        try {
+            for (int list : lists){
+                int[] templateIndices = listTemplateIndices[list];
+                int[] labels = listLabels[list];
+                float[] vectors = listVectors[list];
+                int listSize = listSizes[list];
+                for (int i = 0; i < listSize; i++){
+                    collector.offer(templateIndices[i], labels[i], VectorDistances.distance(method, query, 0,
+                            vectors, i * dimension, dimension, null, collector.bound()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return collector.toMatches();
+    }
+
+    /**
+     * Selects the posting lists whose centroids are the closest to the query
+     * @param query Query template
+     * @param probes Number of lists to select
+     * @return Indices of the selected lists
+     */
+    private int[] closestLists(float[] query, int probes){
+
+        TopKCollector collector = new TopKCollector(probes);
+        for (int list = 0; list < listCount; list++){
+            collector.offer(list, list, VectorDistances.squaredL2(query, 0, centroids, list * dimension, dimension));
+        }
+        FaceMatch[] closest = collector.toMatches();
+        int[] lists = new int[closest.length];
+        for (int i = 0; i < closest.length; i++){
+            lists[i] = closest[i].getTemplateIndex();
+        }
+        return lists;
+    }
+}
@@ -0,0 +1,453 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary container for trained face recognition models and galleries
+ *
+ * The file starts with a fixed size header followed by a directory of sections, both
+ * protected by a CRC32 checksum, and then the section payloads aligned to 64 bytes.
+ * Every section is a little-endian matrix of 32 bit floats, 32 bit integers or bytes.
+ * Files are opened by memory-mapping them, so the sections are exposed as views over
+ * the mapping and their pages are only read from storage when they are accessed
+ *
+ * @author ArmandoNCM
+ */
+public class ModelFile {
+
+    /**
+     * "FCMD" in ASCII
+     */
+    private static final int MAGIC = 0x46434D44;
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int DIRECTORY_ENTRY_SIZE = 32;
+
+    private static final int ALIGNMENT = 64;
+
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    public static final int ELEMENT_FLOAT32 = 1;
+    public static final int ELEMENT_INT32 = 2;
+    public static final int ELEMENT_UINT8 = 3;
+
+    public static final int SECTION_LABELS = 1;
+    public static final int SECTION_TEMPLATES = 2;
+    public static final int SECTION_MEAN = 3;
+    public static final int SECTION_PROJECTION = 4;
+    public static final int SECTION_IVF_CENTROIDS = 5;
+    public static final int SECTION_IVF_ASSIGNMENTS = 6;
+    public static final int SECTION_PQ_CODEBOOKS = 7;
+    public static final int SECTION_PQ_CODES = 8;
+    public static final int SECTION_METHOD = 9;
+
+    private final ByteBuffer mapping;
+
+    private final List<Section> sections;
+
+    private ModelFile(ByteBuffer mapping, List<Section> sections){
+        this.mapping = mapping;
+        this.sections = sections;
+    }
+
+    /**
+     * Memory-maps a model file and validates its header
+     * Only the header and the section directory are read, the payloads are paged in
+     * lazily when the returned views are accessed
+     * @param file Model file to be opened
+     * @return Opened model file
+     * @throws IOException If the file could not be mapped or is not a valid model file
+     */
+    public static ModelFile open(File file) throws IOException {
+
+        MappedByteBuffer mapping;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE){
+                throw new IOException("Model files larger than 2 GB are not supported: " + file);
+            }
+            if (length < HEADER_SIZE){
+                throw new IOException("Truncated model file: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mapping.getInt(0) != MAGIC){
+            throw new IOException("Not a model file: " + file);
+        }
+        int version = mapping.getInt(4);
+        if (version != VERSION){
+            throw new IOException("Unsupported model file version " + version + ": " + file);
+        }
+        int sectionCount = mapping.getInt(8);
+        long fileLength = mapping.getLong(16);
+        int checksum = mapping.getInt(24);
+        // The count is checked before sizing the directory with it, a corrupted one could overflow
+        if (sectionCount < 0 || sectionCount > (mapping.capacity() - HEADER_SIZE) / DIRECTORY_ENTRY_SIZE
+                || fileLength != mapping.capacity()){
+            throw new IOException("Corrupted model file header: " + file);
+        }
+        long directoryEnd = HEADER_SIZE + (long) sectionCount * DIRECTORY_ENTRY_SIZE;
+        if (checksum != headerChecksum(mapping, sectionCount)){
+            throw new IOException("Model file header checksum mismatch: " + file);
+        }
+
+        List<Section> sections = new ArrayList<>(sectionCount);
+        for (int i = 0; i < sectionCount; i++){
+            int position = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            Section section = new Section(mapping.getInt(position), mapping.getInt(position + 4),
+                    mapping.getInt(position + 8), mapping.getInt(position + 12), null);
+            section.offset = mapping.getLong(position + 16);
+            long byteLength = mapping.getLong(position + 24);
+            // Lengths are compared with what is left after the offset, a sum could overflow
+            if (section.rows < 0 || section.columns < 0 || byteLength < 0 || byteLength != section.byteLength()
+                    || section.offset < directoryEnd || section.offset > fileLength || byteLength > fileLength - section.offset){
+                throw new IOException("Corrupted model file section " + section.type + ": " + file);
+            }
+            for (Section previous : sections){
+                if (previous.type == section.type){
+                    throw new IOException("Duplicate model file section " + section.type + ": " + file);
+                }
+            }
+            sections.add(section);
+        }
+        return new ModelFile(mapping, sections);
+    }
+
+    /**
+     * @param type Section type
+     * @return True if the file holds a section of the given type
+     */
+    public boolean hasSection(int type){
+        return findSection(type) != null;
+    }
+
+    /**
+     * @param type Section type
+     * @return Number of rows of the section
+     */
+    public int getRows(int type){
+        return requireSection(type, -1).rows;
+    }
+
+    /**
+     * @param type Section type
+     * @return Number of columns of the section
+     */
+    public int getColumns(int type){
+        return requireSection(type, -1).columns;
+    }
+
+    /**
+     * @param type Type of a section of 32 bit floats
+     * @return Read-only view over the section, no data is copied
+     */
+    public FloatBuffer getFloatSection(int type){
+        return slice(requireSection(type, ELEMENT_FLOAT32)).asFloatBuffer();
+    }
+
+    /**
+     * @param type Type of a section of 32 bit integers
+     * @return Read-only view over the section, no data is copied
+     */
+    public IntBuffer getIntSection(int type){
+        return slice(requireSection(type, ELEMENT_INT32)).asIntBuffer();
+    }
+
+    /**
+     * @param type Type of a section of bytes
+     * @return Read-only view over the section, no data is copied
+     */
+    public ByteBuffer getByteSection(int type){
+        return slice(requireSection(type, ELEMENT_UINT8));
+    }
+
+    private ByteBuffer slice(Section section){
+
+        ByteBuffer view = mapping.duplicate();
+        view.position((int) section.offset);
+        view.limit((int) (section.offset + section.byteLength()));
+        // Slicing resets the byte order, it has to be set again on the view
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private Section findSection(int type){
+
+        for (Section section : sections){
+            if (section.type == type){
+                return section;
+            }
+        }
+        return null;
+    }
+
+    private Section requireSection(int type, int elementType){
+
+        Section section = findSection(type);
+        if (section == null){
+            throw new IllegalArgumentException("The model file has no section of type " + type);
+        }
+        if (elementType >= 0 && section.elementType != elementType){
+            throw new IllegalArgumentException("Section " + type + " holds elements of type " + section.elementType);
+        }
+        return section;
+    }
+
+    private static int headerChecksum(ByteBuffer buffer, int sectionCount){
+
+        CRC32 crc = new CRC32();
+        // Everything up to the checksum field, then the section directory
+        for (int i = 0; i < 24; i++){
+            crc.update(buffer.get(i));
+        }
+        int directoryEnd = HEADER_SIZE + sectionCount * DIRECTORY_ENTRY_SIZE;
+        for (int i = HEADER_SIZE; i < directoryEnd; i++){
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private static long align(long position){
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static class Section {
+
+        private final int type;
+
+        private final int elementType;
+
+        private final int rows;
+
+        private final int columns;
+
+        /**
+         * Consecutive parts of the data, null for the sections of an opened file
+         */
+        private final Buffer[] data;
+
+        private long offset;
+
+        private Section(int type, int elementType, int rows, int columns, Buffer[] data){
+            this.type = type;
+            this.elementType = elementType;
+            this.rows = rows;
+            this.columns = columns;
+            this.data = data;
+        }
+
+        /**
+         * @return Length of the data in bytes, -1 if it does not fit in a long
+         */
+        private long byteLength(){
+
+            // The product of two non negative integers always fits in a long, its bytes may not
+            long elements = (long) rows * columns;
+            if (elementType == ELEMENT_UINT8){
+                return elements;
+            }
+            return elements > Long.MAX_VALUE / 4 ? -1 : elements * 4;
+        }
+    }
+
+    /**
+     * Collects the sections of a model file and writes them to storage
+     */
+    public static class Writer {
+
+        private final List<Section> sections = new ArrayList<>();
+
+        /**
+         * Adds a section of 32 bit floats
+         * @param type Section type
+         * @param rows Number of rows
+         * @param columns Number of columns
+         * @param data Row-major data, in one or more consecutive parts each read from its
+         *             current position
+         * @return This writer
+         */
+        public Writer addSection(int type, int rows, int columns, FloatBuffer... data){
+            return add(new Section(type, ELEMENT_FLOAT32, rows, columns, data));
+        }
+
+        /**
+         * Adds a section of 32 bit integers
+         * @param type Section type
+         * @param rows Number of rows
+         * @param columns Number of columns
+         * @param data Row-major data, in one or more consecutive parts each read from its
+         *             current position
+         * @return This writer
+         */
+        public Writer addSection(int type, int rows, int columns, IntBuffer... data){
+            return add(new Section(type, ELEMENT_INT32, rows, columns, data));
+        }
+
+        /**
+         * Adds a section of bytes
+         * @param type Section type
+         * @param rows Number of rows
+         * @param columns Number of columns
+         * @param data Row-major data, in one or more consecutive parts each read from its
+         *             current position
+         * @return This writer
+         */
+        public Writer addSection(int type, int rows, int columns, ByteBuffer... data){
+            return add(new Section(type, ELEMENT_UINT8, rows, columns, data));
+        }
+
+        private Writer add(Section section){
+
+            for (Section previous : sections){
+                if (previous.type == section.type){
+                    throw new IllegalArgumentException("Section " + section.type + " was already added");
+                }
+            }
+            long available = 0;
+            for (Buffer part : section.data){
+                available += part.remaining();
+            }
+            if (available < (long) section.rows * section.columns){
+                throw new IllegalArgumentException("Section " + section.type + " has less data than its declared size");
+            }
+            sections.add(section);
+            return this;
+        }
+
+        /**
+         * Writes the model file, the data is first written to a temporary file which then
+         * replaces the destination so that readers never observe a partially written model
+         * @param file Destination file
+         * @throws IOException If the file could not be written
+         */
+        public void writeTo(File file) throws IOException {
+
+            long position = HEADER_SIZE + (long) sections.size() * DIRECTORY_ENTRY_SIZE;
+            for (Section section : sections){
+                section.offset = align(position);
+                position = section.offset + section.byteLength();
+            }
+            long fileLength = position;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + sections.size() * DIRECTORY_ENTRY_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, sections.size());
+            header.putLong(16, fileLength);
+            for (int i = 0; i < sections.size(); i++){
+                Section section = sections.get(i);
+                int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+                header.putInt(entry, section.type);
+                header.putInt(entry + 4, section.elementType);
+                header.putInt(entry + 8, section.rows);
+                header.putInt(entry + 12, section.columns);
+                header.putLong(entry + 16, section.offset);
+                header.putLong(entry + 24, section.byteLength());
+            }
+            header.putInt(24, headerChecksum(header, sections.size()));
+
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            try {
+                try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+                    FileChannel channel = outputStream.getChannel();
+                    writeFully(channel, header);
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(WRITE_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    for (Section section : sections){
+                        // Zero padding up to the aligned start of the section
+                        ByteBuffer padding = ByteBuffer.allocate((int) (section.offset - channel.position()));
+                        writeFully(channel, padding);
+                        writeSection(channel, section, chunk);
+                    }
+                    channel.force(true);
+                }
+                if (!temporaryFile.renameTo(file)){
+                    throw new IOException("Could not replace the model file " + file);
+                }
+            } catch (IOException | RuntimeException e) {
+                // A partially written file is of no use to anybody
+                if (temporaryFile.exists() && !temporaryFile.delete()){
+                    temporaryFile.deleteOnExit();
+                }
+                throw e;
+            }
+        }
+
+        private static void writeSection(FileChannel channel, Section section, ByteBuffer chunk) throws IOException {
+
+            long remaining = (long) section.rows * section.columns;
+            for (Buffer part : section.data){
+                Buffer source = duplicate(part);
+                while (remaining > 0 && source.hasRemaining()){
+                    chunk.clear();
+                    long available = Math.min(remaining, source.remaining());
+                    int count;
+                    switch (section.elementType){
+                        case ELEMENT_FLOAT32:
+                            count = (int) Math.min(available, chunk.capacity() / 4);
+                            FloatBuffer floats = (FloatBuffer) source;
+                            for (int i = 0; i < count; i++){
+                                chunk.putFloat(floats.get());
+                            }
+                            break;
+                        case ELEMENT_INT32:
+                            count = (int) Math.min(available, chunk.capacity() / 4);
+                            IntBuffer ints = (IntBuffer) source;
+                            for (int i = 0; i < count; i++){
+                                chunk.putInt(ints.get());
+                            }
+                            break;
+                        default:
+                            count = (int) Math.min(available, chunk.capacity());
+                            ByteBuffer bytes = (ByteBuffer) source;
+                            for (int i = 0; i < count; i++){
+                                chunk.put(bytes.get());
+                            }
+                            break;
+                    }
+                    chunk.flip();
+                    writeFully(channel, chunk);
+                    remaining -= count;
+                }
+            }
+        }
+
+        private static Buffer duplicate(Buffer data){
+
+            // The caller's buffer position must not be consumed by the write
+            if (data instanceof FloatBuffer){
+                return ((FloatBuffer) data).duplicate();
+            }
+            if (data instanceof IntBuffer){
+                return ((IntBuffer) data).duplicate();
+            }
+            return ((ByteBuffer) data).duplicate();
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -1,19 +1,602 @@
 package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
 
+import android.util.Log;
+
 import org.opencv.core.Mat;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class is responsible for training the face recognition model and keeping its
+ * gallery of enrolled faces durable
+ *
+ * The gallery lives in a directory holding the last model snapshot and the enrollment
+ * logs appended since then. Enrollments are written to the current log only, and once
+ * enough of them have accumulated a background compaction folds them into a new snapshot
+ * The gallery owns a compaction thread and a training pool, {@link #close()} stops them
+ *
+ * @author ArmandoNCM
+ */
 public class ModelTraining {
 
+    private static final String TAG = "MODEL_TRAINING";
+
+    /**
+     * Number of logged enrollments that triggers a background compaction
+     */
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("model-(\\d+)\\.bin");
+
+    private static final Pattern LOG_NAME = Pattern.compile("enrollment-(\\d+)\\.log");
+
+    private final File directory;
+
+    private final Object lock = new Object();
+
+    private final Object compactionLock = new Object();
+
+    // A daemon thread never keeps the process alive, the logs of an interrupted compaction are replayed on the next start
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "gallery-compaction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ForkJoinPool trainingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final ParallelModelTrainer trainer = new ParallelModelTrainer(trainingPool);
+
+    private volatile FaceDeduplicator deduplicator = new FaceDeduplicator();
+
+    private volatile double minimumQuality = FaceQuality.DEFAULT_MINIMUM_SCORE;
+
+    private volatile int quantizerSubspaces;
+
+    private EnrollmentLog log;
+
+    private int generation;
+
+    private boolean compacting;
+
+    private boolean closed;
+
+    /**
+     * Published version of the gallery: the segment of the last model snapshot followed by
+     * one segment per enrollment logged since then
+     */
+    private volatile GallerySnapshot snapshot = new GallerySnapshot(null, 0, new GallerySegment[0]);
+
+    private final List<SnapshotListener> snapshotListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Receives the snapshots published by enrollments, retraining and compactions
+     */
+    public interface SnapshotListener {
+
+        /**
+         * Called on the publishing thread after the snapshot was published, outside the
+         * lock enrollments take. Notifications of concurrent publications may arrive out of
+         * order, so listeners should read the current snapshot with {@link #getSnapshot()}
+         */
+        void onSnapshotPublished();
+    }
+
+    /**
+     * Opens the gallery stored in the given directory, loading its last snapshot and
+     * replaying the enrollment logs appended after it, the enrolled faces are remembered
+     * for deduplication when their hashes can be recovered from the gallery
+     * @param directory Directory holding the model snapshots and enrollment logs
+     * @throws IOException If the gallery could not be loaded
+     */
+    public ModelTraining(File directory) throws IOException {
+
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create the model directory " + directory);
+        }
+
+        int snapshotGeneration = latestGeneration(SNAPSHOT_NAME);
+        if (snapshotGeneration >= 0){
+            FaceModel model = FaceModel.load(snapshotFile(snapshotGeneration));
+            snapshot = new GallerySnapshot(model, 0, new GallerySegment[]{GallerySegment.of(model)});
+        } else {
+            snapshotGeneration = 0;
+        }
+        generation = Math.max(snapshotGeneration, latestGeneration(LOG_NAME));
+
+        // Replay, in order, every log that has not been folded into the snapshot yet
+        final int dimension = snapshot.getDimension();
+        final int[][] labels = {new int[64]};
+        final float[][] templates = {new float[64 * dimension]};
+        final int[] count = {0};
+        for (int logGeneration = snapshotGeneration; logGeneration <= generation; logGeneration++){
+            File logFile = logFile(logGeneration);
+            if (logFile.exists()){
+                EnrollmentLog.replay(logFile, new EnrollmentLog.Listener() {
+                    @Override
+                    public void onRecord(int label, float[] template) {
+                        if (count[0] == labels[0].length){
+                            labels[0] = Arrays.copyOf(labels[0], count[0] * 2);
+                            templates[0] = Arrays.copyOf(templates[0], count[0] * 2 * dimension);
+                        }
+                        labels[0][count[0]] = label;
+                        System.arraycopy(template, 0, templates[0], count[0] * dimension, dimension);
+                        count[0]++;
+                    }
+                });
+            }
+        }
+        if (count[0] > 0){
+            snapshot = snapshot.withSegment(new GallerySegment(dimension,
+                    Arrays.copyOf(labels[0], count[0]), Arrays.copyOf(templates[0], count[0] * dimension)));
+        }
+        rememberGallery(deduplicator, snapshot);
+        deleteObsoleteFiles(snapshotGeneration);
+        log = new EnrollmentLog(logFile(generation));
+    }
+
     /**
      * This method uses the array of cropped faces in the form of OpenCV Matrix (Mat)
      * to train the face recognition model of a given person
+     * Faces below the minimum quality, see {@link FaceQuality}, and faces nearly identical
+     * to one already enrolled for the person, see {@link FaceDeduplicator}, are skipped
+     * The faces are durable once this method returns
      * @param label Label to whom the model will identify the given faces
      * @param trainingFaces Array of OpenCV Matrices (Mat) whose face will be used to train
      *                      the model
+     * @throws IOException If the enrollment could not be logged
+     */
+    public void trainModel(int label, Mat[] trainingFaces) throws IOException {
+
+        FaceDeduplicator currentDeduplicator = deduplicator;
+        FaceDeduplicator.Selection selection = currentDeduplicator.select(label, filterByQuality(trainingFaces));
+        trainingFaces = selection.getFaces();
+        if (trainingFaces.length == 0){
+            return;
+        }
+
+        FaceModel currentModel;
+        int currentModelVersion;
+        synchronized (lock) {
+            currentModel = snapshot.getModel();
+            currentModelVersion = snapshot.getModelVersion();
+        }
+        int dimension = currentModel == null ? FeatureExtraction.PIXEL_DIMENSION : currentModel.getDimension();
+        int[] labels = new int[trainingFaces.length];
+        float[][] templates = new float[trainingFaces.length][];
+        float[] segmentTemplates = new float[trainingFaces.length * dimension];
+        for (int i = 0; i < trainingFaces.length; i++){
+            labels[i] = label;
+            templates[i] = FeatureExtraction.extractTemplate(trainingFaces[i], currentModel);
+            System.arraycopy(templates[i], 0, segmentTemplates, i * dimension, dimension);
+        }
+        GallerySegment segment = new GallerySegment(dimension, labels, segmentTemplates);
+
+        boolean compactionDue;
+        synchronized (lock) {
+            checkOpen();
+            if (snapshot.getModelVersion() != currentModelVersion){
+                throw new IllegalStateException("The model was retrained during the enrollment");
+            }
+            log.append(label, templates);
+            // The faces are only remembered once they are durable, a failed enrollment can be retried
+            currentDeduplicator.remember(label, selection.getHashes());
+            // Publishing the new version is a single volatile write, readers never wait
+            snapshot = snapshot.withSegment(segment);
+            compactionDue = !compacting && log.getRecordCount() >= COMPACTION_THRESHOLD;
+            if (compactionDue){
+                compacting = true;
+            }
+        }
+        notifySnapshotListeners();
+        if (compactionDue){
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (compactionLock) {
+                            // A compaction queued before the gallery was closed has nothing to do
+                            if (!isClosed()){
+                                compactLogs();
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Compaction of the enrollment log failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    private Mat[] filterByQuality(Mat[] faces){
+
+        if (minimumQuality <= 0){
+            return faces;
+        }
+        List<Mat> accepted = new ArrayList<>();
+        for (Mat face : faces){
+            if (FaceQuality.assess(face).getScore() >= minimumQuality){
+                accepted.add(face);
+            }
+        }
+        return accepted.toArray(new Mat[accepted.size()]);
+    }
+
+    /**
+     * Sets the quality score below which faces are not enrolled
+     * @param minimumQuality Minimum score, zero enrolls every face
+     */
+    public void setMinimumQuality(double minimumQuality){
+        this.minimumQuality = minimumQuality;
+    }
+
+    /**
+     * Sets the size of the product-quantized templates stored along with the models trained
+     * from now on, see {@link ParallelModelTrainer#train(Map, RecognitionMethod, int, int)}
+     * Enrollments are compressed as well when their logs are compacted
+     * @param subspaces Number of bytes of every compressed template, zero to store none
+     */
+    public void setProductQuantization(int subspaces){
+        this.quantizerSubspaces = subspaces;
+    }
+
+    /**
+     * Sets the Hamming radius within which enrolled faces are considered duplicates
+     * @param radius Maximum number of differing hash bits, negative to keep every face
+     */
+    public void setDeduplicationRadius(int radius){
+
+        FaceDeduplicator radiusDeduplicator = new FaceDeduplicator(radius);
+        synchronized (lock) {
+            rememberGallery(radiusDeduplicator, snapshot);
+            deduplicator = radiusDeduplicator;
+        }
+    }
+
+    /**
+     * Remembers the faces of a gallery made of pixel templates, which are the very pixels
+     * the hashes of the faces are computed from. The templates of the other methods are
+     * features the hashes cannot be recovered from, their faces are not remembered
+     */
+    private static void rememberGallery(FaceDeduplicator deduplicator, GallerySnapshot gallery){
+
+        if (gallery.getMethod() != RecognitionMethod.PIXELS || gallery.getDimension() != FeatureExtraction.PIXEL_DIMENSION){
+            return;
+        }
+        float[] template = new float[FeatureExtraction.PIXEL_DIMENSION];
+        for (int index = 0; index < gallery.size(); index++){
+            int label = gallery.getTemplate(index, template);
+            long hash = PerceptualHash.dHash(template, FeatureExtraction.FACE_SIZE, FeatureExtraction.FACE_SIZE);
+            deduplicator.remember(label, new long[]{hash});
+        }
+    }
+
+    /**
+     * @return Gallery size reduction and throughput of the deduplication of enrolled faces
      */
-    public void trainModel(int label, Mat[] trainingFaces){
+    public FaceDeduplicator.Statistics getDeduplicationStatistics(){
+        return deduplicator.getStatistics();
+    }
 
-        // TODO Implement
+    /**
+     * Trains a new model from the faces of many people at once and replaces the gallery
+     * with it, feature extraction and the training reductions run in parallel by label
+     * @param facesByLabel Cropped gray scale faces of every person to be enrolled
+     * @param method Recognition method of the new model
+     * @param components Maximum number of components of the templates of projection
+     *                   based methods
+     * @throws IOException If the new model could not be persisted
+     */
+    public void trainModel(Map<Integer, Mat[]> facesByLabel, RecognitionMethod method, int components) throws IOException {
+
+        FaceModel trainedModel = trainer.train(facesByLabel, method, components, quantizerSubspaces);
+        // The training faces replace every enrolled face, they are the ones to deduplicate against
+        Map<Integer, long[]> hashesByLabel = new HashMap<>();
+        for (Map.Entry<Integer, Mat[]> entry : facesByLabel.entrySet()){
+            long[] hashes = new long[entry.getValue().length];
+            for (int i = 0; i < hashes.length; i++){
+                hashes[i] = PerceptualHash.dHash(entry.getValue()[i]);
+            }
+            hashesByLabel.put(entry.getKey(), hashes);
+        }
+
+        synchronized (compactionLock) {
+            // The generation only moves while holding the compaction lock, which is held here
+            int snapshotGeneration;
+            synchronized (lock) {
+                checkOpen();
+                snapshotGeneration = generation + 1;
+            }
+            // The trained model supersedes everything logged so far, it is made durable
+            // before the log is rotated so that a failure leaves the current log in use
+            // Enrollments keep going meanwhile, they are superseded as well
+            File snapshotFile = snapshotFile(snapshotGeneration);
+            EnrollmentLog nextLog = null;
+            try {
+                trainedModel.save(snapshotFile);
+                FaceModel model = FaceModel.load(snapshotFile);
+                nextLog = new EnrollmentLog(logFile(snapshotGeneration));
+                synchronized (lock) {
+                    checkOpen();
+                    generation = snapshotGeneration;
+                    snapshot = new GallerySnapshot(model, snapshot.getModelVersion() + 1, new GallerySegment[]{GallerySegment.of(model)});
+                    rotateLog(nextLog);
+                    // Faces enrolled before the retrain are gone, they must not be dropped as duplicates
+                    FaceDeduplicator retrainedDeduplicator = new FaceDeduplicator(deduplicator.getRadius());
+                    for (Map.Entry<Integer, long[]> entry : hashesByLabel.entrySet()){
+                        retrainedDeduplicator.remember(entry.getKey(), entry.getValue());
+                    }
+                    deduplicator = retrainedDeduplicator;
+                }
+            } catch (IOException | RuntimeException e) {
+                // The snapshot must not supersede the current log on the next start
+                if (nextLog != null){
+                    discardLog(nextLog);
+                }
+                if (snapshotFile.exists() && !snapshotFile.delete()){
+                    Log.w(TAG, "Could not delete the unused snapshot " + snapshotFile);
+                }
+                throw e;
+            }
+            deleteObsoleteFiles(snapshotGeneration);
+        }
+        notifySnapshotListeners();
     }
 
+    /**
+     * Folds the enrollment logs into a new model snapshot
+     * Enrollments may keep going while the snapshot is written, they are logged to the
+     * next generation
+     * @throws IOException If the snapshot could not be written
+     */
+    public void compact() throws IOException {
+
+        synchronized (compactionLock) {
+            compactLogs();
+        }
+    }
+
+    private void compactLogs() throws IOException {
+
+        GallerySnapshot folded;
+        int foldedGeneration;
+        synchronized (lock) {
+            try {
+                checkOpen();
+                // Rotate the log so that the current one only holds what the snapshot will fold
+                EnrollmentLog nextLog = new EnrollmentLog(logFile(generation + 1));
+                foldedGeneration = generation;
+                generation++;
+                rotateLog(nextLog);
+                folded = snapshot;
+            } catch (IOException | RuntimeException e) {
+                compacting = false;
+                throw e;
+            }
+            compacting = true;
+        }
+
+        try {
+            File snapshotFile = snapshotFile(foldedGeneration + 1);
+            saveSegments(folded, folded.getSegments().length, snapshotFile);
+            FaceModel model = FaceModel.load(snapshotFile);
+            synchronized (lock) {
+                // Keep the segments enrolled while the new snapshot was being written
+                GallerySegment[] segments = snapshot.getSegments();
+                int foldedSegments = folded.getSegments().length;
+                GallerySegment[] remaining = new GallerySegment[segments.length - foldedSegments + 1];
+                remaining[0] = GallerySegment.of(model);
+                System.arraycopy(segments, foldedSegments, remaining, 1, segments.length - foldedSegments);
+                snapshot = new GallerySnapshot(model, snapshot.getModelVersion(), remaining);
+            }
+            notifySnapshotListeners();
+            deleteObsoleteFiles(foldedGeneration + 1);
+        } finally {
+            synchronized (lock) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Installs the log enrollments are appended to from now on and closes the previous one,
+     * to be called while holding the lock
+     */
+    private void rotateLog(EnrollmentLog nextLog){
+
+        EnrollmentLog previousLog = log;
+        log = nextLog;
+        try {
+            previousLog.close();
+        } catch (IOException e) {
+            // Everything appended to it was already forced to storage
+            Log.w(TAG, "Could not close the enrollment log " + previousLog.getFile(), e);
+        }
+    }
+
+    /**
+     * Closes and deletes a log that was never installed
+     */
+    private static void discardLog(EnrollmentLog unusedLog){
+
+        try {
+            unusedLog.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the enrollment log " + unusedLog.getFile(), e);
+        }
+        if (unusedLog.getFile().exists() && !unusedLog.getFile().delete()){
+            Log.w(TAG, "Could not delete the unused enrollment log " + unusedLog.getFile());
+        }
+    }
+
+    /**
+     * Writes the leading segments of a snapshot as a model file, streaming their templates
+     * The first segment of a snapshot with a model is the gallery of that model, whose
+     * index structures are carried over and extended with the other segments
+     */
+    private static void saveSegments(GallerySnapshot snapshot, int segmentCount, File file) throws IOException {
+
+        GallerySegment[] segments = Arrays.copyOf(snapshot.getSegments(), segmentCount);
+        FaceModel model = snapshot.getModel();
+        if (model == null){
+            new FaceModel(RecognitionMethod.PIXELS, snapshot.getDimension(), new int[0], new float[0], 0, null, null)
+                    .save(file, segments);
+        } else {
+            model.save(file, Arrays.copyOfRange(segments, 1, segmentCount));
+        }
+    }
+
+    /**
+     * Current version of the gallery, obtained with a single volatile read
+     * The returned snapshot never changes, enrollments publish new snapshots instead
+     * @return Current gallery snapshot
+     */
+    public GallerySnapshot getSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * @param listener Listener told about every snapshot published from now on
+     */
+    public void addSnapshotListener(SnapshotListener listener){
+        snapshotListeners.add(listener);
+    }
+
+    /**
+     * @param listener Listener no longer told about the published snapshots
+     */
+    public void removeSnapshotListener(SnapshotListener listener){
+        snapshotListeners.remove(listener);
+    }
+
+    private void notifySnapshotListeners(){
+
+        for (SnapshotListener listener : snapshotListeners){
+            listener.onSnapshotPublished();
+        }
+    }
+
+    /**
+     * @return Model holding every enrolled template, null if nothing has been enrolled
+     */
+    public FaceModel getModel(){
+
+        GallerySnapshot currentSnapshot = snapshot;
+        if (currentSnapshot.size() == 0){
+            return currentSnapshot.getModel();
+        }
+        return currentSnapshot.toModel(currentSnapshot.getSegments().length);
+    }
+
+    /**
+     * Exports the current model in the binary model file format
+     * @param file Destination file
+     * @throws IOException If the model could not be written
+     */
+    public void saveModel(File file) throws IOException {
+
+        GallerySnapshot currentSnapshot = snapshot;
+        if (currentSnapshot.getModel() == null && currentSnapshot.size() == 0){
+            throw new IllegalStateException("There is no model to save");
+        }
+        saveSegments(currentSnapshot, currentSnapshot.getSegments().length, file);
+    }
+
+    /**
+     * Stops the background compaction and the training pool and closes the enrollment log,
+     * waiting for a compaction already running to finish. The gallery cannot be enrolled
+     * into afterwards, its last snapshot can still be searched
+     * @throws IOException If the enrollment log could not be closed
+     */
+    public void close() throws IOException {
+
+        compactionExecutor.shutdown();
+        trainingPool.shutdown();
+        synchronized (compactionLock) {
+            synchronized (lock) {
+                if (closed){
+                    return;
+                }
+                closed = true;
+                log.close();
+            }
+        }
+    }
+
+    private boolean isClosed(){
+
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /**
+     * To be called while holding the lock
+     */
+    private void checkOpen(){
+
+        if (closed){
+            throw new IllegalStateException("The gallery has been closed");
+        }
+    }
+
+    private File snapshotFile(int snapshotGeneration){
+        return new File(directory, "model-" + snapshotGeneration + ".bin");
+    }
+
+    private File logFile(int logGeneration){
+        return new File(directory, "enrollment-" + logGeneration + ".log");
+    }
+
+    private int latestGeneration(Pattern pattern){
+
+        int latest = -1;
+        String[] names = directory.list();
+        if (names != null){
+            for (String name : names){
+                Matcher matcher = pattern.matcher(name);
+                if (matcher.matches()){
+                    latest = Math.max(latest, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Deletes the snapshots and logs already folded into the given snapshot generation
+     */
+    private void deleteObsoleteFiles(int snapshotGeneration){
+
+        String[] names = directory.list();
+        if (names == null){
+            return;
+        }
+        for (String name : names){
+            Matcher snapshot = SNAPSHOT_NAME.matcher(name);
+            Matcher log = LOG_NAME.matcher(name);
+            boolean obsolete = (snapshot.matches() && Integer.parseInt(snapshot.group(1)) < snapshotGeneration)
+                    || (log.matches() && Integer.parseInt(log.group(1)) < snapshotGeneration);
+            if (obsolete && !new File(directory, name).delete()){
+                Log.w(TAG, "Could not delete the obsolete file " + name);
+            }
+        }
+    }
 }
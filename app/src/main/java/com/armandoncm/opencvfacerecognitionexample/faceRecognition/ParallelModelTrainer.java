@@ -0,0 +1,486 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+import org.opencv.core.Scalar;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Trains Eigenfaces, Fisherfaces and LBPH models from the faces of many labels at once
+ *
+ * Feature extraction runs on a work-stealing pool, the work being split by label until a
+ * task holds few enough faces. The reductions needed by the projection based methods
+ * (sums and scatter matrices) are accumulated per worker thread and only merged once the
+ * stage is over, so workers never contend on a shared lock
+ *
+ * @author ArmandoNCM
+ */
+public class ParallelModelTrainer {
+
+    /**
+     * Maximum number of faces a task processes before being split by label
+     */
+    private static final int FACES_PER_TASK = 32;
+
+    /**
+     * Eigenvalues below this fraction of the largest one are treated as zero when whitening
+     */
+    private static final double EIGENVALUE_TOLERANCE = 1e-9;
+
+    /**
+     * Maximum number of K-Means iterations training the codebook of every subspace
+     */
+    private static final int QUANTIZER_ITERATIONS = 20;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool Pool running the parallel training stages
+     */
+    public ParallelModelTrainer(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Trains a model from the faces of every label
+     * @param facesByLabel Cropped gray scale faces of every label
+     * @param method Recognition method, must not be {@link RecognitionMethod#PIXELS}
+     * @param components Maximum number of components of the templates of projection based
+     *                   methods, Fisherfaces never produce more than one less than the labels
+     * @return Trained model holding the templates of all the given faces
+     * @throws IllegalArgumentException If a label has no faces, a projection based method
+     * is asked for no components or Fisherfaces for fewer than two labels
+     */
+    public FaceModel train(Map<Integer, Mat[]> facesByLabel, RecognitionMethod method, int components){
+        return train(facesByLabel, method, components, 0);
+    }
+
+    /**
+     * Trains a model from the faces of every label, compressing its templates with a
+     * product quantizer trained on them, see {@link FaceModel#getCompressedGallery()}
+     * LBPH histograms are compared with chi-square, not with the euclidean distance the
+     * quantizer approximates, so they are never compressed
+     * @param facesByLabel Cropped gray scale faces of every label
+     * @param method Recognition method, must not be {@link RecognitionMethod#PIXELS}
+     * @param components Maximum number of components of the templates of projection based
+     *                   methods, Fisherfaces never produce more than one less than the labels
+     * @param subspaces Number of bytes of every compressed template, lowered to the closest
+     *                  divisor of the template dimension, zero to leave them uncompressed
+     * @return Trained model holding the templates of all the given faces
+     * @throws IllegalArgumentException If a label has no faces, a projection based method
+     * is asked for no components or Fisherfaces for fewer than two labels
+     */
+    public FaceModel train(Map<Integer, Mat[]> facesByLabel, RecognitionMethod method, int components, int subspaces){
+
+        if (method == RecognitionMethod.PIXELS){
+            throw new IllegalArgumentException("Pixel templates do not require training");
+        }
+        for (Map.Entry<Integer, Mat[]> entry : facesByLabel.entrySet()){
+            if (entry.getValue() == null || entry.getValue().length == 0){
+                throw new IllegalArgumentException("Label " + entry.getKey() + " has no training faces");
+            }
+        }
+        if (method != RecognitionMethod.LBPH && components < 1){
+            throw new IllegalArgumentException(method + " require at least one component, got " + components);
+        }
+        // Fisherfaces separate the labels from each other, one label leaves no discriminant
+        if (method == RecognitionMethod.FISHERFACES && facesByLabel.size() < 2){
+            throw new IllegalArgumentException("Fisherfaces require the faces of at least two labels, got " + facesByLabel.size());
+        }
+
+        // Faces are laid out label by label, every label owning a contiguous range of rows
+        int[] labels = new int[facesByLabel.size()];
+        int index = 0;
+        for (Integer label : facesByLabel.keySet()){
+            labels[index++] = label;
+        }
+        Arrays.sort(labels);
+        int[] offsets = new int[labels.length + 1];
+        for (int i = 0; i < labels.length; i++){
+            offsets[i + 1] = offsets[i] + facesByLabel.get(labels[i]).length;
+        }
+        int count = offsets[labels.length];
+        int[] rowLabels = new int[count];
+        for (int i = 0; i < labels.length; i++){
+            Arrays.fill(rowLabels, offsets[i], offsets[i + 1], labels[i]);
+        }
+
+        int featureDimension = method == RecognitionMethod.LBPH ? FeatureExtraction.LBP_DIMENSION : FeatureExtraction.PIXEL_DIMENSION;
+        float[] features = new float[count * featureDimension];
+        ScatterAccumulators accumulators = method == RecognitionMethod.LBPH ? null : new ScatterAccumulators(featureDimension);
+        pool.invoke(new ExtractionTask(facesByLabel, labels, offsets, 0, labels.length, method, features, featureDimension, accumulators));
+
+        if (method == RecognitionMethod.LBPH){
+            return new FaceModel(method, featureDimension, rowLabels, features, 0, null, null);
+        }
+
+        // Covariance of the pixels from the merged sums: S / n - mean * mean^T
+        ScatterAccumulator total = accumulators.merge();
+        double[] mean = new double[featureDimension];
+        for (int i = 0; i < featureDimension; i++){
+            mean[i] = total.sum[i] / count;
+        }
+        Mat covariance = new Mat();
+        Core.multiply(total.scatter, new Scalar(1.0 / count), covariance);
+        Mat meanRow = new Mat(1, featureDimension, CvType.CV_64F);
+        meanRow.put(0, 0, mean);
+        Core.gemm(meanRow, meanRow, -1, covariance, 1, covariance, Core.GEMM_1_T);
+        total.scatter.release();
+
+        int principalComponents = method == RecognitionMethod.EIGENFACES
+                ? Math.min(components, Math.min(count - 1, featureDimension))
+                : Math.min(count - labels.length, featureDimension);
+        if (principalComponents < 1){
+            throw new IllegalArgumentException("Not enough training faces for " + method);
+        }
+        Mat principalProjection = topEigenvectors(covariance, principalComponents);
+        covariance.release();
+
+        Mat centered = centeredFeatures(features, count, featureDimension, meanRow);
+        Mat projection = principalProjection;
+        Mat templates = new Mat();
+        Core.gemm(centered, principalProjection, 1, new Mat(), 0, templates);
+        centered.release();
+
+        if (method == RecognitionMethod.FISHERFACES){
+            Mat discriminants = linearDiscriminants(templates, offsets, labels.length, Math.min(components, labels.length - 1));
+            Mat discriminantTemplates = new Mat();
+            Core.gemm(templates, discriminants, 1, new Mat(), 0, discriminantTemplates);
+            projection = new Mat();
+            Core.gemm(principalProjection, discriminants, 1, new Mat(), 0, projection);
+            principalProjection.release();
+            discriminants.release();
+            templates.release();
+            templates = discriminantTemplates;
+        }
+
+        int dimension = projection.cols();
+        float[] templateValues = new float[count * dimension];
+        templates.convertTo(templates, CvType.CV_32F);
+        templates.get(0, 0, templateValues);
+        float[] projectionValues = new float[featureDimension * dimension];
+        projection.convertTo(projection, CvType.CV_32F);
+        projection.get(0, 0, projectionValues);
+        float[] meanValues = new float[featureDimension];
+        for (int i = 0; i < featureDimension; i++){
+            meanValues[i] = (float) mean[i];
+        }
+        templates.release();
+        projection.release();
+        meanRow.release();
+
+        FaceModel model = new FaceModel(method, dimension, rowLabels, templateValues, featureDimension, meanValues, projectionValues);
+        if (subspaces > 0){
+            model.setCompressedGallery(quantize(templateValues, rowLabels.clone(), dimension, subspaces));
+        }
+        return model;
+    }
+
+    /**
+     * Compresses templates with a product quantizer trained on them
+     * @param subspaces Desired number of subspaces, lowered to the closest divisor of the dimension
+     */
+    private static ProductQuantizedGallery quantize(float[] templates, int[] labels, int dimension, int subspaces){
+
+        int codeSize = Math.min(subspaces, dimension);
+        while (dimension % codeSize != 0){
+            codeSize--;
+        }
+        ProductQuantizer quantizer = ProductQuantizer.train(templates, labels.length, dimension, codeSize, QUANTIZER_ITERATIONS);
+        byte[] codes = new byte[labels.length * codeSize];
+        for (int i = 0; i < labels.length; i++){
+            quantizer.encode(templates, i * dimension, codes, i * codeSize);
+        }
+        return new ProductQuantizedGallery(quantizer, codes, labels);
+    }
+
+    /**
+     * Computes the Fisher linear discriminants of templates already reduced by PCA
+     * The within-class scatter is whitened, after which the discriminants are the leading
+     * eigenvectors of the whitened between-class scatter
+     */
+    private Mat linearDiscriminants(Mat templates, int[] offsets, int labelCount, int discriminantCount){
+
+        int dimension = templates.cols();
+        // Class means, the global mean is zero since the templates were centered
+        Mat classMeans = new Mat(labelCount, dimension, CvType.CV_64F);
+        for (int i = 0; i < labelCount; i++){
+            Mat classTemplates = templates.rowRange(offsets[i], offsets[i + 1]);
+            Mat classMean = classMeans.row(i);
+            Core.reduce(classTemplates, classMean, 0, Core.REDUCE_AVG, CvType.CV_64F);
+        }
+
+        // Within-class scatter, accumulated per worker thread over the labels
+        ScatterAccumulators accumulators = new ScatterAccumulators(dimension);
+        pool.invoke(new WithinClassScatterTask(templates, classMeans, offsets, 0, labelCount, accumulators));
+        Mat withinScatter = accumulators.merge().scatter;
+
+        // Between-class scatter: sum of n_c * mean_c * mean_c^T
+        Mat weightedMeans = new Mat(labelCount, dimension, CvType.CV_64F);
+        for (int i = 0; i < labelCount; i++){
+            Core.multiply(classMeans.row(i), new Scalar(offsets[i + 1] - offsets[i]), weightedMeans.row(i));
+        }
+        Mat betweenScatter = new Mat();
+        Core.gemm(classMeans, weightedMeans, 1, new Mat(), 0, betweenScatter, Core.GEMM_1_T);
+
+        // Whitening transform of the within-class scatter
+        Mat eigenvalues = new Mat();
+        Mat eigenvectors = new Mat();
+        Core.eigen(withinScatter, eigenvalues, eigenvectors);
+        double largest = eigenvalues.get(0, 0)[0];
+        int kept = 0;
+        while (kept < dimension && eigenvalues.get(kept, 0)[0] > largest * EIGENVALUE_TOLERANCE){
+            kept++;
+        }
+        Mat whitening = new Mat();
+        Core.transpose(eigenvectors.rowRange(0, kept), whitening);
+        for (int i = 0; i < kept; i++){
+            Core.multiply(whitening.col(i), new Scalar(1.0 / Math.sqrt(eigenvalues.get(i, 0)[0])), whitening.col(i));
+        }
+
+        Mat whitenedBetween = new Mat();
+        Mat product = new Mat();
+        Core.gemm(whitening, betweenScatter, 1, new Mat(), 0, product, Core.GEMM_1_T);
+        Core.gemm(product, whitening, 1, new Mat(), 0, whitenedBetween);
+        Mat discriminants = new Mat();
+        Core.gemm(whitening, topEigenvectors(whitenedBetween, Math.min(discriminantCount, kept)), 1, new Mat(), 0, discriminants);
+
+        classMeans.release();
+        weightedMeans.release();
+        withinScatter.release();
+        betweenScatter.release();
+        eigenvalues.release();
+        eigenvectors.release();
+        whitening.release();
+        product.release();
+        whitenedBetween.release();
+        return discriminants;
+    }
+
+    /**
+     * @return Matrix whose columns are the eigenvectors of the largest eigenvalues
+     */
+    private static Mat topEigenvectors(Mat symmetricMatrix, int count){
+
+        Mat eigenvalues = new Mat();
+        Mat eigenvectors = new Mat();
+        // OpenCV returns the eigenvectors as rows sorted by decreasing eigenvalue
+        Core.eigen(symmetricMatrix, eigenvalues, eigenvectors);
+        Mat columns = new Mat();
+        Core.transpose(eigenvectors.rowRange(0, count), columns);
+        eigenvalues.release();
+        eigenvectors.release();
+        return columns;
+    }
+
+    private static Mat centeredFeatures(float[] features, int count, int dimension, Mat meanRow){
+
+        Mat matrix = new Mat(count, dimension, CvType.CV_32F);
+        matrix.put(0, 0, features);
+        matrix.convertTo(matrix, CvType.CV_64F);
+        for (int row = 0; row < count; row++){
+            Mat featureRow = matrix.row(row);
+            Core.subtract(featureRow, meanRow, featureRow);
+        }
+        return matrix;
+    }
+
+    /**
+     * Running sum and scatter (sum of outer products) of a set of vectors
+     */
+    private static class ScatterAccumulator {
+
+        private final double[] sum;
+
+        private final Mat scatter;
+
+        private ScatterAccumulator(int dimension){
+            sum = new double[dimension];
+            scatter = Mat.zeros(dimension, dimension, CvType.CV_64F);
+        }
+
+        /**
+         * Adds a block of row vectors with a single matrix product
+         */
+        private void add(Mat rows){
+
+            Mat product = new Mat();
+            Core.gemm(rows, rows, 1, new Mat(), 0, product, Core.GEMM_1_T);
+            Core.add(scatter, product, scatter);
+            product.release();
+
+            double[] values = new double[rows.cols()];
+            for (int row = 0; row < rows.rows(); row++){
+                rows.get(row, 0, values);
+                for (int i = 0; i < values.length; i++){
+                    sum[i] += values[i];
+                }
+            }
+        }
+
+        private void merge(ScatterAccumulator other){
+
+            Core.add(scatter, other.scatter, scatter);
+            for (int i = 0; i < sum.length; i++){
+                sum[i] += other.sum[i];
+            }
+            other.scatter.release();
+        }
+    }
+
+    /**
+     * One accumulator per worker thread, created on the first use by that thread
+     */
+    private static class ScatterAccumulators extends ThreadLocal<ScatterAccumulator> {
+
+        private final int dimension;
+
+        private final Queue<ScatterAccumulator> created = new ConcurrentLinkedQueue<>();
+
+        private ScatterAccumulators(int dimension){
+            this.dimension = dimension;
+        }
+
+        @Override
+        protected ScatterAccumulator initialValue() {
+            ScatterAccumulator accumulator = new ScatterAccumulator(dimension);
+            created.add(accumulator);
+            return accumulator;
+        }
+
+        /**
+         * Merges the accumulators of all the threads, to be called once the stage is over
+         */
+        private ScatterAccumulator merge(){
+
+            ScatterAccumulator total = created.poll();
+            if (total == null){
+                return new ScatterAccumulator(dimension);
+            }
+            ScatterAccumulator accumulator;
+            while ((accumulator = created.poll()) != null){
+                total.merge(accumulator);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Extracts the features of the faces of a range of labels, splitting the range in
+     * halves while it holds too many faces
+     */
+    private static class ExtractionTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<Integer, Mat[]> facesByLabel;
+        private final int[] labels;
+        private final int[] offsets;
+        private final int from;
+        private final int to;
+        private final RecognitionMethod method;
+        private final float[] features;
+        private final int dimension;
+        private final ScatterAccumulators accumulators;
+
+        private ExtractionTask(Map<Integer, Mat[]> facesByLabel, int[] labels, int[] offsets, int from, int to,
+                               RecognitionMethod method, float[] features, int dimension, ScatterAccumulators accumulators){
+            this.facesByLabel = facesByLabel;
+            this.labels = labels;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+            this.method = method;
+            this.features = features;
+            this.dimension = dimension;
+            this.accumulators = accumulators;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > 1 && offsets[to] - offsets[from] > FACES_PER_TASK){
+                int middle = (from + to) >>> 1;
+                invokeAll(new ExtractionTask(facesByLabel, labels, offsets, from, middle, method, features, dimension, accumulators),
+                        new ExtractionTask(facesByLabel, labels, offsets, middle, to, method, features, dimension, accumulators));
+                return;
+            }
+
+            for (int i = from; i < to; i++){
+                Mat[] faces = facesByLabel.get(labels[i]);
+                for (int face = 0; face < faces.length; face++){
+                    // Every task writes to the rows of its own labels only
+                    float[] faceFeatures = FeatureExtraction.extractFeatures(faces[face], method);
+                    System.arraycopy(faceFeatures, 0, features, (offsets[i] + face) * dimension, dimension);
+                }
+            }
+
+            int rows = offsets[to] - offsets[from];
+            if (accumulators != null && rows > 0){
+                Mat block = new Mat(rows, dimension, CvType.CV_32F);
+                block.put(0, 0, Arrays.copyOfRange(features, offsets[from] * dimension, offsets[to] * dimension));
+                block.convertTo(block, CvType.CV_64F);
+                accumulators.get().add(block);
+                block.release();
+            }
+        }
+    }
+
+    /**
+     * Accumulates the within-class scatter of a range of labels
+     */
+    private static class WithinClassScatterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Mat templates;
+        private final Mat classMeans;
+        private final int[] offsets;
+        private final int from;
+        private final int to;
+        private final ScatterAccumulators accumulators;
+
+        private WithinClassScatterTask(Mat templates, Mat classMeans, int[] offsets, int from, int to, ScatterAccumulators accumulators){
+            this.templates = templates;
+            this.classMeans = classMeans;
+            this.offsets = offsets;
+            this.from = from;
+            this.to = to;
+            this.accumulators = accumulators;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > 1 && offsets[to] - offsets[from] > FACES_PER_TASK){
+                int middle = (from + to) >>> 1;
+                invokeAll(new WithinClassScatterTask(templates, classMeans, offsets, from, middle, accumulators),
+                        new WithinClassScatterTask(templates, classMeans, offsets, middle, to, accumulators));
+                return;
+            }
+
+            ScatterAccumulator accumulator = accumulators.get();
+            for (int i = from; i < to; i++){
+                if (offsets[i + 1] == offsets[i]){
+                    continue;
+                }
+                Mat centered = templates.submat(new Range(offsets[i], offsets[i + 1]), Range.all()).clone();
+                Mat classMean = classMeans.row(i);
+                for (int row = 0; row < centered.rows(); row++){
+                    Mat templateRow = centered.row(row);
+                    Core.subtract(templateRow, classMean, templateRow);
+                }
+                accumulator.add(centered);
+                centered.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Mat;
+
+/**
+ * Difference hash (dHash) of normalized face chips
+ *
+ * The chip is shrunk to a 9 x 8 grid of area averages and every bit of the 64-bit hash
+ * tells whether a cell is brighter than its right neighbour. Near-identical faces, such as
+ * consecutive frames of a burst, get hashes a few bits apart, so the Hamming distance
+ * between hashes is a cheap similarity test
+ *
+ * @author ArmandoNCM
+ */
+public class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+
+    private static final int GRID_HEIGHT = 8;
+
+    /**
+     * Computes the difference hash of a cropped face, after the same size normalization and
+     * histogram equalization the pixel templates get
+     * @param face Cropped gray scale face
+     * @return 64-bit difference hash
+     */
+    public static long dHash(Mat face){
+
+        float[] pixels = new float[FeatureExtraction.PIXEL_DIMENSION];
+        FeatureExtraction.extractPixels(face, pixels);
+        return dHash(pixels, FeatureExtraction.FACE_SIZE, FeatureExtraction.FACE_SIZE);
+    }
+
+    /**
+     * Computes the difference hash of a gray scale image
+     * @param pixels Row-major pixel intensities
+     * @param width Width of the image, at least 9
+     * @param height Height of the image, at least 8
+     * @return 64-bit difference hash
+     */
+    public static long dHash(float[] pixels, int width, int height){
+
+        float[] grid = new float[GRID_WIDTH * GRID_HEIGHT];
+        shrink(pixels, width, height, grid);
+
+        long hash = 0;
+        for (int row = 0; row < GRID_HEIGHT; row++){
+            for (int column = 0; column < GRID_WIDTH - 1; column++){
+                int cell = row * GRID_WIDTH + column;
+                hash = (hash << 1) | (grid[cell] > grid[cell + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param a First hash
+     * @param b Second hash
+     * @return Number of differing bits
+     */
+    public static int hammingDistance(long a, long b){
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Shrinks an image to the hash grid, every cell being the average of the image area it
+     * covers, fractional pixels included
+     */
+    private static void shrink(float[] pixels, int width, int height, float[] grid){
+
+        double cellWidth = (double) width / GRID_WIDTH;
+        double cellHeight = (double) height / GRID_HEIGHT;
+        for (int row = 0; row < GRID_HEIGHT; row++){
+            double top = row * cellHeight;
+            double bottom = top + cellHeight;
+            for (int column = 0; column < GRID_WIDTH; column++){
+                double left = column * cellWidth;
+                double right = left + cellWidth;
+                double sum = 0;
+                for (int y = (int) top; y < Math.ceil(bottom) && y < height; y++){
+                    double rowWeight = Math.min(bottom, y + 1) - Math.max(top, y);
+                    for (int x = (int) left; x < Math.ceil(right) && x < width; x++){
+                        double weight = rowWeight * (Math.min(right, x + 1) - Math.max(left, x));
+                        sum += weight * pixels[y * width + x];
+                    }
+                }
+                grid[row * GRID_WIDTH + column] = (float) (sum / (cellWidth * cellHeight));
+            }
+        }
+    }
+}
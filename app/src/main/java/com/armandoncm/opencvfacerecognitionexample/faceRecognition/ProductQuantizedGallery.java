@@ -0,0 +1,212 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Gallery of face templates compressed by a {@link ProductQuantizer}
+ * Every template costs as many bytes as the quantizer has subspaces, e.g. with 16
+ * subspaces one million templates fit in 16 MB of codes instead of the 512 MB that
+ * 128-dimensional float vectors would take
+ *
+ * The exact vectors may optionally be kept alongside the codes in order to re-rank the
+ * best candidates of the compressed search with their true distance
+ *
+ * Distances are squared euclidean, LBPH histograms compared with chi-square are not meant
+ * to be compressed
+ *
+ * @author ArmandoNCM
+ */
+public class ProductQuantizedGallery {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final ProductQuantizer quantizer;
+
+    private final boolean keepExactVectors;
+
+    /**
+     * Queries share the read lock, adding takes the write lock
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private byte[] codes;
+
+    private int[] labels;
+
+    private float[] exactVectors;
+
+    private int size;
+
+    /**
+     * @param quantizer Trained product quantizer used to compress the templates
+     * @param keepExactVectors Whether the uncompressed vectors are kept for re-ranking
+     */
+    public ProductQuantizedGallery(ProductQuantizer quantizer, boolean keepExactVectors){
+
+        this.quantizer = quantizer;
+        this.keepExactVectors = keepExactVectors;
+        codes = new byte[DEFAULT_CAPACITY * quantizer.getCodeSize()];
+        labels = new int[DEFAULT_CAPACITY];
+        if (keepExactVectors){
+            exactVectors = new float[DEFAULT_CAPACITY * quantizer.getDimension()];
+        }
+    }
+
+    /**
+     * Rebuilds a gallery from codes persisted in a model file, exact vectors are not kept
+     * @param quantizer Product quantizer the codes were produced with
+     * @param codes Codes of all the templates laid out one after the other
+     * @param labels Label of every template
+     */
+    ProductQuantizedGallery(ProductQuantizer quantizer, byte[] codes, int[] labels){
+
+        this.quantizer = quantizer;
+        this.keepExactVectors = false;
+        this.codes = codes;
+        this.labels = labels;
+        this.size = labels.length;
+    }
+
+    /**
+     * Compresses and stores a template
+     * @param label Label of the person the template belongs to
+     * @param template Face template with as many components as the quantizer's dimension
+     * @return Index of the template in the gallery
+     */
+    public int add(int label, float[] template){
+
+        if (template.length != quantizer.getDimension()){
+            throw new IllegalArgumentException("Expected a template of dimension " + quantizer.getDimension() + " but got " + template.length);
+        }
+        byte[] code = new byte[quantizer.getCodeSize()];
+        quantizer.encode(template, 0, code, 0);
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(size + 1);
+            System.arraycopy(code, 0, codes, size * code.length, code.length);
+            labels[size] = label;
+            if (keepExactVectors){
+                System.arraycopy(template, 0, exactVectors, size * quantizer.getDimension(), template.length);
+            }
+            return size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of templates in the gallery
+     */
+    public int size(){
+
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of bytes taken by the stored codes, labels and exact vectors
+     */
+    public long getMemoryFootprint(){
+
+        int size = size();
+        long footprint = (long) size * quantizer.getCodeSize() + (long) size * 4;
+        if (keepExactVectors){
+            footprint += (long) size * quantizer.getDimension() * 4;
+        }
+        return footprint;
+    }
+
+    /**
+     * Searches the K closest templates using only the compressed codes
+     * @param query Query template
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest, their distances are approximate
+     */
+    public FaceMatch[] search(float[] query, int k){
+        return search(query, k, 0);
+    }
+
+    /**
+     * Searches the K closest templates, re-ranking the best candidates of the compressed
+     * search with their exact distance
+     * @param query Query template
+     * @param k Number of matches to return
+     * @param reRankDepth Number of candidates of the compressed search whose exact distance
+     *                    is computed, zero disables re-ranking
+     * @return Matches sorted from the closest to the farthest
+     */
+    public FaceMatch[] search(float[] query, int k, int reRankDepth){
+
+        if (reRankDepth > 0 && !keepExactVectors){
+            throw new IllegalStateException("Re-ranking requires the gallery to keep the exact vectors");
+        }
+
+        float[] table = new float[quantizer.getDistanceTableSize()];
+        quantizer.computeDistanceTable(query, table);
+
+        int codeSize = quantizer.getCodeSize();
+        lock.readLock().lock();
+        try {
+            TopKCollector collector = new TopKCollector(Math.max(k, reRankDepth));
+            for (int i = 0; i < size; i++){
+                collector.offer(i, labels[i], quantizer.asymmetricDistance(table, codes, i * codeSize));
+            }
+
+            FaceMatch[] candidates = collector.toMatches();
+            if (reRankDepth <= 0){
+                return candidates;
+            }
+
+            // Re-rank the short-list with the exact distance to the uncompressed vectors
+            int dimension = quantizer.getDimension();
+            TopKCollector reRanked = new TopKCollector(k);
+            for (FaceMatch candidate : candidates){
+                int index = candidate.getTemplateIndex();
+                reRanked.offer(index, candidate.getLabel(),
+                        VectorDistances.squaredL2(query, 0, exactVectors, index * dimension, dimension, null, reRanked.bound()));
+            }
+            return reRanked.toMatches();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Quantizer used to compress the templates
+     */
+    public ProductQuantizer getQuantizer(){
+        return quantizer;
+    }
+
+    /**
+     * @return Codes of the stored templates, possibly followed by unused capacity
+     */
+    byte[] getCodes(){
+
+        lock.readLock().lock();
+        try {
+            return codes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(int capacity){
+
+        if (capacity <= labels.length){
+            return;
+        }
+        int newCapacity = Math.max(capacity, labels.length * 2);
+        codes = Arrays.copyOf(codes, newCapacity * quantizer.getCodeSize());
+        labels = Arrays.copyOf(labels, newCapacity);
+        if (keepExactVectors){
+            exactVectors = Arrays.copyOf(exactVectors, newCapacity * quantizer.getDimension());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+/**
+ * Product quantizer used to compress face templates into a few bytes each
+ * The template space is split into equally sized subspaces, each of them has its own
+ * codebook of up to 256 centroids trained with OpenCV's K-Means, and a template is
+ * stored as one byte per subspace: the index of its nearest centroid
+ *
+ * Queries are not quantized, their distance to a compressed template is obtained
+ * asymmetrically by adding up entries of a lookup table holding the distance from each
+ * query sub-vector to every centroid of its subspace
+ *
+ * @author ArmandoNCM
+ */
+public class ProductQuantizer {
+
+    /**
+     * Maximum number of centroids per subspace, so that a code fits in a byte
+     */
+    public static final int MAX_CENTROIDS = 256;
+
+    private final int dimension;
+
+    private final int subspaces;
+
+    private final int subDimension;
+
+    private final int centroids;
+
+    /**
+     * Codebooks of all subspaces laid out as [subspace][centroid][component]
+     */
+    private final float[] codebooks;
+
+    ProductQuantizer(int dimension, int subspaces, int centroids, float[] codebooks){
+
+        if (dimension % subspaces != 0){
+            throw new IllegalArgumentException("The dimension " + dimension + " is not divisible into " + subspaces + " subspaces");
+        }
+        if (centroids <= 0 || centroids > MAX_CENTROIDS){
+            throw new IllegalArgumentException("The number of centroids must be between 1 and " + MAX_CENTROIDS + ": " + centroids);
+        }
+        this.dimension = dimension;
+        this.subspaces = subspaces;
+        this.subDimension = dimension / subspaces;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+    }
+
+    /**
+     * Trains the codebooks of a product quantizer with K-Means on every subspace
+     * @param vectors Training vectors stored one after the other
+     * @param count Number of training vectors
+     * @param dimension Number of components of each vector, must be divisible by subspaces
+     * @param subspaces Number of subspaces, which is also the size in bytes of every code
+     * @param iterations Maximum number of K-Means iterations per subspace
+     * @return Trained product quantizer
+     */
+    public static ProductQuantizer train(float[] vectors, int count, int dimension, int subspaces, int iterations){
+
+        if (count <= 0){
+            throw new IllegalArgumentException("At least one training vector is required");
+        }
+        if (dimension % subspaces != 0){
+            throw new IllegalArgumentException("The dimension " + dimension + " is not divisible into " + subspaces + " subspaces");
+        }
+        int subDimension = dimension / subspaces;
+        // K-Means cannot produce more clusters than there are samples
+        int centroids = Math.min(MAX_CENTROIDS, count);
+        float[] codebooks = new float[subspaces * centroids * subDimension];
+
+        float[] subVectors = new float[count * subDimension];
+        Mat samples = new Mat(count, subDimension, CvType.CV_32F);
+        Mat bestLabels = new Mat();
+        Mat centers = new Mat();
+        TermCriteria criteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, iterations, 1e-4);
+        float[] centerValues = new float[centroids * subDimension];
+
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            // Gather the components of this subspace from every training vector
+            for (int i = 0; i < count; i++){
+                System.arraycopy(vectors, i * dimension + subspace * subDimension, subVectors, i * subDimension, subDimension);
+            }
+            samples.put(0, 0, subVectors);
+            Core.kmeans(samples, centroids, bestLabels, criteria, 1, Core.KMEANS_PP_CENTERS, centers);
+            centers.get(0, 0, centerValues);
+            System.arraycopy(centerValues, 0, codebooks, subspace * centroids * subDimension, centerValues.length);
+        }
+
+        samples.release();
+        bestLabels.release();
+        centers.release();
+
+        return new ProductQuantizer(dimension, subspaces, centroids, codebooks);
+    }
+
+    /**
+     * @return Number of subspaces the vectors are split into
+     */
+    public int getSubspaces(){
+        return subspaces;
+    }
+
+    /**
+     * @return Codebooks of all subspaces laid out as [subspace][centroid][component]
+     */
+    float[] getCodebooks(){
+        return codebooks;
+    }
+
+    /**
+     * @return Number of components of the vectors handled by this quantizer
+     */
+    public int getDimension(){
+        return dimension;
+    }
+
+    /**
+     * @return Size in bytes of a single code
+     */
+    public int getCodeSize(){
+        return subspaces;
+    }
+
+    /**
+     * @return Number of centroids in the codebook of each subspace
+     */
+    public int getCentroids(){
+        return centroids;
+    }
+
+    /**
+     * @return Size of the lookup table required by the asymmetric distance computation
+     */
+    public int getDistanceTableSize(){
+        return subspaces * centroids;
+    }
+
+    /**
+     * Compresses a vector into its code
+     * @param vector Array holding the vector
+     * @param vectorOffset Position of the vector inside its array
+     * @param codes Array in which the code will be written
+     * @param codeOffset Position of the code inside its array
+     */
+    public void encode(float[] vector, int vectorOffset, byte[] codes, int codeOffset){
+
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            int codebookOffset = subspace * centroids * subDimension;
+            int nearest = 0;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for (int centroid = 0; centroid < centroids; centroid++){
+                float distance = VectorDistances.squaredL2(vector, vectorOffset + subspace * subDimension,
+                        codebooks, codebookOffset + centroid * subDimension, subDimension);
+                if (distance < nearestDistance){
+                    nearestDistance = distance;
+                    nearest = centroid;
+                }
+            }
+            codes[codeOffset + subspace] = (byte) nearest;
+        }
+    }
+
+    /**
+     * Reconstructs the approximation of a vector from its code
+     * @param codes Array holding the code
+     * @param codeOffset Position of the code inside its array
+     * @param vector Array in which the reconstructed vector will be written
+     * @param vectorOffset Position of the vector inside its array
+     */
+    public void decode(byte[] codes, int codeOffset, float[] vector, int vectorOffset){
+
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            int centroid = codes[codeOffset + subspace] & 0xFF;
+            System.arraycopy(codebooks, (subspace * centroids + centroid) * subDimension,
+                    vector, vectorOffset + subspace * subDimension, subDimension);
+        }
+    }
+
+    /**
+     * Precomputes the squared distance from every query sub-vector to every centroid of
+     * its subspace, this is done once per query
+     * @param query Query vector
+     * @param table Lookup table of size {@link #getDistanceTableSize()} to be filled
+     */
+    public void computeDistanceTable(float[] query, float[] table){
+
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            int codebookOffset = subspace * centroids * subDimension;
+            for (int centroid = 0; centroid < centroids; centroid++){
+                table[subspace * centroids + centroid] = VectorDistances.squaredL2(query, subspace * subDimension,
+                        codebooks, codebookOffset + centroid * subDimension, subDimension);
+            }
+        }
+    }
+
+    /**
+     * Asymmetric distance between a query and a compressed vector
+     * @param table Lookup table filled by {@link #computeDistanceTable(float[], float[])} for the query
+     * @param codes Array holding the code of the compressed vector
+     * @param codeOffset Position of the code inside its array
+     * @return Approximate squared euclidean distance
+     */
+    public float asymmetricDistance(float[] table, byte[] codes, int codeOffset){
+
+        float sum = 0;
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            sum += table[subspace * centroids + (codes[codeOffset + subspace] & 0xFF)];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,29 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+/**
+ * Kind of face templates a recognition model is made of
+ *
+ * @author ArmandoNCM
+ */
+public enum RecognitionMethod {
+
+    /**
+     * Equalized pixels of the normalized face, used until a model is trained
+     */
+    PIXELS,
+
+    /**
+     * Projection of the pixels on the principal components of the training faces
+     */
+    EIGENFACES,
+
+    /**
+     * Projection of the pixels on the linear discriminants of the training faces
+     */
+    FISHERFACES,
+
+    /**
+     * Grid of local binary pattern histograms
+     */
+    LBPH
+}
@@ -0,0 +1,291 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gallery of face templates partitioned into shards, each shard being owned by its own
+ * worker thread which is the only one ever touching the shard's arrays
+ *
+ * Queries are broadcast to every shard (scatter), each worker scans its own templates
+ * and the partial top-K of all shards are merged (gather), so query throughput scales
+ * with the number of shards as long as there are cores to run them
+ *
+ * Templates are only ever added, each to the least loaded shard, so the shards never
+ * differ by more than one template and templates never move between shards
+ *
+ * The workers are daemon threads stopped by {@link #close()}, searches registered with
+ * {@link #acquire()} keep them running until they are over
+ *
+ * @author ArmandoNCM
+ */
+public class ShardedGallery {
+
+    private final RecognitionMethod method;
+
+    private final int dimension;
+
+    private final int[] order;
+
+    private final Shard[] shards;
+
+    /**
+     * Number of templates assigned to every shard, only used by the adding thread
+     */
+    private final int[] shardSizes;
+
+    private int size;
+
+    private final Object usersLock = new Object();
+
+    /**
+     * Number of searches registered with {@link #acquire()} and not released yet
+     */
+    private int users;
+
+    private boolean closed;
+
+    /**
+     * @param method Recognition method deciding the distance used
+     * @param dimension Number of components of the templates
+     * @param order Order in which the distance kernels visit the template components, null
+     *              for their natural order
+     * @param shardCount Number of shards, and of worker threads
+     */
+    public ShardedGallery(RecognitionMethod method, int dimension, int[] order, int shardCount){
+
+        this.method = method;
+        this.dimension = dimension;
+        this.order = order;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++){
+            shards[i] = new Shard(dimension, "gallery-shard-" + i);
+        }
+        shardSizes = new int[shardCount];
+    }
+
+    /**
+     * Adds a template to the least loaded shard, templates get consecutive gallery indices
+     * @param label Label of the person the template belongs to
+     * @param template Face template, must not be modified afterwards
+     * @return Gallery index of the template
+     */
+    public synchronized int add(final int label, final float[] template){
+
+        if (template.length != dimension){
+            throw new IllegalArgumentException("Expected a template of dimension " + dimension + " but got " + template.length);
+        }
+        int shard = 0;
+        for (int i = 1; i < shards.length; i++){
+            if (shardSizes[i] < shardSizes[shard]){
+                shard = i;
+            }
+        }
+        final int templateIndex = size++;
+        shardSizes[shard]++;
+        final Shard owner = shards[shard];
+        owner.worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                owner.add(templateIndex, label, template);
+            }
+        });
+        return templateIndex;
+    }
+
+    /**
+     * @return Number of templates in the gallery
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * @return Number of templates assigned to every shard
+     */
+    public synchronized int[] getShardSizes(){
+        return shardSizes.clone();
+    }
+
+    /**
+     * Searches the K templates closest to a query on all shards at once
+     * @param query Query template
+     * @param k Number of matches to return
+     * @return Matches sorted from the closest to the farthest
+     */
+    public FaceMatch[] search(float[] query, int k){
+        return search(new float[][]{query}, k)[0];
+    }
+
+    /**
+     * Searches the K templates closest to each of many queries, every shard scanning its
+     * templates once for the whole batch
+     * @param queries Query templates
+     * @param k Number of matches to return per query
+     * @return Matches of every query sorted from the closest to the farthest
+     */
+    public FaceMatch[][] search(final float[][] queries, final int k){
+
+        // Scatter
+        List<Future<TopKCollector[]>> partialResults = new ArrayList<>(shards.length);
+        for (final Shard shard : shards){
+            partialResults.add(shard.worker.submit(new Callable<TopKCollector[]>() {
+                @Override
+                public TopKCollector[] call() {
+                    return shard.search(method, order, queries, k);
+                }
+            }));
+        }
+
+        // Gather
+        TopKCollector[] collectors = new TopKCollector[queries.length];
+        for (int i = 0; i < queries.length; i++){
+            collectors[i] = new TopKCollector(k);
+        }
+        for (Future<TopKCollector[]> partialResult : partialResults){
+            TopKCollector[] partialCollectors = await(partialResult);
+            for (int i = 0; i < queries.length; i++){
+                collectors[i].addAll(partialCollectors[i]);
+            }
+        }
+
+        FaceMatch[][] matches = new FaceMatch[queries.length][];
+        for (int i = 0; i < queries.length; i++){
+            matches[i] = collectors[i].toMatches();
+        }
+        return matches;
+    }
+
+    /**
+     * Registers a search about to run on the gallery, the workers are not stopped before
+     * the search is released
+     * @return False if the gallery was closed and can no longer be searched
+     */
+    public boolean acquire(){
+
+        synchronized (usersLock) {
+            if (closed){
+                return false;
+            }
+            users++;
+            return true;
+        }
+    }
+
+    /**
+     * Releases a search registered with {@link #acquire()}, stopping the workers if the
+     * gallery was closed in the meantime and this was the last search running
+     */
+    public void release(){
+
+        synchronized (usersLock) {
+            users--;
+            if (closed && users == 0){
+                stopWorkers();
+            }
+        }
+    }
+
+    /**
+     * Stops the shard workers once the searches registered with {@link #acquire()} are
+     * over, the gallery cannot be used afterwards
+     */
+    public void close(){
+
+        synchronized (usersLock) {
+            if (closed){
+                return;
+            }
+            closed = true;
+            if (users == 0){
+                stopWorkers();
+            }
+        }
+    }
+
+    private void stopWorkers(){
+
+        for (Shard shard : shards){
+            shard.worker.shutdown();
+        }
+    }
+
+    private static <T> T await(Future<T> future){
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A shard failed", e.getCause());
+        }
+    }
+
+    /**
+     * Templates of a shard, only accessed from the shard's worker thread
+     */
+    private static class Shard {
+
+        private final ExecutorService worker;
+
+        private final int dimension;
+
+        private int[] templateIndices = new int[64];
+
+        private int[] labels = new int[64];
+
+        private float[] templates;
+
+        private int count;
+
+        private Shard(int dimension, final String workerName){
+            this.dimension = dimension;
+            templates = new float[64 * dimension];
+            // Daemon workers never keep the process alive, even if the gallery is not closed
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, workerName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private void add(int templateIndex, int label, float[] template){
+
+            if (count == labels.length){
+                templateIndices = Arrays.copyOf(templateIndices, count * 2);
+                labels = Arrays.copyOf(labels, count * 2);
+                templates = Arrays.copyOf(templates, count * 2 * dimension);
+            }
+            templateIndices[count] = templateIndex;
+            labels[count] = label;
+            System.arraycopy(template, 0, templates, count * dimension, dimension);
+            count++;
+        }
+
+        private TopKCollector[] search(RecognitionMethod method, int[] order, float[][] queries, int k){
+
+            TopKCollector[] collectors = new TopKCollector[queries.length];
+            for (int query = 0; query < queries.length; query++){
+                TopKCollector collector = new TopKCollector(k);
+                float[] queryTemplate = queries[query];
+                for (int i = 0; i < count; i++){
+                    collector.offer(templateIndices[i], labels[i], VectorDistances.distance(method, queryTemplate, 0,
+                            templates, i * dimension, dimension, order, collector.bound()));
+                }
+                collectors[query] = collector;
+            }
+            return collectors;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+/**
+ * Storage format of the templates of a {@link CompactGallery}
+ *
+ * @author ArmandoNCM
+ */
+public enum TemplateEncoding {
+
+    /**
+     * Full single-precision floats, the reference the other encodings are measured against
+     */
+    FLOAT32(4),
+
+    /**
+     * IEEE 754 half-precision floats, see {@link HalfFloat}
+     */
+    FLOAT16(2),
+
+    /**
+     * Unsigned bytes spanning the range of every template, with a per-template offset and scale
+     */
+    INT8(1);
+
+    private final int bytesPerComponent;
+
+    TemplateEncoding(int bytesPerComponent){
+        this.bytesPerComponent = bytesPerComponent;
+    }
+
+    /**
+     * @return Number of bytes taken by every template component
+     */
+    public int getBytesPerComponent(){
+        return bytesPerComponent;
+    }
+}
@@ -0,0 +1,177 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the K closest candidates seen during a gallery scan
+ * Candidates are held in a bounded max-heap over primitive arrays so that offering a
+ * candidate never allocates, the worst kept distance sits at the root and can be used
+ * as a rejection bound by the scanning loops
+ *
+ * @author ArmandoNCM
+ */
+public class TopKCollector {
+
+    private final int capacity;
+
+    private final int[] templateIndices;
+
+    private final int[] labels;
+
+    private final float[] distances;
+
+    private int size;
+
+    /**
+     * @param capacity Number of candidates (K) to keep
+     */
+    public TopKCollector(int capacity){
+
+        if (capacity <= 0){
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        templateIndices = new int[capacity];
+        labels = new int[capacity];
+        distances = new float[capacity];
+    }
+
+    /**
+     * Offers a candidate to the collector
+     * @param templateIndex Index of the candidate template in its gallery
+     * @param label Label of the candidate template
+     * @param distance Distance from the query to the candidate
+     * @return True if the candidate was kept
+     */
+    public boolean offer(int templateIndex, int label, float distance){
+
+        if (size < capacity){
+            templateIndices[size] = templateIndex;
+            labels[size] = label;
+            distances[size] = distance;
+            siftUp(size++);
+            return true;
+        }
+        if (distance >= distances[0]){
+            return false;
+        }
+        // Replace the current worst candidate and restore the heap
+        templateIndices[0] = templateIndex;
+        labels[0] = label;
+        distances[0] = distance;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Distance a candidate has to beat in order to be kept
+     * @return Worst kept distance once the collector is full, positive infinity otherwise
+     */
+    public float bound(){
+        return size < capacity ? Float.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * @return Number of candidates currently kept
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return Number of candidates (K) this collector keeps at most
+     */
+    public int capacity(){
+        return capacity;
+    }
+
+    /**
+     * Forgets all the kept candidates so that the collector can be reused for another query
+     */
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * Offers all the candidates kept by another collector, used to merge partial results
+     * @param other Collector whose candidates will be offered to this one
+     */
+    public void addAll(TopKCollector other){
+
+        for (int i = 0; i < other.size; i++){
+            offer(other.templateIndices[i], other.labels[i], other.distances[i]);
+        }
+    }
+
+    /**
+     * @return Kept candidates sorted from the closest to the farthest
+     */
+    public FaceMatch[] toMatches(){
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(distances[a], distances[b]);
+            }
+        });
+
+        FaceMatch[] matches = new FaceMatch[size];
+        for (int i = 0; i < size; i++){
+            int position = order[i];
+            matches[i] = new FaceMatch(labels[position], templateIndices[position], distances[position]);
+        }
+        return matches;
+    }
+
+    private void siftUp(int position){
+
+        while (position > 0){
+            int parent = (position - 1) >>> 1;
+            if (distances[parent] >= distances[position]){
+                break;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position){
+
+        while (true){
+            int left = 2 * position + 1;
+            if (left >= size){
+                break;
+            }
+            int largest = left;
+            int right = left + 1;
+            if (right < size && distances[right] > distances[left]){
+                largest = right;
+            }
+            if (distances[position] >= distances[largest]){
+                break;
+            }
+            swap(position, largest);
+            position = largest;
+        }
+    }
+
+    private void swap(int a, int b){
+
+        int templateIndex = templateIndices[a];
+        templateIndices[a] = templateIndices[b];
+        templateIndices[b] = templateIndex;
+
+        int label = labels[a];
+        labels[a] = labels[b];
+        labels[b] = label;
+
+        float distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+}
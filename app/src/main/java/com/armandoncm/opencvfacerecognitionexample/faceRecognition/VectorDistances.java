@@ -0,0 +1,494 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Distance functions between face templates stored in flat primitive arrays
+ * Templates are addressed by an offset into the array so that galleries can keep all
+ * of their vectors in a single contiguous buffer
+ *
+ * @author ArmandoNCM
+ */
+public class VectorDistances {
+
+    /**
+     * Number of components accumulated between two checks of the early-abandon bound
+     */
+    private static final int ABANDON_BLOCK_SIZE = 16;
+
+    /**
+     * Computes the squared euclidean distance between two vectors
+     * @param a Array holding the first vector
+     * @param aOffset Position of the first vector inside its array
+     * @param b Array holding the second vector
+     * @param bOffset Position of the second vector inside its array
+     * @param dimension Number of components of both vectors
+     * @return Squared euclidean (L2) distance
+     */
+    public static float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int dimension){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float difference = a[aOffset + i] - b[bOffset + i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the squared euclidean distance between a vector and one stored in a buffer,
+     * heap buffers are read through their backing array
+     * @param a Array holding the first vector
+     * @param aOffset Position of the first vector inside its array
+     * @param b Buffer holding the second vector
+     * @param bOffset Position of the second vector inside its buffer, relative to index zero
+     * @param dimension Number of components of both vectors
+     * @return Squared euclidean (L2) distance
+     */
+    public static float squaredL2(float[] a, int aOffset, FloatBuffer b, int bOffset, int dimension){
+
+        if (b.hasArray()){
+            return squaredL2(a, aOffset, b.array(), b.arrayOffset() + bOffset, dimension);
+        }
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float difference = a[aOffset + i] - b.get(bOffset + i);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the chi-square distance between two histograms
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Array holding the second histogram
+     * @param bOffset Position of the second histogram inside its array
+     * @param dimension Number of bins of both histograms
+     * @return Chi-square distance: sum of (a - b)^2 / (a + b) over the non-empty bins
+     */
+    public static float chiSquare(float[] a, int aOffset, float[] b, int bOffset, int dimension){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float x = a[aOffset + i];
+            float y = b[bOffset + i];
+            float total = x + y;
+            if (total > 0){
+                float difference = x - y;
+                sum += difference * difference / total;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the chi-square distance between a histogram and one stored in a buffer,
+     * heap buffers are read through their backing array
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Buffer holding the second histogram
+     * @param bOffset Position of the second histogram inside its buffer, relative to index zero
+     * @param dimension Number of bins of both histograms
+     * @return Chi-square distance
+     */
+    public static float chiSquare(float[] a, int aOffset, FloatBuffer b, int bOffset, int dimension){
+
+        if (b.hasArray()){
+            return chiSquare(a, aOffset, b.array(), b.arrayOffset() + bOffset, dimension);
+        }
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float x = a[aOffset + i];
+            float y = b.get(bOffset + i);
+            float total = x + y;
+            if (total > 0){
+                float difference = x - y;
+                sum += difference * difference / total;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the distance a recognition method compares its templates with
+     * @param method Recognition method the templates were produced by
+     * @param a Array holding the first template
+     * @param aOffset Position of the first template inside its array
+     * @param b Array holding the second template
+     * @param bOffset Position of the second template inside its array
+     * @param dimension Number of components of both templates
+     * @return Chi-square distance for LBPH histograms, squared euclidean distance otherwise
+     */
+    public static float distance(RecognitionMethod method, float[] a, int aOffset, float[] b, int bOffset, int dimension){
+
+        return method == RecognitionMethod.LBPH
+                ? chiSquare(a, aOffset, b, bOffset, dimension)
+                : squaredL2(a, aOffset, b, bOffset, dimension);
+    }
+
+    /**
+     * Computes the distance a recognition method compares its templates with
+     * @param method Recognition method the templates were produced by
+     * @param a Array holding the first template
+     * @param aOffset Position of the first template inside its array
+     * @param b Buffer holding the second template
+     * @param bOffset Position of the second template inside its buffer, relative to index zero
+     * @param dimension Number of components of both templates
+     * @return Chi-square distance for LBPH histograms, squared euclidean distance otherwise
+     */
+    public static float distance(RecognitionMethod method, float[] a, int aOffset, FloatBuffer b, int bOffset, int dimension){
+
+        return method == RecognitionMethod.LBPH
+                ? chiSquare(a, aOffset, b, bOffset, dimension)
+                : squaredL2(a, aOffset, b, bOffset, dimension);
+    }
+
+    /**
+     * Computes the histogram intersection distance between two histograms
+     * It equals the total mass of the first histogram minus the intersection of both,
+     * i.e. the sum of max(0, a - b), which for normalized histograms is the usual
+     * one-minus-intersection distance
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Array holding the second histogram
+     * @param bOffset Position of the second histogram inside its array
+     * @param dimension Number of bins of both histograms
+     * @return Histogram intersection distance
+     */
+    public static float intersectionDistance(float[] a, int aOffset, float[] b, int bOffset, int dimension){
+        return intersectionDistance(a, aOffset, b, bOffset, dimension, null, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Squared euclidean distance with early abandoning
+     * The distance is accumulated in blocks of components, visited in the given order, and
+     * the computation stops as soon as the partial sum exceeds the bound
+     * @param a Array holding the first vector
+     * @param aOffset Position of the first vector inside its array
+     * @param b Array holding the second vector
+     * @param bOffset Position of the second vector inside its array
+     * @param dimension Number of components of both vectors
+     * @param order Order in which the components are visited, null for their natural order
+     * @param bound Distance above which the exact value is not needed, e.g. the K-th best so far
+     * @return Exact distance if it does not exceed the bound, otherwise a partial sum above it
+     */
+    public static float squaredL2(float[] a, int aOffset, float[] b, int bOffset, int dimension, int[] order, float bound){
+
+        float sum = 0;
+        int i = 0;
+        while (i < dimension){
+            int blockEnd = Math.min(dimension, i + ABANDON_BLOCK_SIZE);
+            if (order == null){
+                for (; i < blockEnd; i++){
+                    float difference = a[aOffset + i] - b[bOffset + i];
+                    sum += difference * difference;
+                }
+            } else {
+                for (; i < blockEnd; i++){
+                    int component = order[i];
+                    float difference = a[aOffset + component] - b[bOffset + component];
+                    sum += difference * difference;
+                }
+            }
+            if (sum > bound){
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Chi-square distance with early abandoning, see
+     * {@link #squaredL2(float[], int, float[], int, int, int[], float)}
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Array holding the second histogram
+     * @param bOffset Position of the second histogram inside its array
+     * @param dimension Number of bins of both histograms
+     * @param order Order in which the bins are visited, null for their natural order
+     * @param bound Distance above which the exact value is not needed
+     * @return Exact distance if it does not exceed the bound, otherwise a partial sum above it
+     */
+    public static float chiSquare(float[] a, int aOffset, float[] b, int bOffset, int dimension, int[] order, float bound){
+
+        float sum = 0;
+        int i = 0;
+        while (i < dimension){
+            int blockEnd = Math.min(dimension, i + ABANDON_BLOCK_SIZE);
+            for (; i < blockEnd; i++){
+                int bin = order == null ? i : order[i];
+                float x = a[aOffset + bin];
+                float y = b[bOffset + bin];
+                float total = x + y;
+                if (total > 0){
+                    float difference = x - y;
+                    sum += difference * difference / total;
+                }
+            }
+            if (sum > bound){
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Histogram intersection distance with early abandoning, see
+     * {@link #intersectionDistance(float[], int, float[], int, int)} and
+     * {@link #squaredL2(float[], int, float[], int, int, int[], float)}
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Array holding the second histogram
+     * @param bOffset Position of the second histogram inside its array
+     * @param dimension Number of bins of both histograms
+     * @param order Order in which the bins are visited, null for their natural order
+     * @param bound Distance above which the exact value is not needed
+     * @return Exact distance if it does not exceed the bound, otherwise a partial sum above it
+     */
+    public static float intersectionDistance(float[] a, int aOffset, float[] b, int bOffset, int dimension, int[] order, float bound){
+
+        float sum = 0;
+        int i = 0;
+        while (i < dimension){
+            int blockEnd = Math.min(dimension, i + ABANDON_BLOCK_SIZE);
+            for (; i < blockEnd; i++){
+                int bin = order == null ? i : order[i];
+                float excess = a[aOffset + bin] - b[bOffset + bin];
+                if (excess > 0){
+                    sum += excess;
+                }
+            }
+            if (sum > bound){
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Distance a recognition method compares its templates with, with early abandoning
+     * @param method Recognition method the templates were produced by
+     * @param a Array holding the first template
+     * @param aOffset Position of the first template inside its array
+     * @param b Array holding the second template
+     * @param bOffset Position of the second template inside its array
+     * @param dimension Number of components of both templates
+     * @param order Order in which the components are visited, null for their natural order
+     * @param bound Distance above which the exact value is not needed
+     * @return Exact distance if it does not exceed the bound, otherwise a partial sum above it
+     */
+    public static float distance(RecognitionMethod method, float[] a, int aOffset, float[] b, int bOffset, int dimension,
+                                 int[] order, float bound){
+
+        return method == RecognitionMethod.LBPH
+                ? chiSquare(a, aOffset, b, bOffset, dimension, order, bound)
+                : squaredL2(a, aOffset, b, bOffset, dimension, order, bound);
+    }
+
+    /**
+     * Distance a recognition method compares its templates with, with early abandoning,
+     * heap buffers are read through their backing array
+     * @param method Recognition method the templates were produced by
+     * @param a Array holding the first template
+     * @param aOffset Position of the first template inside its array
+     * @param b Buffer holding the second template
+     * @param bOffset Position of the second template inside its buffer, relative to index zero
+     * @param dimension Number of components of both templates
+     * @param order Order in which the components are visited, null for their natural order
+     * @param bound Distance above which the exact value is not needed
+     * @return Exact distance if it does not exceed the bound, otherwise a partial sum above it
+     */
+    public static float distance(RecognitionMethod method, float[] a, int aOffset, FloatBuffer b, int bOffset, int dimension,
+                                 int[] order, float bound){
+
+        if (b.hasArray()){
+            return distance(method, a, aOffset, b.array(), b.arrayOffset() + bOffset, dimension, order, bound);
+        }
+        boolean histogram = method == RecognitionMethod.LBPH;
+        float sum = 0;
+        int i = 0;
+        while (i < dimension){
+            int blockEnd = Math.min(dimension, i + ABANDON_BLOCK_SIZE);
+            for (; i < blockEnd; i++){
+                int component = order == null ? i : order[i];
+                float x = a[aOffset + component];
+                float y = b.get(bOffset + component);
+                float difference = x - y;
+                if (!histogram){
+                    sum += difference * difference;
+                } else if (x + y > 0){
+                    sum += difference * difference / (x + y);
+                }
+            }
+            if (sum > bound){
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the squared euclidean distance between a vector and a half-precision one,
+     * components are decoded one at a time as they are read, see {@link HalfFloat}
+     * @param a Array holding the first vector
+     * @param aOffset Position of the first vector inside its array
+     * @param b Array holding the second, half-precision, vector
+     * @param bOffset Position of the second vector inside its array
+     * @param dimension Number of components of both vectors
+     * @return Squared euclidean (L2) distance
+     */
+    public static float squaredL2(float[] a, int aOffset, short[] b, int bOffset, int dimension){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float difference = a[aOffset + i] - HalfFloat.toFloat(b[bOffset + i]);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the chi-square distance between a histogram and a half-precision one
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param b Array holding the second, half-precision, histogram
+     * @param bOffset Position of the second histogram inside its array
+     * @param dimension Number of bins of both histograms
+     * @return Chi-square distance
+     */
+    public static float chiSquare(float[] a, int aOffset, short[] b, int bOffset, int dimension){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float x = a[aOffset + i];
+            float y = HalfFloat.toFloat(b[bOffset + i]);
+            float total = x + y;
+            if (total > 0){
+                float difference = x - y;
+                sum += difference * difference / total;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the dot product between a vector and a vector of unsigned 8-bit codes
+     * Distances to affinely quantized vectors (offset + scale * code) expand into this dot
+     * product plus terms precomputed once per query and once per stored vector, so the
+     * scan reads a single byte per component and does one multiply-add on it
+     * @param a Array holding the vector
+     * @param aOffset Position of the vector inside its array
+     * @param codes Array holding the codes, read as unsigned bytes
+     * @param codesOffset Position of the codes inside their array
+     * @param dimension Number of components of both vectors
+     * @return Dot product
+     */
+    public static float dot(float[] a, int aOffset, byte[] codes, int codesOffset, int dimension){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            sum += a[aOffset + i] * (codes[codesOffset + i] & 0xff);
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the chi-square distance between a histogram and an affinely quantized one,
+     * whose bins are offset + scale * code
+     * @param a Array holding the first histogram
+     * @param aOffset Position of the first histogram inside its array
+     * @param codes Array holding the codes of the second histogram, read as unsigned bytes
+     * @param codesOffset Position of the codes inside their array
+     * @param dimension Number of bins of both histograms
+     * @param offset Value of the zero code
+     * @param scale Value step between consecutive codes
+     * @return Chi-square distance
+     */
+    public static float chiSquare(float[] a, int aOffset, byte[] codes, int codesOffset, int dimension,
+                                  float offset, float scale){
+
+        float sum = 0;
+        for (int i = 0; i < dimension; i++){
+            float x = a[aOffset + i];
+            float y = offset + scale * (codes[codesOffset + i] & 0xff);
+            float total = x + y;
+            if (total > 0){
+                float difference = x - y;
+                sum += difference * difference / total;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Orders the components of a set of vectors by decreasing variance, so that early
+     * abandoning distance kernels visit the most discriminative components first and their
+     * partial sums reach the bound sooner
+     * @param vectors Buffer holding the vectors laid out one after the other
+     * @param count Number of vectors
+     * @param dimension Number of components of each vector
+     * @return Component indices sorted by decreasing variance
+     */
+    public static int[] orderByVariance(FloatBuffer vectors, int count, int dimension){
+
+        final double[] variances = new double[dimension];
+        double[] means = new double[dimension];
+        int base = vectors.position();
+        for (int i = 0; i < count; i++){
+            for (int component = 0; component < dimension; component++){
+                means[component] += vectors.get(base + i * dimension + component);
+            }
+        }
+        for (int component = 0; component < dimension; component++){
+            means[component] /= Math.max(count, 1);
+        }
+        for (int i = 0; i < count; i++){
+            for (int component = 0; component < dimension; component++){
+                double difference = vectors.get(base + i * dimension + component) - means[component];
+                variances[component] += difference * difference;
+            }
+        }
+
+        Integer[] order = new Integer[dimension];
+        for (int component = 0; component < dimension; component++){
+            order[component] = component;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(variances[b], variances[a]);
+            }
+        });
+        int[] result = new int[dimension];
+        for (int component = 0; component < dimension; component++){
+            result[component] = order[component];
+        }
+        return result;
+    }
+
+    /**
+     * Finds the row of a matrix closest to the given vector
+     * @param vector Array holding the vector
+     * @param vectorOffset Position of the vector inside its array
+     * @param rows Row-major matrix whose rows are compared to the vector
+     * @param rowCount Number of rows of the matrix
+     * @param dimension Number of components of the vector and of each row
+     * @return Index of the closest row
+     */
+    public static int nearestRow(float[] vector, int vectorOffset, float[] rows, int rowCount, int dimension){
+
+        int nearest = 0;
+        float nearestDistance = Float.POSITIVE_INFINITY;
+        for (int row = 0; row < rowCount; row++){
+            float distance = squaredL2(vector, vectorOffset, rows, row * dimension, dimension);
+            if (distance < nearestDistance){
+                nearestDistance = distance;
+                nearest = row;
+            }
+        }
+        return nearest;
+    }
+}
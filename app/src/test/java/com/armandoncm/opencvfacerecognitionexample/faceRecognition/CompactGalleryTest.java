@@ -0,0 +1,106 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the half-precision and 8-bit template encodings and their accuracy against
+ * float templates on synthetic galleries
+ * @author ArmandoNCM
+ */
+public class CompactGalleryTest {
+
+    private static final int IDENTITIES = 64;
+
+    private static final int SAMPLES_PER_IDENTITY = 8;
+
+    @Test
+    public void halfFloatRoundTripsRepresentableValues(){
+
+        float[] values = {0f, -0f, 1f, -2.5f, 0.5f, 65504f, 6.1035156e-5f, 5.9604645e-8f, 0.333251953125f};
+        for (float value : values){
+            assertEquals(value, HalfFloat.toFloat(HalfFloat.toHalf(value)), 0f);
+        }
+        assertEquals(Float.POSITIVE_INFINITY, HalfFloat.toFloat(HalfFloat.toHalf(1e6f)), 0f);
+        assertTrue(Float.isNaN(HalfFloat.toFloat(HalfFloat.toHalf(Float.NaN))));
+
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++){
+            float value = random.nextFloat();
+            assertEquals(value, HalfFloat.toFloat(HalfFloat.toHalf(value)), value / 2048);
+        }
+    }
+
+    @Test
+    public void compactKernelsMatchDistancesToDecodedTemplates(){
+
+        Random random = new Random(5);
+        int dimension = FeatureExtraction.PIXEL_DIMENSION;
+        float[] query = randomTemplate(random, dimension);
+        float[] template = randomTemplate(random, dimension);
+        float[] decoded = new float[dimension];
+
+        for (TemplateEncoding encoding : TemplateEncoding.values()){
+            for (RecognitionMethod method : new RecognitionMethod[]{RecognitionMethod.PIXELS, RecognitionMethod.LBPH}){
+                CompactGallery gallery = new CompactGallery(method, dimension, encoding);
+                gallery.add(7, template);
+                assertEquals(7, gallery.getTemplate(0, decoded));
+                float expected = VectorDistances.distance(method, query, 0, decoded, 0, dimension);
+                FaceMatch match = gallery.search(query, 1)[0];
+                assertEquals(expected, match.getDistance(), expected * 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void compactEncodingsKeepTheNearestNeighbours(){
+
+        Random random = new Random(9);
+        for (RecognitionMethod method : new RecognitionMethod[]{RecognitionMethod.PIXELS, RecognitionMethod.LBPH}){
+            int dimension = method == RecognitionMethod.LBPH ? FeatureExtraction.LBP_DIMENSION : FeatureExtraction.PIXEL_DIMENSION;
+            int size = IDENTITIES * SAMPLES_PER_IDENTITY;
+            int[] labels = new int[size];
+            float[] templates = new float[size * dimension];
+            float[][] queries = new float[IDENTITIES][];
+            for (int identity = 0; identity < IDENTITIES; identity++){
+                float[] center = randomTemplate(random, dimension);
+                for (int sample = 0; sample <= SAMPLES_PER_IDENTITY; sample++){
+                    float[] template = new float[dimension];
+                    for (int i = 0; i < dimension; i++){
+                        template[i] = Math.max(0, center[i] + (float) random.nextGaussian() * 0.05f);
+                    }
+                    if (sample == SAMPLES_PER_IDENTITY){
+                        queries[identity] = template;
+                    } else {
+                        int index = identity * SAMPLES_PER_IDENTITY + sample;
+                        labels[index] = identity;
+                        System.arraycopy(template, 0, templates, index * dimension, dimension);
+                    }
+                }
+            }
+            FaceModel model = new FaceModel(method, dimension, labels, templates, dimension, null, null);
+            GallerySnapshot snapshot = new GallerySnapshot(model, 0, new GallerySegment[]{GallerySegment.of(model)});
+
+            for (TemplateEncoding encoding : TemplateEncoding.values()){
+                CompactGallery.Accuracy accuracy = CompactGallery.measure(snapshot, encoding, queries, 5);
+                assertEquals(1.0, accuracy.getLabelAgreement(), 0);
+                assertTrue(accuracy.getRecall() > 0.9);
+                assertTrue(accuracy.getDistanceError() < 0.01);
+                assertTrue(accuracy.getMemoryRatio() <= encoding.getBytesPerComponent() / 4.0 + 0.05);
+            }
+        }
+    }
+
+    private static float[] randomTemplate(Random random, int dimension){
+
+        float[] template = new float[dimension];
+        for (int i = 0; i < dimension; i++){
+            template[i] = random.nextFloat();
+        }
+        return template;
+    }
+}
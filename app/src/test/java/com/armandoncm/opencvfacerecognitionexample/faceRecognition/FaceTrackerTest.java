@@ -0,0 +1,130 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the overlap measure, the linking of detections to tracks, the expiry of tracks
+ * and the quality weighted identity voting of the face tracker
+ * @author ArmandoNCM
+ */
+public class FaceTrackerTest {
+
+    private static final int FACE_SIZE = 40;
+
+    @Test
+    public void intersectionOverUnion(){
+
+        Rect face = new Rect(0, 0, 10, 10);
+        assertEquals(1, FaceTracker.intersectionOverUnion(face, new Rect(0, 0, 10, 10)), 1e-9);
+        assertEquals(0, FaceTracker.intersectionOverUnion(face, new Rect(10, 0, 10, 10)), 0);
+        assertEquals(0, FaceTracker.intersectionOverUnion(face, new Rect(20, 20, 5, 5)), 0);
+        // 50 pixels shared out of 150 covered
+        assertEquals(1 / 3.0, FaceTracker.intersectionOverUnion(face, new Rect(5, 0, 10, 10)), 1e-9);
+        // A rectangle inside the other one
+        assertEquals(0.25, FaceTracker.intersectionOverUnion(face, new Rect(0, 0, 5, 5)), 1e-9);
+    }
+
+    @Test
+    public void crossingFacesKeepTheirTracks(){
+
+        FaceTracker tracker = new FaceTracker(null);
+        FaceTracker.Track left = null;
+        FaceTracker.Track right = null;
+        // Two faces walk past each other, one slightly lower, and swap sides
+        for (int step = 0; step <= 10; step++){
+            Rect movingRight = new Rect(step * 10, 0, FACE_SIZE, FACE_SIZE);
+            Rect movingLeft = new Rect(100 - step * 10, 10, FACE_SIZE, FACE_SIZE);
+            // The order of the detections changes from frame to frame
+            Rect[] detections = step % 2 == 0
+                    ? new Rect[]{movingRight, movingLeft}
+                    : new Rect[]{movingLeft, movingRight};
+            List<FaceTracker.Track> seen = tracker.link(detections);
+            FaceTracker.Track movingRightTrack = seen.get(step % 2 == 0 ? 0 : 1);
+            FaceTracker.Track movingLeftTrack = seen.get(step % 2 == 0 ? 1 : 0);
+            if (step == 0){
+                left = movingRightTrack;
+                right = movingLeftTrack;
+            }
+            assertSame(left, movingRightTrack);
+            assertSame(right, movingLeftTrack);
+        }
+        assertEquals(2, tracker.getTracks().size());
+        assertEquals(11, left.getAge());
+        assertEquals(100, left.getRectangle().x);
+        assertEquals(0, right.getRectangle().x);
+    }
+
+    @Test
+    public void tracksExpireAfterTheMaximumMissedFrames(){
+
+        FaceTracker tracker = new FaceTracker(null, 0.3, 2, 3);
+        FaceTracker.Track track = tracker.link(new Rect[]{new Rect(0, 0, FACE_SIZE, FACE_SIZE)}).get(0);
+        tracker.link(new Rect[0]);
+        tracker.link(new Rect[0]);
+        assertTrue(tracker.getTracks().contains(track));
+
+        // A detection after missing frames is still linked to the track
+        assertSame(track, tracker.link(new Rect[]{new Rect(2, 0, FACE_SIZE, FACE_SIZE)}).get(0));
+        for (int frame = 0; frame < 3; frame++){
+            tracker.link(new Rect[0]);
+        }
+        assertTrue(tracker.getTracks().isEmpty());
+
+        // The face coming back starts a new track
+        FaceTracker.Track newTrack = tracker.link(new Rect[]{new Rect(2, 0, FACE_SIZE, FACE_SIZE)}).get(0);
+        assertFalse(newTrack.getId() == track.getId());
+        assertEquals(8, tracker.getFrameCount());
+    }
+
+    @Test
+    public void identityIsTheLabelWithTheMostQuality(){
+
+        FaceTracker.Track track = new FaceTracker.Track(0, new Rect(0, 0, FACE_SIZE, FACE_SIZE));
+        track.vote(match(1), 0.9, 3);
+        assertEquals(1, track.getIdentity());
+        track.vote(match(2), 0.5, 3);
+        assertEquals(1, track.getIdentity());
+        // Two weaker votes outweigh a stronger one
+        track.vote(match(2), 0.5, 3);
+        assertEquals(2, track.getIdentity());
+        assertEquals(1.0 / 1.9, track.getConfidence(), 1e-9);
+
+        // Only clearly better frames are recognized once the track is identified
+        assertFalse(track.wantsRecognition(0.55, 3));
+        assertTrue(track.wantsRecognition(0.6, 3));
+        // A new frame replaces the worst one kept
+        track.vote(match(1), 0.8, 3);
+        assertEquals(1, track.getIdentity());
+        assertEquals(1.7 / 2.2, track.getConfidence(), 1e-9);
+        assertEquals(4, track.getRecognitionCount());
+    }
+
+    @Test
+    public void unidentifiedTracksAreRecognizedAgain(){
+
+        FaceTracker.Track track = new FaceTracker.Track(0, new Rect(0, 0, FACE_SIZE, FACE_SIZE));
+        assertTrue(track.wantsRecognition(0.9, 3));
+        // Recognized against an empty gallery
+        track.vote(null, 0.9, 3);
+        assertEquals(-1, track.getIdentity());
+        assertEquals(0, track.getConfidence(), 0);
+        assertTrue(track.wantsRecognition(0.5, 3));
+
+        track.vote(match(4), 0.5, 3);
+        assertEquals(4, track.getIdentity());
+        assertEquals(1, track.getConfidence(), 1e-9);
+        assertFalse(track.wantsRecognition(0.5, 3));
+    }
+
+    private static FaceMatch match(int label){
+        return new FaceMatch(label, 0, 1f);
+    }
+}
@@ -0,0 +1,122 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the candidate fraction and recall of the LSH prefilter on synthetic LBPH
+ * galleries, and that queries colliding with too few templates fall back to a full scan
+ * @author ArmandoNCM
+ */
+public class HistogramLshIndexTest {
+
+    private static final int DIMENSION = FeatureExtraction.LBP_DIMENSION;
+
+    private static final int IDENTITIES = 64;
+
+    private static final int SAMPLES_PER_IDENTITY = 8;
+
+    private static final int K = 5;
+
+    @Test
+    public void indexPrunesTheGalleryAndKeepsTheNearestNeighbours(){
+
+        Random random = new Random(17);
+        float[][] identities = new float[IDENTITIES][];
+        for (int i = 0; i < IDENTITIES; i++){
+            identities[i] = randomHistogram(random);
+        }
+        GallerySnapshot snapshot = lbphGallery(random, identities);
+        float[][] queries = new float[100][];
+        for (int i = 0; i < queries.length; i++){
+            queries[i] = sample(random, identities[random.nextInt(IDENTITIES)]);
+        }
+
+        HistogramLshIndex index = HistogramLshIndex.build(snapshot, 8, 8, 1);
+        HistogramLshIndex.Statistics statistics = index.measure(queries, K);
+        assertTrue(statistics.getCandidateFraction() < 0.25);
+        assertTrue(statistics.getRecall() >= 0.9);
+    }
+
+    @Test
+    public void queriesWithoutCollisionsScanTheWholeGallery(){
+
+        Random random = new Random(19);
+        float[][] identities = new float[IDENTITIES][];
+        for (int i = 0; i < IDENTITIES; i++){
+            identities[i] = randomHistogram(random);
+        }
+        GallerySnapshot snapshot = lbphGallery(random, identities);
+
+        // Single table of 31 bits, queries hardly ever share a bucket with enough templates
+        HistogramLshIndex index = HistogramLshIndex.build(snapshot, 1, 31, 1);
+        for (int i = 0; i < 20; i++){
+            float[] query = randomHistogram(random);
+            FaceMatch[] matches = index.search(query, K);
+            FaceMatch[] expected = snapshot.search(query, K);
+            assertEquals(K, matches.length);
+            for (int match = 0; match < K; match++){
+                assertEquals(expected[match].getTemplateIndex(), matches[match].getTemplateIndex());
+            }
+        }
+        HistogramLshIndex.Statistics statistics = index.measure(new float[][]{randomHistogram(random)}, K);
+        assertEquals(1.0, statistics.getCandidateFraction(), 0);
+        assertEquals(1.0, statistics.getRecall(), 0);
+    }
+
+    private static GallerySnapshot lbphGallery(Random random, float[][] identities){
+
+        int count = IDENTITIES * SAMPLES_PER_IDENTITY;
+        int[] labels = new int[count];
+        float[] templates = new float[count * DIMENSION];
+        for (int i = 0; i < count; i++){
+            labels[i] = i % IDENTITIES;
+            System.arraycopy(sample(random, identities[labels[i]]), 0, templates, i * DIMENSION, DIMENSION);
+        }
+        FaceModel model = new FaceModel(RecognitionMethod.LBPH, DIMENSION, labels, templates, 0, null, null);
+        return new GallerySnapshot(model, 0, new GallerySegment[]{GallerySegment.of(model)});
+    }
+
+    /**
+     * Histogram whose cells are normalized to sum one, like the LBPH templates
+     */
+    private static float[] randomHistogram(Random random){
+
+        float[] histogram = new float[DIMENSION];
+        for (int bin = 0; bin < DIMENSION; bin++){
+            histogram[bin] = random.nextFloat() * random.nextFloat();
+        }
+        normalize(histogram);
+        return histogram;
+    }
+
+    /**
+     * Noisy sample of an identity's histogram
+     */
+    private static float[] sample(Random random, float[] identity){
+
+        float[] histogram = new float[DIMENSION];
+        for (int bin = 0; bin < DIMENSION; bin++){
+            histogram[bin] = Math.max(0, identity[bin] * (1 + 0.3f * (float) random.nextGaussian()));
+        }
+        normalize(histogram);
+        return histogram;
+    }
+
+    private static void normalize(float[] histogram){
+
+        for (int cell = 0; cell < DIMENSION; cell += FeatureExtraction.LBP_BINS){
+            float total = 0;
+            for (int bin = cell; bin < cell + FeatureExtraction.LBP_BINS; bin++){
+                total += histogram[bin];
+            }
+            for (int bin = cell; bin < cell + FeatureExtraction.LBP_BINS; bin++){
+                histogram[bin] /= total;
+            }
+        }
+    }
+}
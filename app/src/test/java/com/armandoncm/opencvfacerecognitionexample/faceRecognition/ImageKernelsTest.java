@@ -0,0 +1,335 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pure Java kernels against straightforward floating point references, on
+ * images small enough to be a single band and large enough to be split into many
+ * @author ArmandoNCM
+ */
+public class ImageKernelsTest {
+
+    @Test
+    public void grayConversionMatchesTheLumaFormula(){
+
+        Random random = new Random(1);
+        int width = 640;
+        int height = 480;
+        byte[] rgba = new byte[width * height * 4];
+        random.nextBytes(rgba);
+        byte[] gray = new byte[width * height];
+        ImageKernels.rgbaToGray(rgba, width, height, gray);
+
+        for (int pixel = 0; pixel < width * height; pixel++){
+            double luma = 0.299 * (rgba[pixel * 4] & 0xFF) + 0.587 * (rgba[pixel * 4 + 1] & 0xFF) + 0.114 * (rgba[pixel * 4 + 2] & 0xFF);
+            assertTrue(Math.abs((gray[pixel] & 0xFF) - luma) <= 1);
+        }
+    }
+
+    @Test
+    public void areaResizeAveragesTheCoveredPixels(){
+
+        Random random = new Random(2);
+        int[][] sizes = {{800, 600, 100, 75}, {801, 599, 96, 96}, {90, 70, 90, 35}, {64, 64, 1, 1}};
+        for (int[] size : sizes){
+            byte[] source = randomImage(random, size[0], size[1]);
+            byte[] resized = new byte[size[2] * size[3]];
+            ImageKernels.resizeArea(source, size[0], size[1], resized, size[2], size[3]);
+            byte[] expected = referenceArea(source, size[0], size[1], size[2], size[3]);
+            for (int i = 0; i < resized.length; i++){
+                assertTrue(Math.abs((resized[i] & 0xFF) - (expected[i] & 0xFF)) <= 1);
+            }
+        }
+
+        // Flat areas stay exactly flat whatever the scale
+        byte[] flat = new byte[333 * 250];
+        Arrays.fill(flat, (byte) 200);
+        byte[] resized = new byte[47 * 31];
+        ImageKernels.resizeArea(flat, 333, 250, resized, 47, 31);
+        for (byte pixel : resized){
+            assertEquals(200, pixel & 0xFF);
+        }
+    }
+
+    @Test
+    public void bilinearResizeInterpolatesBetweenNeighbours(){
+
+        Random random = new Random(3);
+        int[][] sizes = {{100, 100, 350, 250}, {640, 480, 320, 240}, {37, 23, 37, 23}};
+        for (int[] size : sizes){
+            byte[] source = randomImage(random, size[0], size[1]);
+            byte[] resized = new byte[size[2] * size[3]];
+            ImageKernels.resizeBilinear(source, size[0], size[1], resized, size[2], size[3]);
+            byte[] expected = referenceBilinear(source, size[0], size[1], size[2], size[3]);
+            for (int i = 0; i < resized.length; i++){
+                assertTrue(Math.abs((resized[i] & 0xFF) - (expected[i] & 0xFF)) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void equalizationSpreadsTheHistogram(){
+
+        Random random = new Random(4);
+        int width = 1024;
+        int height = 768;
+        byte[] image = new byte[width * height];
+        for (int i = 0; i < image.length; i++){
+            // Intensities squeezed between 100 and 139
+            image[i] = (byte) (100 + random.nextInt(40));
+        }
+        byte[] equalized = new byte[image.length];
+        ImageKernels.equalizeHistogram(image, width, height, equalized);
+        assertArrayEquals(referenceEqualization(image), equalized);
+
+        int minimum = 255;
+        int maximum = 0;
+        for (byte pixel : equalized){
+            minimum = Math.min(minimum, pixel & 0xFF);
+            maximum = Math.max(maximum, pixel & 0xFF);
+        }
+        assertEquals(0, minimum);
+        assertEquals(255, maximum);
+
+        byte[] flat = new byte[100 * 100];
+        Arrays.fill(flat, (byte) 77);
+        ImageKernels.equalizeHistogram(flat, 100, 100, flat);
+        assertEquals(77, flat[0] & 0xFF);
+    }
+
+    @Test
+    public void bandsGiveTheSameResultAsASinglePass(){
+
+        Random random = new Random(5);
+        int width = 2000;
+        int height = 1500;
+        assertTrue(ImageKernels.bandCount(width, height) > 1);
+        byte[] source = randomImage(random, width, height);
+
+        byte[] banded = new byte[500 * 375];
+        ImageKernels.resizeArea(source, width, height, banded, 500, 375);
+        byte[] expected = referenceArea(source, width, height, 500, 375);
+        for (int i = 0; i < banded.length; i++){
+            assertTrue(Math.abs((banded[i] & 0xFF) - (expected[i] & 0xFF)) <= 1);
+        }
+
+        byte[] equalized = new byte[source.length];
+        ImageKernels.equalizeHistogram(source, width, height, equalized);
+        assertArrayEquals(referenceEqualization(source), equalized);
+    }
+
+    @Test
+    public void claheMatchesASequentialReference(){
+
+        Random random = new Random(7);
+        int[][] sizes = {{640, 480}, {1001, 757}, {97, 61}};
+        for (int[] size : sizes){
+            byte[] image = randomImage(random, size[0], size[1]);
+            byte[] normalized = new byte[image.length];
+            ImageKernels.clahe(image, size[0], size[1], normalized, 8, 8, 2.0);
+            assertArrayEquals(referenceClahe(image, size[0], size[1], 8, 8, 2.0), normalized);
+
+            // In place gives the same result
+            ImageKernels.clahe(image, size[0], size[1], image, 8, 8, 2.0);
+            assertArrayEquals(normalized, image);
+        }
+    }
+
+    @Test
+    public void claheEvensOutUnevenLighting(){
+
+        Random random = new Random(8);
+        int width = 512;
+        int height = 512;
+        // The same texture, dim and squeezed on the left half and bright on the right half
+        byte[] image = new byte[width * height];
+        for (int y = 0; y < height; y++){
+            for (int x = 0; x < width; x++){
+                int texture = random.nextInt(64);
+                image[y * width + x] = (byte) (x < width / 2 ? 20 + texture / 2 : 160 + texture);
+            }
+        }
+        byte[] normalized = new byte[image.length];
+        new IlluminationNormalization().normalize(image, width, height, normalized);
+
+        // The gap between the halves narrows, and the dim half gains contrast
+        double before = meanOf(image, width, height, width / 2, width) - meanOf(image, width, height, 0, width / 2);
+        double after = meanOf(normalized, width, height, width / 2, width) - meanOf(normalized, width, height, 0, width / 2);
+        assertTrue(after < before * 0.75);
+        assertTrue(deviationOf(normalized, width, height, 0, width / 2) > 2 * deviationOf(image, width, height, 0, width / 2));
+    }
+
+    private static byte[] randomImage(Random random, int width, int height){
+
+        // Smooth gradients with noise, closer to photos than pure noise
+        byte[] image = new byte[width * height];
+        for (int y = 0; y < height; y++){
+            for (int x = 0; x < width; x++){
+                int value = (x * 255 / width + y * 255 / height) / 2 + random.nextInt(64) - 32;
+                image[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] referenceArea(byte[] source, int sourceWidth, int sourceHeight, int width, int height){
+
+        double scaleX = (double) sourceWidth / width;
+        double scaleY = (double) sourceHeight / height;
+        byte[] result = new byte[width * height];
+        for (int y = 0; y < height; y++){
+            for (int x = 0; x < width; x++){
+                double sum = 0;
+                double y0 = y * scaleY;
+                double y1 = (y + 1) * scaleY;
+                double x0 = x * scaleX;
+                double x1 = (x + 1) * scaleX;
+                for (int sy = (int) y0; sy < Math.min(sourceHeight, Math.ceil(y1)); sy++){
+                    double coverY = Math.min(y1, sy + 1) - Math.max(y0, sy);
+                    for (int sx = (int) x0; sx < Math.min(sourceWidth, Math.ceil(x1)); sx++){
+                        double coverX = Math.min(x1, sx + 1) - Math.max(x0, sx);
+                        sum += coverX * coverY * (source[sy * sourceWidth + sx] & 0xFF);
+                    }
+                }
+                result[y * width + x] = (byte) Math.round(sum / (scaleX * scaleY));
+            }
+        }
+        return result;
+    }
+
+    private static byte[] referenceBilinear(byte[] source, int sourceWidth, int sourceHeight, int width, int height){
+
+        byte[] result = new byte[width * height];
+        for (int y = 0; y < height; y++){
+            double fy = Math.max(0, Math.min(sourceHeight - 1, (y + 0.5) * sourceHeight / height - 0.5));
+            int y0 = (int) fy;
+            int y1 = Math.min(y0 + 1, sourceHeight - 1);
+            for (int x = 0; x < width; x++){
+                double fx = Math.max(0, Math.min(sourceWidth - 1, (x + 0.5) * sourceWidth / width - 0.5));
+                int x0 = (int) fx;
+                int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                double top = (source[y0 * sourceWidth + x0] & 0xFF) * (1 - (fx - x0)) + (source[y0 * sourceWidth + x1] & 0xFF) * (fx - x0);
+                double bottom = (source[y1 * sourceWidth + x0] & 0xFF) * (1 - (fx - x0)) + (source[y1 * sourceWidth + x1] & 0xFF) * (fx - x0);
+                result[y * width + x] = (byte) Math.round(top * (1 - (fy - y0)) + bottom * (fy - y0));
+            }
+        }
+        return result;
+    }
+
+    private static double meanOf(byte[] image, int width, int height, int fromColumn, int toColumn){
+
+        long sum = 0;
+        for (int y = 0; y < height; y++){
+            for (int x = fromColumn; x < toColumn; x++){
+                sum += image[y * width + x] & 0xFF;
+            }
+        }
+        return (double) sum / (height * (toColumn - fromColumn));
+    }
+
+    private static double deviationOf(byte[] image, int width, int height, int fromColumn, int toColumn){
+
+        double mean = meanOf(image, width, height, fromColumn, toColumn);
+        double sum = 0;
+        for (int y = 0; y < height; y++){
+            for (int x = fromColumn; x < toColumn; x++){
+                double difference = (image[y * width + x] & 0xFF) - mean;
+                sum += difference * difference;
+            }
+        }
+        return Math.sqrt(sum / (height * (toColumn - fromColumn)));
+    }
+
+    private static byte[] referenceClahe(byte[] image, int width, int height, int tilesX, int tilesY, double clipLimit){
+
+        int tileWidth = (width + tilesX - 1) / tilesX;
+        int tileHeight = (height + tilesY - 1) / tilesY;
+        int area = tileWidth * tileHeight;
+        int limit = Math.max(1, (int) (clipLimit * area / 256));
+        int[][][] tables = new int[tilesY][tilesX][256];
+        for (int ty = 0; ty < tilesY; ty++){
+            for (int tx = 0; tx < tilesX; tx++){
+                int[] histogram = new int[256];
+                for (int y = ty * tileHeight; y < (ty + 1) * tileHeight; y++){
+                    // Reflection without repeating the border pixel
+                    int sy = y < height ? y : 2 * height - y - 2;
+                    for (int x = tx * tileWidth; x < (tx + 1) * tileWidth; x++){
+                        int sx = x < width ? x : 2 * width - x - 2;
+                        histogram[image[sy * width + sx] & 0xFF]++;
+                    }
+                }
+                int clipped = 0;
+                for (int i = 0; i < 256; i++){
+                    if (histogram[i] > limit){
+                        clipped += histogram[i] - limit;
+                        histogram[i] = limit;
+                    }
+                }
+                int residual = clipped % 256;
+                for (int i = 0; i < 256; i++){
+                    histogram[i] += clipped / 256;
+                }
+                int step = residual > 0 ? Math.max(256 / residual, 1) : 1;
+                for (int i = 0; residual > 0 && i < 256; i += step, residual--){
+                    histogram[i]++;
+                }
+                int sum = 0;
+                for (int i = 0; i < 256; i++){
+                    sum += histogram[i];
+                    tables[ty][tx][i] = Math.min(255, Math.round(sum * (255f / area)));
+                }
+            }
+        }
+        byte[] result = new byte[image.length];
+        for (int y = 0; y < height; y++){
+            float fy = y * (1f / tileHeight) - 0.5f;
+            int y1 = (int) Math.floor(fy);
+            float wy = fy - y1;
+            int y2 = Math.min(y1 + 1, tilesY - 1);
+            y1 = Math.max(y1, 0);
+            for (int x = 0; x < width; x++){
+                float fx = x * (1f / tileWidth) - 0.5f;
+                int x1 = (int) Math.floor(fx);
+                float wx = fx - x1;
+                int x2 = Math.min(x1 + 1, tilesX - 1);
+                x1 = Math.max(x1, 0);
+                int v = image[y * width + x] & 0xFF;
+                float top = tables[y1][x1][v] * (1 - wx) + tables[y1][x2][v] * wx;
+                float bottom = tables[y2][x1][v] * (1 - wx) + tables[y2][x2][v] * wx;
+                result[y * width + x] = (byte) Math.min(255, Math.round(top * (1 - wy) + bottom * wy));
+            }
+        }
+        return result;
+    }
+
+    private static byte[] referenceEqualization(byte[] image){
+
+        int[] histogram = new int[256];
+        for (byte pixel : image){
+            histogram[pixel & 0xFF]++;
+        }
+        int first = 0;
+        while (histogram[first] == 0){
+            first++;
+        }
+        float scale = 255f / (image.length - histogram[first]);
+        byte[] table = new byte[256];
+        int sum = 0;
+        for (int i = first + 1; i < 256; i++){
+            sum += histogram[i];
+            table[i] = (byte) Math.min(255, Math.round(sum * scale));
+        }
+        byte[] result = new byte[image.length];
+        for (int i = 0; i < image.length; i++){
+            result[i] = table[image[i] & 0xFF];
+        }
+        return result;
+    }
+}
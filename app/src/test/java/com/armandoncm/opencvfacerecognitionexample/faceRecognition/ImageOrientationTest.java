@@ -0,0 +1,46 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the mapping of rectangles from stored images to upright ones for every EXIF
+ * orientation, and back through the inverse orientation
+ * @author ArmandoNCM
+ */
+public class ImageOrientationTest {
+
+    private static final int WIDTH = 640;
+
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void cornerPixelMovesWhereTheOrientationPutsIt(){
+
+        Rect corner = new Rect(0, 0, 1, 1);
+        assertEquals(new Rect(0, 0, 1, 1), ImageOrientation.NORMAL.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(WIDTH - 1, 0, 1, 1), ImageOrientation.FLIP_HORIZONTAL.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(WIDTH - 1, HEIGHT - 1, 1, 1), ImageOrientation.ROTATE_180.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(0, HEIGHT - 1, 1, 1), ImageOrientation.FLIP_VERTICAL.apply(corner, WIDTH, HEIGHT));
+        // The upright image of the transposing orientations is HEIGHT wide and WIDTH high
+        assertEquals(new Rect(0, 0, 1, 1), ImageOrientation.TRANSPOSE.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(HEIGHT - 1, 0, 1, 1), ImageOrientation.ROTATE_90.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(HEIGHT - 1, WIDTH - 1, 1, 1), ImageOrientation.TRANSVERSE.apply(corner, WIDTH, HEIGHT));
+        assertEquals(new Rect(0, WIDTH - 1, 1, 1), ImageOrientation.ROTATE_270.apply(corner, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void inverseMapsRectanglesBack(){
+
+        Rect stored = new Rect(100, 60, 80, 120);
+        for (ImageOrientation orientation : ImageOrientation.values()){
+            Rect upright = orientation.apply(stored, WIDTH, HEIGHT);
+            int uprightWidth = orientation.swapsDimensions() ? HEIGHT : WIDTH;
+            int uprightHeight = orientation.swapsDimensions() ? WIDTH : HEIGHT;
+            assertEquals(orientation.name(), stored, orientation.inverse().apply(upright, uprightWidth, uprightHeight));
+            assertEquals(orientation.name(), orientation, orientation.inverse().inverse());
+        }
+    }
+}
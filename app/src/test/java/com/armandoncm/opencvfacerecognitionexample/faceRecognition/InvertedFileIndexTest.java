@@ -0,0 +1,145 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recall of the inverted-file index against an exhaustive scan of the gallery
+ * and the templates added once the index is built, on synthetic clustered galleries
+ * The centroids are picked among the templates, training them takes OpenCV's K-Means
+ * @author ArmandoNCM
+ */
+public class InvertedFileIndexTest {
+
+    private static final int DIMENSION = 32;
+
+    private static final int IDENTITIES = 64;
+
+    private static final int SAMPLES_PER_IDENTITY = 8;
+
+    private static final int LISTS = 16;
+
+    private static final int K = 5;
+
+    @Test
+    public void probedListsRecallTheExhaustiveNeighbours(){
+
+        Random random = new Random(23);
+        for (RecognitionMethod method : new RecognitionMethod[]{RecognitionMethod.PIXELS, RecognitionMethod.LBPH}){
+            float[][] identities = identities(random);
+            GallerySnapshot snapshot = gallery(random, method, identities);
+            InvertedFileIndex index = index(random, snapshot, 0, snapshot.size());
+
+            long recalled = 0;
+            long relevant = 0;
+            for (int query = 0; query < 100; query++){
+                float[] template = sample(random, identities[random.nextInt(IDENTITIES)]);
+                FaceMatch[] exact = snapshot.search(template, K);
+                FaceMatch[] approximate = index.search(template, K, 4);
+                for (FaceMatch match : exact){
+                    for (FaceMatch candidate : approximate){
+                        if (candidate.getTemplateIndex() == match.getTemplateIndex()){
+                            // Distances are those of the recognition method
+                            assertEquals(match.getDistance(), candidate.getDistance(), match.getDistance() * 1e-5f);
+                            recalled++;
+                            break;
+                        }
+                    }
+                }
+                relevant += exact.length;
+
+                // Probing every list is an exhaustive scan
+                FaceMatch[] all = index.search(template, K, LISTS);
+                for (int i = 0; i < K; i++){
+                    assertEquals(exact[i].getTemplateIndex(), all[i].getTemplateIndex());
+                }
+            }
+            assertTrue((double) recalled / relevant >= 0.9);
+        }
+    }
+
+    @Test
+    public void addedTemplatesAreFound(){
+
+        Random random = new Random(29);
+        float[][] identities = identities(random);
+        GallerySnapshot snapshot = gallery(random, RecognitionMethod.PIXELS, identities);
+        int built = snapshot.size() / 2;
+        InvertedFileIndex index = index(random, snapshot, 0, built);
+        assertEquals(built, index.size());
+
+        float[] template = new float[DIMENSION];
+        for (int i = built; i < snapshot.size(); i++){
+            int label = snapshot.getTemplate(i, template);
+            index.add(i, label, template);
+        }
+        assertEquals(snapshot.size(), index.size());
+
+        for (int i = built; i < snapshot.size(); i++){
+            int label = snapshot.getTemplate(i, template);
+            FaceMatch match = index.search(template, 1, 1)[0];
+            assertEquals(i, match.getTemplateIndex());
+            assertEquals(label, match.getLabel());
+            assertEquals(0, match.getDistance(), 0);
+        }
+    }
+
+    /**
+     * Index whose centroids are random templates of the gallery, holding the given range
+     */
+    private static InvertedFileIndex index(Random random, GallerySnapshot snapshot, int from, int to){
+
+        float[] centroids = new float[LISTS * DIMENSION];
+        float[] template = new float[DIMENSION];
+        for (int list = 0; list < LISTS; list++){
+            snapshot.getTemplate(from + random.nextInt(to - from), template);
+            System.arraycopy(template, 0, centroids, list * DIMENSION, DIMENSION);
+        }
+        InvertedFileIndex index = new InvertedFileIndex(snapshot.getMethod(), DIMENSION, LISTS, centroids);
+        for (int i = from; i < to; i++){
+            int label = snapshot.getTemplate(i, template);
+            index.add(i, label, template);
+        }
+        return index;
+    }
+
+    private static GallerySnapshot gallery(Random random, RecognitionMethod method, float[][] identities){
+
+        int count = IDENTITIES * SAMPLES_PER_IDENTITY;
+        int[] labels = new int[count];
+        float[] templates = new float[count * DIMENSION];
+        for (int i = 0; i < count; i++){
+            labels[i] = i % IDENTITIES;
+            System.arraycopy(sample(random, identities[labels[i]]), 0, templates, i * DIMENSION, DIMENSION);
+        }
+        FaceModel model = new FaceModel(method, DIMENSION, labels, templates, 0, null, null);
+        return new GallerySnapshot(model, 0, new GallerySegment[]{GallerySegment.of(model)});
+    }
+
+    private static float[][] identities(Random random){
+
+        float[][] identities = new float[IDENTITIES][DIMENSION];
+        for (float[] identity : identities){
+            for (int i = 0; i < DIMENSION; i++){
+                identity[i] = random.nextFloat();
+            }
+        }
+        return identities;
+    }
+
+    /**
+     * Noisy sample of an identity, non negative so that it is also a valid histogram
+     */
+    private static float[] sample(Random random, float[] identity){
+
+        float[] template = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++){
+            template[i] = Math.max(0, identity[i] + 0.1f * (float) random.nextGaussian());
+        }
+        return template;
+    }
+}
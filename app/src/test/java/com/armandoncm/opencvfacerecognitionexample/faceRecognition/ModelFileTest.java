@@ -0,0 +1,189 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that model files with a corrupted header, directory or method are rejected with
+ * an IOException instead of failing while they are read, and that failed writes leave no
+ * temporary file behind
+ * @author ArmandoNCM
+ */
+public class ModelFileTest {
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int DIRECTORY_ENTRY_SIZE = 32;
+
+    @Test
+    public void validFileIsLoaded() throws IOException {
+
+        File file = writeModel(RecognitionMethod.LBPH.ordinal());
+        FaceModel model = FaceModel.load(file);
+        assertEquals(RecognitionMethod.LBPH, model.getMethod());
+        assertEquals(2, model.size());
+        assertEquals(9, model.getLabel(1));
+    }
+
+    @Test
+    public void overflowingSectionCountIsRejected() throws IOException {
+
+        File file = writeModel(RecognitionMethod.PIXELS.ordinal());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // 32 + count * 32 wraps around to -480 in 32 bit arithmetic
+            writeIntLittleEndian(randomAccessFile, 8, 0x7FFFFFF0);
+            // The checksum is made to match so that only the count check can catch it
+            byte[] header = new byte[24];
+            randomAccessFile.seek(0);
+            randomAccessFile.readFully(header);
+            CRC32 crc = new CRC32();
+            crc.update(header);
+            writeIntLittleEndian(randomAccessFile, 24, (int) crc.getValue());
+        }
+        try {
+            ModelFile.open(file);
+            fail("A section count overflowing the directory size was accepted");
+        } catch (IOException expected) {
+            // Rejected as corrupted
+        }
+    }
+
+    @Test
+    public void wrappingSectionOffsetIsRejected() throws IOException {
+
+        File file = writeModel(RecognitionMethod.PIXELS.ordinal());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // Offset of the first section, its end wraps around to a negative position
+            writeLongLittleEndian(randomAccessFile, HEADER_SIZE + 16, Long.MAX_VALUE - 4);
+            rewriteChecksum(randomAccessFile);
+        }
+        assertRejected(file, "A section offset wrapping around the file length was accepted");
+    }
+
+    @Test
+    public void overflowingSectionLengthIsRejected() throws IOException {
+
+        File file = writeModel(RecognitionMethod.PIXELS.ordinal());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // 0x7FFFFFFF squared times four bytes does not fit in a long, it wraps to -4 * 0xFFFFFFFF
+            writeIntLittleEndian(randomAccessFile, HEADER_SIZE + 8, 0x7FFFFFFF);
+            writeIntLittleEndian(randomAccessFile, HEADER_SIZE + 12, 0x7FFFFFFF);
+            writeLongLittleEndian(randomAccessFile, HEADER_SIZE + 24, 0x7FFFFFFFL * 0x7FFFFFFFL * 4);
+            rewriteChecksum(randomAccessFile);
+        }
+        assertRejected(file, "A section length overflowing a long was accepted");
+    }
+
+    @Test
+    public void duplicateSectionIsRejected() throws IOException {
+
+        File file = writeModel(RecognitionMethod.PIXELS.ordinal());
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // The method section becomes a second labels section of one row and column
+            writeIntLittleEndian(randomAccessFile, HEADER_SIZE + 2 * DIRECTORY_ENTRY_SIZE, ModelFile.SECTION_LABELS);
+            rewriteChecksum(randomAccessFile);
+        }
+        assertRejected(file, "A duplicate section was accepted");
+
+        try {
+            new ModelFile.Writer()
+                    .addSection(ModelFile.SECTION_LABELS, 1, 1, IntBuffer.wrap(new int[]{1}))
+                    .addSection(ModelFile.SECTION_LABELS, 1, 1, IntBuffer.wrap(new int[]{2}));
+            fail("A duplicate section was written");
+        } catch (IllegalArgumentException expected) {
+            // Rejected before writing
+        }
+    }
+
+    @Test
+    public void failedWriteDeletesTheTemporaryFile() throws IOException {
+
+        // A non empty directory cannot be replaced by the written file
+        File destination = File.createTempFile("mdl", "");
+        assertTrue(destination.delete() && destination.mkdir());
+        File child = new File(destination, "child");
+        assertTrue(child.createNewFile());
+        try {
+            new ModelFile.Writer()
+                    .addSection(ModelFile.SECTION_LABELS, 1, 1, IntBuffer.wrap(new int[]{1}))
+                    .writeTo(destination);
+            fail("A model file replaced a non empty directory");
+        } catch (IOException expected) {
+            assertFalse(new File(destination.getPath() + ".tmp").exists());
+        } finally {
+            child.delete();
+            destination.delete();
+        }
+    }
+
+    @Test
+    public void unknownMethodIsRejected() throws IOException {
+
+        File file = writeModel(RecognitionMethod.values().length);
+        try {
+            FaceModel.load(file);
+            fail("An unknown recognition method was accepted");
+        } catch (IOException expected) {
+            // Rejected as corrupted
+        }
+    }
+
+    private static void assertRejected(File file, String message){
+
+        try {
+            ModelFile.open(file);
+            fail(message);
+        } catch (IOException expected) {
+            // Rejected as corrupted
+        }
+    }
+
+    /**
+     * Recomputes the checksum of the header and the directory of a file with three sections
+     */
+    private static void rewriteChecksum(RandomAccessFile file) throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE + 3 * DIRECTORY_ENTRY_SIZE];
+        file.seek(0);
+        file.readFully(header);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, 24);
+        crc.update(header, HEADER_SIZE, 3 * DIRECTORY_ENTRY_SIZE);
+        writeIntLittleEndian(file, 24, (int) crc.getValue());
+    }
+
+    private static File writeModel(int method) throws IOException {
+
+        File file = File.createTempFile("model", ".bin");
+        file.deleteOnExit();
+        new ModelFile.Writer()
+                .addSection(ModelFile.SECTION_LABELS, 2, 1, IntBuffer.wrap(new int[]{4, 9}))
+                .addSection(ModelFile.SECTION_TEMPLATES, 2, 3, FloatBuffer.wrap(new float[]{1, 2, 3, 4, 5, 6}))
+                .addSection(ModelFile.SECTION_METHOD, 1, 1, IntBuffer.wrap(new int[]{method}))
+                .writeTo(file);
+        return file;
+    }
+
+    private static void writeLongLittleEndian(RandomAccessFile file, long position, long value) throws IOException {
+
+        writeIntLittleEndian(file, position, (int) value);
+        writeIntLittleEndian(file, position + 4, (int) (value >>> 32));
+    }
+
+    private static void writeIntLittleEndian(RandomAccessFile file, long position, int value) throws IOException {
+
+        file.seek(position);
+        file.write(new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)});
+    }
+}
@@ -0,0 +1,58 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that training requests which cannot produce a model are rejected before any
+ * face is processed, no OpenCV native code is involved
+ * @author ArmandoNCM
+ */
+public class ParallelModelTrainerTest {
+
+    private final ParallelModelTrainer trainer = new ParallelModelTrainer(null);
+
+    @Test
+    public void labelWithoutFacesIsRejected(){
+
+        Map<Integer, Mat[]> facesByLabel = new HashMap<>();
+        facesByLabel.put(1, new Mat[1]);
+        facesByLabel.put(2, new Mat[0]);
+        for (RecognitionMethod method : new RecognitionMethod[]{RecognitionMethod.EIGENFACES, RecognitionMethod.FISHERFACES, RecognitionMethod.LBPH}){
+            assertRejected(facesByLabel, method, 10);
+        }
+    }
+
+    @Test
+    public void fisherfacesOfASingleLabelAreRejected(){
+
+        Map<Integer, Mat[]> facesByLabel = new HashMap<>();
+        facesByLabel.put(1, new Mat[3]);
+        assertRejected(facesByLabel, RecognitionMethod.FISHERFACES, 10);
+    }
+
+    @Test
+    public void projectionWithoutComponentsIsRejected(){
+
+        Map<Integer, Mat[]> facesByLabel = new HashMap<>();
+        facesByLabel.put(1, new Mat[3]);
+        facesByLabel.put(2, new Mat[3]);
+        assertRejected(facesByLabel, RecognitionMethod.EIGENFACES, 0);
+        assertRejected(facesByLabel, RecognitionMethod.FISHERFACES, 0);
+    }
+
+    private void assertRejected(Map<Integer, Mat[]> facesByLabel, RecognitionMethod method, int components){
+
+        try {
+            trainer.train(facesByLabel, method, components);
+            fail(method + " accepted " + facesByLabel.size() + " labels and " + components + " components");
+        } catch (IllegalArgumentException expected) {
+            // Rejected before training
+        }
+    }
+}
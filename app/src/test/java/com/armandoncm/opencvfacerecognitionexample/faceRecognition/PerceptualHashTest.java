@@ -0,0 +1,111 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the difference hash and the BK-tree lookup, and the gallery reduction of
+ * deduplicating synthetic bursts of frames
+ * @author ArmandoNCM
+ */
+public class PerceptualHashTest {
+
+    private static final int SIZE = FeatureExtraction.FACE_SIZE;
+
+    @Test
+    public void bkTreeFindsExactlyTheHashesWithinTheRadius(){
+
+        Random random = new Random(1);
+        BkTree tree = new BkTree();
+        long[] hashes = new long[2000];
+        for (int i = 0; i < hashes.length; i++){
+            hashes[i] = random.nextLong();
+            tree.add(hashes[i]);
+        }
+        assertEquals(hashes.length, tree.size());
+
+        for (int query = 0; query < 200; query++){
+            long hash = query % 2 == 0 ? random.nextLong() : hashes[query] ^ (1L << query % 64) ^ (1L << (query * 7) % 64);
+            for (int radius = 0; radius <= 24; radius += 4){
+                boolean expected = false;
+                for (long stored : hashes){
+                    expected |= PerceptualHash.hammingDistance(hash, stored) <= radius;
+                }
+                assertEquals(expected, tree.containsWithin(hash, radius));
+            }
+        }
+    }
+
+    @Test
+    public void nearIdenticalFacesHashClose(){
+
+        Random random = new Random(2);
+        float[] face = syntheticFace(random);
+        float[] frame = noisyCopy(random, face, 0.02f);
+        float[] other = syntheticFace(random);
+
+        long hash = PerceptualHash.dHash(face, SIZE, SIZE);
+        assertTrue(PerceptualHash.hammingDistance(hash, PerceptualHash.dHash(frame, SIZE, SIZE)) <= FaceDeduplicator.DEFAULT_RADIUS);
+        assertFalse(PerceptualHash.hammingDistance(hash, PerceptualHash.dHash(other, SIZE, SIZE)) <= FaceDeduplicator.DEFAULT_RADIUS);
+    }
+
+    @Test
+    public void burstsShrinkToAFewDistinctFaces(){
+
+        Random random = new Random(3);
+        int bursts = 200;
+        int framesPerBurst = 10;
+        float[][] frames = new float[bursts * framesPerBurst][];
+        for (int burst = 0; burst < bursts; burst++){
+            float[] face = syntheticFace(random);
+            for (int frame = 0; frame < framesPerBurst; frame++){
+                frames[burst * framesPerBurst + frame] = noisyCopy(random, face, 0.02f);
+            }
+        }
+
+        BkTree tree = new BkTree();
+        int kept = 0;
+        for (float[] frame : frames){
+            long hash = PerceptualHash.dHash(frame, SIZE, SIZE);
+            if (!tree.containsWithin(hash, FaceDeduplicator.DEFAULT_RADIUS)){
+                tree.add(hash);
+                kept++;
+            }
+        }
+        assertTrue(kept >= bursts * 0.9);
+        assertTrue(kept <= bursts * 2);
+    }
+
+    /**
+     * Smooth random image standing for an equalized face chip
+     */
+    private static float[] syntheticFace(Random random){
+
+        float[] face = new float[SIZE * SIZE];
+        for (int wave = 0; wave < 6; wave++){
+            double frequencyX = random.nextDouble() * 0.6;
+            double frequencyY = random.nextDouble() * 0.6;
+            double phase = random.nextDouble() * Math.PI * 2;
+            for (int y = 0; y < SIZE; y++){
+                for (int x = 0; x < SIZE; x++){
+                    face[y * SIZE + x] += (float) Math.sin(frequencyX * x + frequencyY * y + phase) / 6;
+                }
+            }
+        }
+        return face;
+    }
+
+    private static float[] noisyCopy(Random random, float[] face, float noise){
+
+        float[] copy = new float[face.length];
+        for (int i = 0; i < face.length; i++){
+            copy[i] = face[i] + (float) random.nextGaussian() * noise;
+        }
+        return copy;
+    }
+}
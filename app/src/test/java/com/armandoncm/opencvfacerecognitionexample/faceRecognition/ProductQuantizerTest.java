@@ -0,0 +1,124 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the asymmetric distances of the product quantizer and the re-ranking of the
+ * product-quantized gallery on synthetic clustered templates
+ * The codebooks are picked among the templates, training them takes OpenCV's K-Means
+ * @author ArmandoNCM
+ */
+public class ProductQuantizerTest {
+
+    private static final int DIMENSION = 64;
+
+    private static final int SUBSPACES = 8;
+
+    private static final int CENTROIDS = 32;
+
+    private static final int IDENTITIES = 64;
+
+    private static final int SAMPLES_PER_IDENTITY = 8;
+
+    private static final int K = 5;
+
+    @Test
+    public void asymmetricDistanceIsTheDistanceToTheDecodedVector(){
+
+        Random random = new Random(31);
+        float[][] templates = templates(random);
+        ProductQuantizer quantizer = quantizer(random, templates);
+
+        float[] table = new float[quantizer.getDistanceTableSize()];
+        byte[] code = new byte[quantizer.getCodeSize()];
+        float[] decoded = new float[DIMENSION];
+        for (int i = 0; i < 100; i++){
+            float[] query = randomVector(random);
+            quantizer.computeDistanceTable(query, table);
+            quantizer.encode(templates[random.nextInt(templates.length)], 0, code, 0);
+            quantizer.decode(code, 0, decoded, 0);
+            float expected = VectorDistances.squaredL2(query, 0, decoded, 0, DIMENSION);
+            assertEquals(expected, quantizer.asymmetricDistance(table, code, 0), expected * 1e-5f);
+        }
+    }
+
+    @Test
+    public void reRankingRecoversTheExactNeighbours(){
+
+        Random random = new Random(37);
+        float[][] templates = templates(random);
+        ProductQuantizer quantizer = quantizer(random, templates);
+        ProductQuantizedGallery gallery = new ProductQuantizedGallery(quantizer, true);
+        for (int i = 0; i < templates.length; i++){
+            assertEquals(i, gallery.add(i / SAMPLES_PER_IDENTITY, templates[i]));
+        }
+
+        for (int query = 0; query < 100; query++){
+            float[] template = sample(random, templates[random.nextInt(templates.length)]);
+            TopKCollector exhaustive = new TopKCollector(K);
+            for (int i = 0; i < templates.length; i++){
+                exhaustive.offer(i, i / SAMPLES_PER_IDENTITY, VectorDistances.squaredL2(template, 0, templates[i], 0, DIMENSION));
+            }
+            FaceMatch[] exact = exhaustive.toMatches();
+
+            FaceMatch[] reRanked = gallery.search(template, K, 8 * K);
+            assertEquals(K, reRanked.length);
+            for (int i = 0; i < K; i++){
+                assertEquals(exact[i].getTemplateIndex(), reRanked[i].getTemplateIndex());
+                assertEquals(exact[i].getLabel(), reRanked[i].getLabel());
+                assertEquals(exact[i].getDistance(), reRanked[i].getDistance(), exact[i].getDistance() * 1e-5f);
+            }
+        }
+    }
+
+    /**
+     * Quantizer whose centroids are sub-vectors of random templates
+     */
+    private static ProductQuantizer quantizer(Random random, float[][] templates){
+
+        int subDimension = DIMENSION / SUBSPACES;
+        float[] codebooks = new float[SUBSPACES * CENTROIDS * subDimension];
+        for (int subspace = 0; subspace < SUBSPACES; subspace++){
+            for (int centroid = 0; centroid < CENTROIDS; centroid++){
+                float[] template = templates[random.nextInt(templates.length)];
+                System.arraycopy(template, subspace * subDimension, codebooks,
+                        (subspace * CENTROIDS + centroid) * subDimension, subDimension);
+            }
+        }
+        return new ProductQuantizer(DIMENSION, SUBSPACES, CENTROIDS, codebooks);
+    }
+
+    private static float[][] templates(Random random){
+
+        float[][] templates = new float[IDENTITIES * SAMPLES_PER_IDENTITY][];
+        for (int identity = 0; identity < IDENTITIES; identity++){
+            float[] center = randomVector(random);
+            for (int sample = 0; sample < SAMPLES_PER_IDENTITY; sample++){
+                templates[identity * SAMPLES_PER_IDENTITY + sample] = sample(random, center);
+            }
+        }
+        return templates;
+    }
+
+    private static float[] sample(Random random, float[] center){
+
+        float[] template = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++){
+            template[i] = center[i] + 0.1f * (float) random.nextGaussian();
+        }
+        return template;
+    }
+
+    private static float[] randomVector(Random random){
+
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++){
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
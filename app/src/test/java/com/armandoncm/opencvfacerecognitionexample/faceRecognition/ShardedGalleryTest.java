@@ -0,0 +1,86 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that scattering a search over the shards and gathering their partial results
+ * finds the same matches as scanning the whole gallery
+ * @author ArmandoNCM
+ */
+public class ShardedGalleryTest {
+
+    private static final int DIMENSION = FeatureExtraction.PIXEL_DIMENSION;
+
+    private static final int SEGMENT_SIZE = 50;
+
+    private static final int K = 5;
+
+    @Test
+    public void scatterGatherMatchesTheSnapshot(){
+
+        Random random = new Random(13);
+        ShardedGallery shardedGallery = new ShardedGallery(RecognitionMethod.PIXELS, DIMENSION, null, 3);
+        try {
+            GallerySnapshot snapshot = new GallerySnapshot(null, 0, new GallerySegment[0]);
+            for (int segment = 0; segment < 4; segment++){
+                int[] labels = new int[SEGMENT_SIZE];
+                float[] templates = new float[SEGMENT_SIZE * DIMENSION];
+                for (int i = 0; i < SEGMENT_SIZE; i++){
+                    labels[i] = random.nextInt(20);
+                    float[] template = randomTemplate(random);
+                    System.arraycopy(template, 0, templates, i * DIMENSION, DIMENSION);
+                    assertEquals(snapshot.size() + i, shardedGallery.add(labels[i], template));
+                }
+                snapshot = snapshot.withSegment(new GallerySegment(DIMENSION, labels, templates));
+
+                float[][] queries = new float[8][];
+                for (int i = 0; i < queries.length; i++){
+                    queries[i] = randomTemplate(random);
+                }
+                FaceMatch[][] shardedMatches = shardedGallery.search(queries, K);
+                FaceMatch[][] expectedMatches = snapshot.search(queries, K);
+                for (int i = 0; i < queries.length; i++){
+                    assertSameMatches(expectedMatches[i], shardedMatches[i]);
+                    assertSameMatches(snapshot.search(queries[i], K), shardedGallery.search(queries[i], K));
+                }
+            }
+
+            // Every shard holds its share of the gallery
+            int[] shardSizes = shardedGallery.getShardSizes();
+            int total = 0;
+            for (int shardSize : shardSizes){
+                assertTrue(Math.abs(shardSize - snapshot.size() / shardSizes.length) <= 1);
+                total += shardSize;
+            }
+            assertEquals(snapshot.size(), total);
+        } finally {
+            shardedGallery.close();
+        }
+        assertFalse(shardedGallery.acquire());
+    }
+
+    private static void assertSameMatches(FaceMatch[] expected, FaceMatch[] actual){
+
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++){
+            assertEquals(expected[i].getTemplateIndex(), actual[i].getTemplateIndex());
+            assertEquals(expected[i].getLabel(), actual[i].getLabel());
+            assertEquals(expected[i].getDistance(), actual[i].getDistance(), expected[i].getDistance() * 1e-6f);
+        }
+    }
+
+    private static float[] randomTemplate(Random random){
+
+        float[] template = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++){
+            template[i] = random.nextFloat();
+        }
+        return template;
+    }
+}
@@ -0,0 +1,131 @@
+package com.armandoncm.opencvfacerecognitionexample.faceRecognition;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the early abandoning distance kernels against the full ones, on random vectors
+ * and on a gallery scan of synthetic templates
+ * @author ArmandoNCM
+ */
+public class VectorDistancesTest {
+
+    private static final int GALLERY_SIZE = 4096;
+
+    private static final int DIMENSION = FeatureExtraction.PIXEL_DIMENSION;
+
+    private static final int SAMPLES_PER_IDENTITY = 16;
+
+    @Test
+    public void boundedDistancesMatchFullDistancesBelowTheBound(){
+
+        Random random = new Random(7);
+        float[] a = randomVector(random, DIMENSION);
+        float[] b = randomVector(random, DIMENSION);
+        int[] order = VectorDistances.orderByVariance(FloatBuffer.wrap(concat(a, b)), 2, DIMENSION);
+
+        for (RecognitionMethod method : RecognitionMethod.values()){
+            float full = VectorDistances.distance(method, a, 0, b, 0, DIMENSION);
+            assertEquals(full, VectorDistances.distance(method, a, 0, b, 0, DIMENSION, null, Float.POSITIVE_INFINITY), full * 1e-4f);
+            assertEquals(full, VectorDistances.distance(method, a, 0, b, 0, DIMENSION, order, Float.POSITIVE_INFINITY), full * 1e-4f);
+
+            float abandoned = VectorDistances.distance(method, a, 0, b, 0, DIMENSION, order, full / 4);
+            assertTrue(abandoned >= full / 4);
+            assertTrue(abandoned <= full * (1 + 1e-4f));
+        }
+    }
+
+    @Test
+    public void orderByVarianceSortsComponentsByDecreasingVariance(){
+
+        float[] vectors = {
+                0, 0, 5,
+                0, 1, -5,
+                0, 2, 5
+        };
+        int[] order = VectorDistances.orderByVariance(FloatBuffer.wrap(vectors), 3, 3);
+        assertEquals(2, order[0]);
+        assertEquals(1, order[1]);
+        assertEquals(0, order[2]);
+    }
+
+    @Test
+    public void earlyAbandoningScanFindsTheSameNeighbours(){
+
+        Random random = new Random(11);
+        float[] templates = syntheticGallery(random);
+        // The probe is a new sample of an identity enrolled halfway through the gallery
+        float[] query = new float[DIMENSION];
+        System.arraycopy(templates, (GALLERY_SIZE / 2 + 1) * DIMENSION, query, 0, DIMENSION);
+        for (int i = 0; i < DIMENSION; i++){
+            query[i] += (float) random.nextGaussian() * 0.01f;
+        }
+        int[] order = VectorDistances.orderByVariance(FloatBuffer.wrap(templates), GALLERY_SIZE, DIMENSION);
+
+        FaceMatch[] expected = scan(query, templates, null, false);
+        FaceMatch[] actual = scan(query, templates, order, true);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++){
+            assertEquals(expected[i].getTemplateIndex(), actual[i].getTemplateIndex());
+        }
+    }
+
+    private static FaceMatch[] scan(float[] query, float[] templates, int[] order, boolean bounded){
+
+        TopKCollector collector = new TopKCollector(5);
+        for (int i = 0; i < GALLERY_SIZE; i++){
+            float distance = bounded
+                    ? VectorDistances.squaredL2(query, 0, templates, i * DIMENSION, DIMENSION, order, collector.bound())
+                    : VectorDistances.squaredL2(query, 0, templates, i * DIMENSION, DIMENSION);
+            collector.offer(i, i, distance);
+        }
+        return collector.toMatches();
+    }
+
+    /**
+     * Builds templates of a few enrolled identities whose components have very different
+     * spreads, as equalized face pixels do between the background corners and the eyes
+     */
+    private static float[] syntheticGallery(Random random){
+
+        float[] spread = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++){
+            spread[i] = (float) Math.pow(random.nextFloat(), 3);
+        }
+        float[] identity = new float[DIMENSION];
+        float[] templates = new float[GALLERY_SIZE * DIMENSION];
+        for (int template = 0; template < GALLERY_SIZE; template++){
+            if (template % SAMPLES_PER_IDENTITY == 0){
+                for (int i = 0; i < DIMENSION; i++){
+                    identity[i] = 0.5f + (float) random.nextGaussian() * 0.25f * spread[i];
+                }
+            }
+            for (int i = 0; i < DIMENSION; i++){
+                templates[template * DIMENSION + i] = identity[i] + (float) random.nextGaussian() * 0.02f * spread[i];
+            }
+        }
+        return templates;
+    }
+
+    private static float[] randomVector(Random random, int dimension){
+
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++){
+            vector[i] = random.nextFloat();
+        }
+        return vector;
+    }
+
+    private static float[] concat(float[] a, float[] b){
+
+        float[] result = new float[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}